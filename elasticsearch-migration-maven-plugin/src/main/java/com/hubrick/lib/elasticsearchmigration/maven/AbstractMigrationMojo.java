@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.maven;
+
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base for goals which look at the changesets of the project. The goal runs with the project's runtime classpath as context
+ * class loader, which is where the library looks up changesets.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public abstract class AbstractMigrationMojo extends AbstractMojo {
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    protected MavenProject project;
+
+    @Parameter(property = "elasticsearch-migration.basePackage", defaultValue = "es.migration", required = true)
+    protected String basePackage;
+
+    @Parameter(property = "elasticsearch-migration.skip", defaultValue = "false")
+    protected boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping " + getClass().getSimpleName());
+            return;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        final ClassLoader previousContextClassLoader = currentThread.getContextClassLoader();
+        try (final URLClassLoader projectClassLoader = new URLClassLoader(getProjectClasspath(), getClass().getClassLoader())) {
+            currentThread.setContextClassLoader(projectClassLoader);
+            executeWithProjectClassLoader();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Couldn't write changeset artifact", e);
+        } catch (RuntimeException e) {
+            throw new MojoExecutionException("Couldn't process changesets of " + basePackage + ": " + e.getMessage(), e);
+        } finally {
+            currentThread.setContextClassLoader(previousContextClassLoader);
+        }
+    }
+
+    protected abstract void executeWithProjectClassLoader() throws IOException;
+
+    protected Path getOutputFile(final String resourceName) throws IOException {
+        final Path target = new File(project.getBuild().getOutputDirectory()).toPath().resolve(resourceName);
+        Files.createDirectories(target.getParent());
+        return target;
+    }
+
+    private URL[] getProjectClasspath() throws MojoExecutionException {
+        try {
+            final List<URL> urls = new ArrayList<>();
+            for (String element : project.getRuntimeClasspathElements()) {
+                urls.add(new File(element).toURI().toURL());
+            }
+            return urls.toArray(new URL[0]);
+        } catch (DependencyResolutionRequiredException | MalformedURLException e) {
+            throw new MojoExecutionException("Couldn't resolve the project classpath", e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.maven;
+
+import com.hubrick.lib.elasticsearchmigration.service.impl.ClasspathResourceScanner;
+import com.hubrick.lib.elasticsearchmigration.service.impl.IndexedResourceScanner;
+import com.hubrick.lib.elasticsearchmigration.service.impl.ReflectionsResourceScanner;
+import com.hubrick.lib.elasticsearchmigration.service.impl.YamlDirectoryMigrationSetProvider;
+import com.hubrick.lib.elasticsearchmigration.service.impl.YamlParser;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Scans the project classpath for the changesets of a base package and lists them in
+ * META-INF/es-migrations/&lt;basePackage&gt;.idx, which lets the library find them at runtime without scanning.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Mojo(name = "index", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
+public class IndexMigrationsMojo extends AbstractMigrationMojo {
+
+    @Override
+    protected void executeWithProjectClassLoader() throws IOException {
+        final List<String> resources = new YamlDirectoryMigrationSetProvider(ForkJoinPool.commonPool(), new YamlParser(), new ClasspathResourceScanner(new ReflectionsResourceScanner()))
+                .getMigrationResources(basePackage);
+
+        final Path target = getOutputFile(IndexedResourceScanner.getIndexResourceName(basePackage));
+        try (final OutputStream outputStream = Files.newOutputStream(target)) {
+            IndexedResourceScanner.write(resources, outputStream);
+        }
+        getLog().info("Indexed " + resources.size() + " changesets of " + basePackage + " into " + target);
+    }
+}
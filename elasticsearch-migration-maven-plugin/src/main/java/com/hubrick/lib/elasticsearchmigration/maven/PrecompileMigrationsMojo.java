@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.maven;
+
+import com.hubrick.lib.elasticsearchmigration.model.input.VersionedMigrationFile;
+import com.hubrick.lib.elasticsearchmigration.service.impl.PrecompiledMigrationSetProvider;
+import com.hubrick.lib.elasticsearchmigration.service.impl.YamlDirectoryMigrationSetProvider;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Parses, validates and checksums the changesets of a base package at build time and writes them to
+ * META-INF/es-migrations/&lt;basePackage&gt;.smile in the output directory, where PrecompiledMigrationSetProvider picks them up.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Mojo(name = "precompile", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
+public class PrecompileMigrationsMojo extends AbstractMigrationMojo {
+
+    @Override
+    protected void executeWithProjectClassLoader() throws IOException {
+        final List<VersionedMigrationFile> migrationFiles = new YamlDirectoryMigrationSetProvider().getMigrationFiles(basePackage);
+        final Path target = getOutputFile(PrecompiledMigrationSetProvider.getResourceName(basePackage));
+        if (migrationFiles.isEmpty()) {
+            // A file left over from an earlier build would still be picked up at runtime
+            if (Files.deleteIfExists(target)) {
+                getLog().warn("No changesets found in " + basePackage + ", deleted the stale " + target);
+            } else {
+                getLog().warn("No changesets found in " + basePackage + ", nothing to precompile");
+            }
+            return;
+        }
+
+        try (final OutputStream outputStream = Files.newOutputStream(target)) {
+            PrecompiledMigrationSetProvider.write(migrationFiles, outputStream);
+        }
+        getLog().info("Precompiled " + migrationFiles.size() + " changesets of " + basePackage + " into " + target);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Controls how runs of consecutive INDEX_DOCUMENT, UPDATE_DOCUMENT and DELETE_DOCUMENT migrations are coalesced into _bulk requests.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Getter
+@Builder
+public class BulkConfig {
+
+    @NonNull
+    @Builder.Default
+    private final Boolean enabled = false;
+    @NonNull
+    @Builder.Default
+    private final Integer maxActions = 1000;
+    @NonNull
+    @Builder.Default
+    private final Long maxSizeInBytes = 5L * 1024 * 1024;
+    @NonNull
+    @Builder.Default
+    private final Integer maxItemRetries = 3;
+    @NonNull
+    @Builder.Default
+    private final Integer itemRetryBackoffInMillis = 500;
+    @NonNull
+    @Builder.Default
+    private final Boolean adaptive = false;
+    @NonNull
+    @Builder.Default
+    private final Integer targetLatencyInMillis = 1000;
+    @NonNull
+    @Builder.Default
+    private final Integer maxDocumentsPerSecond = Integer.MAX_VALUE;
+    @NonNull
+    @Builder.Default
+    private final Long maxBytesPerSecond = Long.MAX_VALUE;
+}
@@ -16,10 +16,15 @@
 package com.hubrick.lib.elasticsearchmigration;
 
 import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationSet;
-import com.hubrick.lib.elasticsearchmigration.service.MigrationClient;
 import com.hubrick.lib.elasticsearchmigration.service.MigrationSetProvider;
+import com.hubrick.lib.elasticsearchmigration.service.SchemaValidator;
+import com.hubrick.lib.elasticsearchmigration.service.impl.ChangesetSchemaValidator;
 import com.hubrick.lib.elasticsearchmigration.service.impl.DefaultMigrationClient;
+import com.hubrick.lib.elasticsearchmigration.service.impl.JsonSchemaValidator;
+import com.hubrick.lib.elasticsearchmigration.service.impl.MigrationFileCache;
+import com.hubrick.lib.elasticsearchmigration.service.impl.PrecompiledMigrationSetProvider;
 import com.hubrick.lib.elasticsearchmigration.service.impl.YamlDirectoryMigrationSetProvider;
+import com.hubrick.lib.elasticsearchmigration.service.impl.YamlParser;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.Header;
@@ -29,29 +34,55 @@ import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
+ * Applies the changesets found in the base package. Closing it stops the threads of the migration client and closes the
+ * elasticsearch client.
+ *
  * @author Emir Dizdarevic
  * @since 1.0.0
  */
 @Slf4j
-public class ElasticsearchMigration {
+public class ElasticsearchMigration implements Closeable {
 
     private final ElasticsearchMigrationConfig elasticsearchMigrationConfig;
-    private final MigrationClient migrationClient;
+    private final RestHighLevelClient restHighLevelClient;
+    private final DefaultMigrationClient migrationClient;
     private final MigrationSetProvider migrationSetProvider;
 
     public ElasticsearchMigration(@NonNull final ElasticsearchMigrationConfig elasticsearchMigrationConfig) {
         this.elasticsearchMigrationConfig = elasticsearchMigrationConfig;
+        this.restHighLevelClient = createElasticsearchClient(elasticsearchMigrationConfig.getElasticsearchConfig());
         this.migrationClient = new DefaultMigrationClient(
                 elasticsearchMigrationConfig.getIdentifier(),
-                createElasticsearchClient(elasticsearchMigrationConfig.getElasticsearchConfig()),
+                restHighLevelClient,
                 elasticsearchMigrationConfig.getIgnorePreviousFailures(),
                 elasticsearchMigrationConfig.getBackoffPeriodInMillis(),
-                elasticsearchMigrationConfig.getRetryCount()
+                elasticsearchMigrationConfig.getRetryCount(),
+                elasticsearchMigrationConfig.getMigrationClientConfig()
         );
-        this.migrationSetProvider = new YamlDirectoryMigrationSetProvider();
+        this.migrationSetProvider = new PrecompiledMigrationSetProvider(new YamlDirectoryMigrationSetProvider(
+                elasticsearchMigrationConfig.getParserExecutor(),
+                new YamlParser(
+                        createSchemaValidator(elasticsearchMigrationConfig.getSchemaValidation()),
+                        Optional.ofNullable(elasticsearchMigrationConfig.getCacheDirectory()).map(MigrationFileCache::new)
+                )
+        ));
+    }
+
+    private SchemaValidator createSchemaValidator(SchemaValidation schemaValidation) {
+        switch (schemaValidation) {
+            case BUILT_IN:
+                return new ChangesetSchemaValidator();
+            case JSON_SCHEMA:
+                return new JsonSchemaValidator();
+            default:
+                throw new IllegalStateException("Unknown schema validation " + schemaValidation);
+        }
     }
 
     private RestHighLevelClient createElasticsearchClient(ElasticsearchConfig elasticsearchConfig) {
@@ -76,4 +107,10 @@ public class ElasticsearchMigration {
         migrationClient.applyMigrationSet(migrationSet);
         log.info("Finished ES schema migration");
     }
+
+    @Override
+    public void close() throws IOException {
+        migrationClient.close();
+        restHighLevelClient.close();
+    }
 }
@@ -19,6 +19,10 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.NonNull;
 
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * @author Emir Dizdarevic
  * @since 1.0.0
@@ -41,6 +45,16 @@ public class ElasticsearchMigrationConfig {
     @NonNull
     @Builder.Default
     private final Integer retryCount = 5;
+    @NonNull
+    @Builder.Default
+    private final MigrationClientConfig migrationClientConfig = MigrationClientConfig.builder().build();
+    @NonNull
+    @Builder.Default
+    private final Executor parserExecutor = ForkJoinPool.commonPool();
+    @NonNull
+    @Builder.Default
+    private final SchemaValidation schemaValidation = SchemaValidation.BUILT_IN;
+    private final Path cacheDirectory;
 
     @NonNull
     private final ElasticsearchConfig elasticsearchConfig;
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Settings of the {@link com.hubrick.lib.elasticsearchmigration.service.impl.DefaultMigrationClient} beyond the identifier,
+ * the client and the retry settings. {@link ElasticsearchMigrationConfig} passes them through unchanged.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Getter
+@Builder
+public class MigrationClientConfig {
+
+    @NonNull
+    @Builder.Default
+    private final BulkConfig bulkConfig = BulkConfig.builder().build();
+    @NonNull
+    @Builder.Default
+    private final RefreshPolicy refreshPolicy = RefreshPolicy.PER_REQUEST;
+    @NonNull
+    @Builder.Default
+    private final Integer maxInFlightRequests = 1;
+    @NonNull
+    @Builder.Default
+    private final Integer historyPageSize = 1000;
+    @NonNull
+    @Builder.Default
+    private final Integer lockLeaseInMillis = 60000;
+    @NonNull
+    @Builder.Default
+    private final Integer taskPollIntervalInMillis = 5000;
+    @NonNull
+    @Builder.Default
+    private final Integer bufferPoolSize = 16;
+    @NonNull
+    @Builder.Default
+    private final Integer bufferSizeInBytes = 1024 * 1024;
+}
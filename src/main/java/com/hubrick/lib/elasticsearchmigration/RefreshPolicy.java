@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration;
+
+/**
+ * Defines when documents written by INDEX_DOCUMENT, UPDATE_DOCUMENT and DELETE_DOCUMENT migrations are made visible to search.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public enum RefreshPolicy {
+    /**
+     * Every write waits for the next refresh (refresh=wait_for).
+     */
+    PER_REQUEST,
+    /**
+     * The indices written by a version are refreshed once, before the version is marked as successful.
+     */
+    PER_VERSION,
+    /**
+     * The indices written during a run are refreshed once, after the last version has been applied.
+     */
+    PER_RUN
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration;
+
+/**
+ * Defines how changeset files are validated against the changeset schema.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public enum SchemaValidation {
+    /**
+     * Hand written validator specialized for the changeset schema.
+     */
+    BUILT_IN,
+    /**
+     * Generic json-schema-validator evaluating schema/yaml/schema.json.
+     */
+    JSON_SCHEMA
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.es;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+
+import java.time.Instant;
+
+/**
+ * The migration lock of an identifier. A lock without owner (e.g. one created by hand) is not a lease and is never
+ * taken over.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class LockEntry {
+
+    @JsonProperty(LockEntryMeta.OWNER_FIELD)
+    private String owner;
+    @NonNull
+    @JsonProperty(LockEntryMeta.CREATED_FIELD)
+    private Instant created;
+    @JsonProperty(LockEntryMeta.HEARTBEAT_FIELD)
+    private Instant heartbeat;
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.es;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+
+import java.time.Instant;
+
+/**
+ * Summary of all migrations of an identifier which were applied successfully. The document id is the identifier.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class MigrationFingerprint {
+
+    @NonNull
+    @JsonProperty(MigrationFingerprintMeta.IDENTIFIER_FIELD)
+    private String identifier;
+    @NonNull
+    @JsonProperty(MigrationFingerprintMeta.FINGERPRINT_FIELD)
+    private String fingerprint;
+    @NonNull
+    @JsonProperty(MigrationFingerprintMeta.VERSION_FIELD)
+    private int version;
+    @NonNull
+    @JsonProperty(MigrationFingerprintMeta.UPDATED_FIELD)
+    private Instant updated;
+}
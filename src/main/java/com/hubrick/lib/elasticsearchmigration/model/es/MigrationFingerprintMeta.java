@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.es;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@UtilityClass
+public class MigrationFingerprintMeta {
+
+    public static final String INDEX = "elasticsearch_migration_fingerprint";
+    public static final String TYPE = "fingerprint";
+
+    public static final String IDENTIFIER_FIELD = "identifier";
+    public static final String FINGERPRINT_FIELD = "fingerprint";
+    public static final String VERSION_FIELD = "version";
+    public static final String UPDATED_FIELD = "updated";
+}
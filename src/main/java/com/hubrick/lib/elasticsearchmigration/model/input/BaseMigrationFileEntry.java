@@ -39,7 +39,13 @@ import lombok.NoArgsConstructor;
         @JsonSubTypes.Type(value = UpdateMappingMigrationFileEntry.class, name = "UPDATE_MAPPING"),
         @JsonSubTypes.Type(value = IndexDocumentMigrationFileEntry.class, name = "INDEX_DOCUMENT"),
         @JsonSubTypes.Type(value = DeleteDocumentMigrationFileEntry.class, name = "DELETE_DOCUMENT"),
-        @JsonSubTypes.Type(value = UpdateDocumentMigrationFileEntry.class, name = "UPDATE_DOCUMENT")
+        @JsonSubTypes.Type(value = UpdateDocumentMigrationFileEntry.class, name = "UPDATE_DOCUMENT"),
+        @JsonSubTypes.Type(value = ReindexMigrationFileEntry.class, name = "REINDEX"),
+        @JsonSubTypes.Type(value = UpdateByQueryMigrationFileEntry.class, name = "UPDATE_BY_QUERY"),
+        @JsonSubTypes.Type(value = DeleteByQueryMigrationFileEntry.class, name = "DELETE_BY_QUERY"),
+        @JsonSubTypes.Type(value = AliasMigrationFileEntry.class, name = "ALIAS"),
+        @JsonSubTypes.Type(value = RebuildIndexMigrationFileEntry.class, name = "REBUILD_INDEX"),
+        @JsonSubTypes.Type(value = BulkFileMigrationFileEntry.class, name = "BULK_FILE")
 })
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.EXISTING_PROPERTY, visible = true, property = "type")
 public abstract class BaseMigrationFileEntry {
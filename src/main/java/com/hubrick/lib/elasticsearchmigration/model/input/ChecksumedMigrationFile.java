@@ -22,6 +22,8 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.NonNull;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -39,4 +41,15 @@ public class ChecksumedMigrationFile {
 
     @NonNull
     private Set<String> sha256Checksums;
+
+    /**
+     * Checksums of the data files the changeset references, keyed by resource path. They are already folded into the
+     * {@link #getSha256Checksums() checksums} of the changeset and only kept to verify the files once they are loaded.
+     */
+    @NonNull
+    private Map<String, String> resourceSha256Checksums = Collections.emptyMap();
+
+    public ChecksumedMigrationFile(final MigrationFile migrationFile, final Set<String> sha256Checksums) {
+        this(migrationFile, sha256Checksums, Collections.emptyMap());
+    }
 }
@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.input;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Getter
+@EqualsAndHashCode
+@AllArgsConstructor
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class DeleteByQueryMigrationFileEntry extends BaseMigrationFileEntry {
+
+    @NonNull
+    private Set<String> indices;
+    @NonNull
+    private String query;
+    @NonNull
+    private Optional<Conflicts> conflicts = Optional.empty();
+    @NonNull
+    private Optional<String> slices = Optional.empty();
+    @NonNull
+    private Optional<Double> requestsPerSecond = Optional.empty();
+}
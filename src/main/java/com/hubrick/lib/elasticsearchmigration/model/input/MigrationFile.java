@@ -24,6 +24,7 @@ import lombok.NonNull;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * @author Emir Dizdarevic
@@ -37,4 +38,6 @@ public class MigrationFile {
 
     @NonNull
     private List<BaseMigrationFileEntry> migrations = Collections.emptyList();
+    @NonNull
+    private Optional<BulkLoad> bulkLoad = Optional.empty();
 }
@@ -27,5 +27,11 @@ public enum MigrationType {
     UPDATE_MAPPING,
     INDEX_DOCUMENT,
     DELETE_DOCUMENT,
-    UPDATE_DOCUMENT
+    UPDATE_DOCUMENT,
+    REINDEX,
+    UPDATE_BY_QUERY,
+    DELETE_BY_QUERY,
+    ALIAS,
+    REBUILD_INDEX,
+    BULK_FILE
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends a list of alias actions (add, remove, remove_index) which elasticsearch applies atomically.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@EqualsAndHashCode
+@Getter
+@AllArgsConstructor
+public class AliasMigration implements Migration {
+
+    @NonNull
+    private final String definition;
+
+    /**
+     * Points the alias to the new index and deletes the old indices in one atomic step, readers never see the alias without index.
+     */
+    public static AliasMigration swap(final String alias, final String newIndex, final Set<String> oldIndices) {
+        final StringBuilder definition = new StringBuilder("{\"actions\":[");
+        definition.append("{\"add\":{\"index\":\"").append(JsonStringEncoder.getInstance().quoteAsString(newIndex))
+                .append("\",\"alias\":\"").append(JsonStringEncoder.getInstance().quoteAsString(alias)).append("\"}}");
+        for (String oldIndex : oldIndices) {
+            definition.append(",{\"remove_index\":{\"index\":\"").append(JsonStringEncoder.getInstance().quoteAsString(oldIndex)).append("\"}}");
+        }
+        return new AliasMigration(definition.append("]}").toString());
+    }
+
+    @Override
+    public Method getMethod() {
+        return Method.POST;
+    }
+
+    @Override
+    public String getUrl() {
+        return "/_aliases";
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        return ImmutableMap.of();
+    }
+
+    @Override
+    public Multimap<String, String> getHeaders() {
+        return HashMultimap.create();
+    }
+
+    @Override
+    public String getBody() {
+        return definition;
+    }
+}
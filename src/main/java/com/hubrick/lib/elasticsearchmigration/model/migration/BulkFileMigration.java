@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Loads the documents of an NDJSON classpath resource, which may be gzip compressed, into an index. The file is streamed
+ * and sent as a sequence of _bulk requests, so it never has to fit into memory.
+ * <p>
+ * Files prefixed with {@value #FILE_SYSTEM_PREFIX} are read from the file system instead of the classpath. Uncompressed files
+ * on the file system are memory mapped and sent in parallel.
+ * <p>
+ * This migration is never sent as is, the client reads the file and sends the _bulk requests itself. The checksum is the
+ * one computed when the changeset was parsed and, if present, the file has to still match it once it has been read.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@EqualsAndHashCode
+@Getter
+@AllArgsConstructor
+public class BulkFileMigration implements Migration {
+
+    public static final String FILE_SYSTEM_PREFIX = "file:";
+
+    @NonNull
+    private final String file;
+    @NonNull
+    private final String index;
+    @NonNull
+    private final String mapping;
+    /**
+     * Top level field of each document whose value is used as document id
+     */
+    @NonNull
+    private final Optional<String> idField;
+    @NonNull
+    private final Optional<OpType> opType;
+    @NonNull
+    private final Optional<String> sha256Checksum;
+
+    /**
+     * The path of a file on the file system, relative paths are resolved against the working directory
+     */
+    public Optional<Path> getPath() {
+        return getPath(file);
+    }
+
+    public static Optional<Path> getPath(final String file) {
+        return file.startsWith(FILE_SYSTEM_PREFIX) ? Optional.of(Paths.get(file.substring(FILE_SYSTEM_PREFIX.length()))) : Optional.empty();
+    }
+
+    @Override
+    public Method getMethod() {
+        return Method.POST;
+    }
+
+    @Override
+    public String getUrl() {
+        return "/_bulk";
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        return ImmutableMap.of();
+    }
+
+    @Override
+    public Multimap<String, String> getHeaders() {
+        return HashMultimap.create();
+    }
+
+    @Override
+    public String getBody() {
+        return "";
+    }
+}
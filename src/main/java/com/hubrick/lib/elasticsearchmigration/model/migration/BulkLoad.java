@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Index settings tuned for write throughput while a version is applied: no refreshes, no replicas and asynchronous translog
+ * durability. The previous settings are restored afterwards.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@EqualsAndHashCode
+@Getter
+@AllArgsConstructor
+public class BulkLoad {
+
+    /**
+     * The tuned indices, by default the indices written by the migrations of the version
+     */
+    @NonNull
+    private final Optional<Set<String>> indices;
+    /**
+     * Force merges the indices down to this number of segments before the replicas are restored
+     */
+    @NonNull
+    private final Optional<Integer> maxNumSegments;
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+import com.hubrick.lib.elasticsearchmigration.util.ByteBuffersEntity;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Sends a run of {@link DocumentMigration}s as one NDJSON _bulk request.
+ * <p>
+ * The body is encoded once, on first use, and shared by all entities of this migration, so a retried request doesn't encode
+ * it again. Items are encoded one by one instead of being joined into a single string first and the sources of
+ * {@link SlicedDocumentMigration}s are referenced without a copy, so bulks made of slices of a file are never decoded.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@EqualsAndHashCode(exclude = {"body", "buffers"})
+public class BulkMigration implements Migration {
+
+    private static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[]{'\n'}).asReadOnlyBuffer();
+
+    @Getter
+    private final List<DocumentMigration> migrations;
+    private final Optional<String> body;
+    private final Supplier<List<ByteBuffer>> buffers;
+
+    public BulkMigration(@NonNull final List<DocumentMigration> migrations) {
+        this(migrations, Optional.empty());
+    }
+
+    public BulkMigration(@NonNull final List<DocumentMigration> migrations, @NonNull final String body) {
+        this(migrations, Optional.of(body));
+    }
+
+    /**
+     * Creates a bulk migration whose body was already encoded by the caller. The buffers are sent as they are, so they must
+     * hold the items of the given migrations and stay unchanged as long as the migration is sent.
+     */
+    public BulkMigration(@NonNull final List<DocumentMigration> migrations, @NonNull final List<ByteBuffer> buffers) {
+        checkArgument(!migrations.isEmpty(), "migrations must not be empty");
+        this.migrations = ImmutableList.copyOf(migrations);
+        this.body = Optional.empty();
+        this.buffers = Suppliers.ofInstance(ImmutableList.copyOf(buffers));
+    }
+
+    private BulkMigration(final List<DocumentMigration> migrations, final Optional<String> body) {
+        checkArgument(!migrations.isEmpty(), "migrations must not be empty");
+        this.migrations = ImmutableList.copyOf(migrations);
+        this.body = body;
+        this.buffers = Suppliers.memoize(this::encode);
+    }
+
+    /**
+     * Renders the action line and, where the operation has one, the source line of a single bulk item.
+     * Both lines are newline terminated as required by the NDJSON format.
+     */
+    public static String toBulkItem(final DocumentMigration migration) {
+        final StringBuilder item = new StringBuilder(128 + migration.getSource().map(String::length).orElse(0));
+        item.append(toBulkAction(migration));
+
+        // Raw line breaks can only appear as whitespace between JSON tokens, so replacing them keeps the document intact
+        migration.getSource().ifPresent(source -> item.append(source.replace('\n', ' ').replace('\r', ' ')).append('\n'));
+        return item.toString();
+    }
+
+    /**
+     * Renders the newline terminated action line of a single bulk item.
+     */
+    public static String toBulkAction(final DocumentMigration migration) {
+        final StringBuilder action = new StringBuilder(128);
+        action.append("{\"").append(migration.getOpType().name().toLowerCase()).append("\":{");
+        action.append("\"_index\":\"").append(JsonStringEncoder.getInstance().quoteAsString(migration.getIndex())).append("\",");
+        action.append("\"_type\":\"").append(JsonStringEncoder.getInstance().quoteAsString(migration.getMapping())).append('"');
+        migration.getId().ifPresent(id -> action.append(",\"_id\":\"").append(JsonStringEncoder.getInstance().quoteAsString(id)).append('"'));
+        action.append("}}\n");
+        return action.toString();
+    }
+
+    /**
+     * The size of the encoded body in bytes.
+     */
+    public long getSizeInBytes() {
+        return buffers.get().stream().mapToLong(ByteBuffer::remaining).sum();
+    }
+
+    @Override
+    public HttpEntity getEntity() {
+        return new ByteBuffersEntity(buffers.get(), ContentType.APPLICATION_JSON);
+    }
+
+    private List<ByteBuffer> encode() {
+        if (body.isPresent()) {
+            return ImmutableList.of(ByteBuffer.wrap(body.get().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        final List<ByteBuffer> encoded = new ArrayList<>(migrations.size() * 3);
+        for (DocumentMigration migration : migrations) {
+            if (migration instanceof SlicedDocumentMigration) {
+                encoded.add(ByteBuffer.wrap(toBulkAction(migration).getBytes(StandardCharsets.UTF_8)));
+                encoded.add(((SlicedDocumentMigration) migration).getSourceBuffer());
+                encoded.add(NEWLINE);
+            } else {
+                encoded.add(ByteBuffer.wrap(toBulkItem(migration).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return Collections.unmodifiableList(encoded);
+    }
+
+    @Override
+    public Method getMethod() {
+        return Method.POST;
+    }
+
+    /**
+     * A resent body applies its items again. That's harmless for index and delete items with ids, and create items with
+     * ids fail with a conflict, which is recognized as the earlier attempt. Updates and documents without ids would be
+     * applied twice.
+     */
+    @Override
+    public boolean isIdempotent() {
+        return migrations.stream().allMatch(e -> e.getOpType() != OpType.UPDATE && e.getId().isPresent());
+    }
+
+    @Override
+    public String getUrl() {
+        return "/_bulk";
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        return ImmutableMap.of(
+                "refresh", "wait_for"
+        );
+    }
+
+    @Override
+    public Multimap<String, String> getHeaders() {
+        return HashMultimap.create();
+    }
+
+    @Override
+    public String getBody() {
+        return body.orElseGet(() -> migrations.stream().map(BulkMigration::toBulkItem).collect(Collectors.joining()));
+    }
+}
@@ -22,6 +22,7 @@ import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.Option;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NonNull;
 
 import java.util.Map;
@@ -32,6 +33,7 @@ import java.util.Optional;
  * @since 1.0.0
  */
 @EqualsAndHashCode
+@Getter
 @AllArgsConstructor
 public class CreateIndexMigration implements Migration {
 
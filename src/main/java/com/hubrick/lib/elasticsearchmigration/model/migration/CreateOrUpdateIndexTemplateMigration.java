@@ -20,6 +20,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NonNull;
 
 import java.util.Map;
@@ -29,6 +30,7 @@ import java.util.Map;
  * @since 1.0.0
  */
 @EqualsAndHashCode
+@Getter
 @AllArgsConstructor
 public class CreateOrUpdateIndexTemplateMigration implements Migration {
 
@@ -23,6 +23,7 @@ import lombok.EqualsAndHashCode;
 import lombok.NonNull;
 
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * @author Emir Dizdarevic
@@ -30,7 +31,7 @@ import java.util.Map;
  */
 @EqualsAndHashCode
 @AllArgsConstructor
-public class DeleteDocumentMigration implements Migration {
+public class DeleteDocumentMigration implements DocumentMigration {
 
     @NonNull
     private final String index;
@@ -39,6 +40,31 @@ public class DeleteDocumentMigration implements Migration {
     @NonNull
     private final String id;
 
+    @Override
+    public String getIndex() {
+        return index;
+    }
+
+    @Override
+    public String getMapping() {
+        return mapping;
+    }
+
+    @Override
+    public Optional<String> getId() {
+        return Optional.of(id);
+    }
+
+    @Override
+    public OpType getOpType() {
+        return OpType.DELETE;
+    }
+
+    @Override
+    public Optional<String> getSource() {
+        return Optional.empty();
+    }
+
     @Override
     public Method getMethod() {
         return Method.DELETE;
@@ -31,7 +31,7 @@ import java.util.Optional;
  */
 @EqualsAndHashCode
 @AllArgsConstructor
-public class IndexDocumentMigration implements Migration {
+public class IndexDocumentMigration implements DocumentMigration {
 
     @NonNull
     private final String index;
@@ -44,11 +44,44 @@ public class IndexDocumentMigration implements Migration {
     @NonNull
     private final String definition;
 
+    @Override
+    public String getIndex() {
+        return index;
+    }
+
+    @Override
+    public String getMapping() {
+        return mapping;
+    }
+
+    @Override
+    public Optional<String> getId() {
+        return id;
+    }
+
+    @Override
+    public OpType getOpType() {
+        return opType.orElse(OpType.CREATE);
+    }
+
+    @Override
+    public Optional<String> getSource() {
+        return Optional.of(definition);
+    }
+
     @Override
     public Method getMethod() {
         return Method.PUT;
     }
 
+    /**
+     * Without an id every request creates another document with a generated id.
+     */
+    @Override
+    public boolean isIdempotent() {
+        return id.isPresent();
+    }
+
     @Override
     public String getUrl() {
         return "/" + index + "/" + mapping + "/" + id.orElse("");
@@ -57,7 +90,7 @@ public class IndexDocumentMigration implements Migration {
     @Override
     public Map<String, String> getParameters() {
         return ImmutableMap.of(
-                "op_type", opType.map(e -> e.name().toLowerCase()).orElse(OpType.CREATE.name().toLowerCase()),
+                "op_type", getOpType().name().toLowerCase(),
                 "refresh", "wait_for"
         );
     }
@@ -15,8 +15,14 @@
  */
 package com.hubrick.lib.elasticsearchmigration.model.migration;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
+import com.hubrick.lib.elasticsearchmigration.util.ByteBuffersEntity;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
@@ -30,4 +36,21 @@ public interface Migration {
     Map<String, String> getParameters();
     Multimap<String, String> getHeaders();
     String getBody();
+
+    /**
+     * Whether sending the request twice has the same effect as sending it once. Only idempotent migrations are retried
+     * after failures which leave open whether the request was applied, like timeouts or 502 and 504 responses. By
+     * default every request but POST is idempotent.
+     */
+    default boolean isIdempotent() {
+        return getMethod() != Method.POST;
+    }
+
+    /**
+     * The body as repeatable entity which is written to the connection without further copies. By default the body is
+     * encoded on every call, migrations which hold their body as bytes hand them out directly.
+     */
+    default HttpEntity getEntity() {
+        return new ByteBuffersEntity(ImmutableList.of(ByteBuffer.wrap(getBody().getBytes(StandardCharsets.UTF_8))), ContentType.APPLICATION_JSON);
+    }
 }
@@ -15,16 +15,23 @@
  */
 package com.hubrick.lib.elasticsearchmigration.model.migration;
 
+import com.google.common.base.Suppliers;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
+ * The {@link #getSha256Checksums() checksums} are the ones known without parsing the changeset. Changesets which are
+ * loaded lazily can resolve further checksums (e.g. the one of the normalized file) on demand through
+ * {@link #getAllSha256Checksums()}.
+ *
  * @author Emir Dizdarevic
  * @since 1.0.0
  */
@@ -34,14 +41,29 @@ public class MigrationMeta {
     private final Set<String> sha256Checksums;
     private final int version;
     private final String name;
+    @Getter(AccessLevel.NONE)
+    private final Supplier<Set<String>> allSha256Checksums;
 
     public MigrationMeta(final Set<String> sha256Checksums, final int version, final String name) {
+        this(sha256Checksums, version, name, () -> sha256Checksums);
+    }
+
+    public MigrationMeta(final Set<String> sha256Checksums, final int version, final String name, final Supplier<Set<String>> allSha256Checksums) {
         checkNotNull(sha256Checksums, "sha256Checksums must not be null");
         checkArgument(sha256Checksums.stream().map(e -> StringUtils.trimToNull(e) != null).reduce(true, (a, b) -> a && b), "sha256Checksum must not be null");
         checkNotNull(StringUtils.trimToNull(name), "name must not be null");
+        checkNotNull(allSha256Checksums, "allSha256Checksums must not be null");
 
         this.sha256Checksums = sha256Checksums;
         this.version = version;
         this.name = name;
+        this.allSha256Checksums = Suppliers.memoize(allSha256Checksums::get);
+    }
+
+    /**
+     * @return all checksums of the changeset, which may require it to be parsed
+     */
+    public Set<String> getAllSha256Checksums() {
+        return allSha256Checksums.get();
     }
 }
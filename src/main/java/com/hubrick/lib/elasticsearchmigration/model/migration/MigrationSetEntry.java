@@ -15,22 +15,54 @@
  */
 package com.hubrick.lib.elasticsearchmigration.model.migration;
 
-import lombok.AllArgsConstructor;
+import com.google.common.base.Suppliers;
 import lombok.Getter;
 import lombok.NonNull;
 
 import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
+ * The migrations of an entry can be supplied lazily, they are then only built once {@link #getMigration()} is called
+ * for a version which actually needs to be applied.
+ *
  * @author Emir Dizdarevic
  * @since 1.0.0
  */
-@Getter
-@AllArgsConstructor
 public class MigrationSetEntry {
 
-    @NonNull
-    private final List<Migration> migration;
-    @NonNull
+    private final Supplier<List<Migration>> migration;
+    private final Supplier<Optional<BulkLoad>> bulkLoad;
+    @Getter
     private final MigrationMeta migrationMeta;
+
+    public MigrationSetEntry(@NonNull final List<Migration> migration, @NonNull final MigrationMeta migrationMeta) {
+        this.migration = () -> migration;
+        this.bulkLoad = Optional::empty;
+        this.migrationMeta = migrationMeta;
+    }
+
+    public MigrationSetEntry(@NonNull final Supplier<List<Migration>> migration, @NonNull final MigrationMeta migrationMeta) {
+        this(migration, Optional::empty, migrationMeta);
+    }
+
+    public MigrationSetEntry(@NonNull final Supplier<List<Migration>> migration,
+                             @NonNull final Supplier<Optional<BulkLoad>> bulkLoad,
+                             @NonNull final MigrationMeta migrationMeta) {
+        this.migration = Suppliers.memoize(migration::get);
+        this.bulkLoad = Suppliers.memoize(bulkLoad::get);
+        this.migrationMeta = migrationMeta;
+    }
+
+    public List<Migration> getMigration() {
+        return migration.get();
+    }
+
+    /**
+     * @return the index tuning the version asks for while its migrations are applied
+     */
+    public Optional<BulkLoad> getBulkLoad() {
+        return bulkLoad.get();
+    }
 }
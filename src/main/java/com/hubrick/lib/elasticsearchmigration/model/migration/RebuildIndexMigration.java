@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Rebuilds the index behind an alias without downtime: a new index {@code <alias>_v<N>} is created from the definition,
+ * filled by reindexing the indices the alias points to, optionally warmed up and then swapped in for the old indices with
+ * a single atomic alias update.
+ * <p>
+ * The request of this migration lists every index whose name starts with the alias together with its aliases. The client
+ * derives the version of the new index and the indices to replace from the response and carries out the remaining steps.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@EqualsAndHashCode
+@Getter
+@AllArgsConstructor
+public class RebuildIndexMigration implements Migration {
+
+    @NonNull
+    private final String alias;
+    @NonNull
+    private final String definition;
+    @NonNull
+    private final Optional<String> query;
+    @NonNull
+    private final Optional<String> script;
+    @NonNull
+    private final String slices;
+    @NonNull
+    private final Optional<Double> requestsPerSecond;
+    /**
+     * Search request body which is run against the new index before it goes live
+     */
+    @NonNull
+    private final Optional<String> warmup;
+
+    public String getIndexName(final int version) {
+        return alias + "_v" + version;
+    }
+
+    @Override
+    public Method getMethod() {
+        return Method.GET;
+    }
+
+    @Override
+    public String getUrl() {
+        return "/" + alias + "*/_alias";
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        return ImmutableMap.of(
+                "allow_no_indices", "true",
+                "expand_wildcards", "all"
+        );
+    }
+
+    @Override
+    public Multimap<String, String> getHeaders() {
+        return HashMultimap.create();
+    }
+
+    @Override
+    public String getBody() {
+        return "";
+    }
+}
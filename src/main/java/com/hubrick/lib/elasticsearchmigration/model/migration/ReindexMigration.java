@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.google.common.base.Splitter;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Copies the documents of the source indices, optionally filtered by a query and transformed by a script, into the
+ * destination index.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@EqualsAndHashCode
+@Getter
+@AllArgsConstructor
+public class ReindexMigration implements TaskMigration {
+
+    @NonNull
+    private final String source;
+    @NonNull
+    private final String destination;
+    @NonNull
+    private final Optional<String> query;
+    @NonNull
+    private final Optional<String> script;
+    @NonNull
+    private final String slices;
+    @NonNull
+    private final Optional<Double> requestsPerSecond;
+
+    @Override
+    public Set<String> getSourceIndices() {
+        return ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(source));
+    }
+
+    @Override
+    public Set<String> getTargetIndices() {
+        return ImmutableSet.of(destination);
+    }
+
+    @Override
+    public ReindexMigration withSlices(final String slices) {
+        return new ReindexMigration(source, destination, query, script, slices, requestsPerSecond);
+    }
+
+    @Override
+    public Method getMethod() {
+        return Method.POST;
+    }
+
+    @Override
+    public String getUrl() {
+        return "/_reindex";
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        final ImmutableMap.Builder<String, String> parameters = ImmutableMap.<String, String>builder()
+                .put("wait_for_completion", "false")
+                .put("slices", slices)
+                .put("refresh", "true");
+        requestsPerSecond.ifPresent(e -> parameters.put("requests_per_second", e < 0 ? "-1" : String.valueOf(e)));
+        return parameters.build();
+    }
+
+    @Override
+    public Multimap<String, String> getHeaders() {
+        return HashMultimap.create();
+    }
+
+    @Override
+    public String getBody() {
+        final StringBuilder body = new StringBuilder();
+        body.append("{\"source\":{\"index\":\"").append(JsonStringEncoder.getInstance().quoteAsString(source)).append('"');
+        query.ifPresent(e -> body.append(",\"query\":").append(e));
+        body.append("},\"dest\":{\"index\":\"").append(JsonStringEncoder.getInstance().quoteAsString(destination)).append("\"}");
+        script.ifPresent(e -> body.append(",\"script\":").append(e));
+        return body.append('}').toString();
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+import com.hubrick.lib.elasticsearchmigration.util.ByteBuffersEntity;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Indexes a document whose source is a slice of a larger buffer, e.g. one line of a memory mapped file. As an item of
+ * a {@link BulkMigration} or on its own the slice is sent as is, the source is only decoded if it's requested as string.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@EqualsAndHashCode
+public class SlicedDocumentMigration implements DocumentMigration {
+
+    @NonNull
+    private final String index;
+    @NonNull
+    private final String mapping;
+    @NonNull
+    private final Optional<String> id;
+    @NonNull
+    private final Optional<OpType> opType;
+    @NonNull
+    private final ByteBuffer source;
+
+    public SlicedDocumentMigration(@NonNull final String index,
+                                   @NonNull final String mapping,
+                                   @NonNull final Optional<String> id,
+                                   @NonNull final Optional<OpType> opType,
+                                   @NonNull final ByteBuffer source) {
+        this.index = index;
+        this.mapping = mapping;
+        this.id = id;
+        this.opType = opType;
+        this.source = source.asReadOnlyBuffer();
+    }
+
+    @Override
+    public String getIndex() {
+        return index;
+    }
+
+    @Override
+    public String getMapping() {
+        return mapping;
+    }
+
+    @Override
+    public Optional<String> getId() {
+        return id;
+    }
+
+    @Override
+    public OpType getOpType() {
+        return opType.orElse(OpType.CREATE);
+    }
+
+    @Override
+    public Optional<String> getSource() {
+        return Optional.of(getBody());
+    }
+
+    /**
+     * The source without a copy, the returned buffer can be consumed without affecting this migration.
+     */
+    public ByteBuffer getSourceBuffer() {
+        return source.duplicate();
+    }
+
+    @Override
+    public Method getMethod() {
+        return Method.PUT;
+    }
+
+    /**
+     * Without an id every request creates another document with a generated id.
+     */
+    @Override
+    public boolean isIdempotent() {
+        return id.isPresent();
+    }
+
+    @Override
+    public String getUrl() {
+        return "/" + index + "/" + mapping + "/" + id.orElse("");
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        return ImmutableMap.of(
+                "op_type", getOpType().name().toLowerCase(),
+                "refresh", "wait_for"
+        );
+    }
+
+    @Override
+    public Multimap<String, String> getHeaders() {
+        return HashMultimap.create();
+    }
+
+    @Override
+    public HttpEntity getEntity() {
+        return new ByteBuffersEntity(ImmutableList.of(source), ContentType.APPLICATION_JSON);
+    }
+
+    @Override
+    public String getBody() {
+        return StandardCharsets.UTF_8.decode(source.duplicate()).toString();
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import java.util.Set;
+
+/**
+ * A migration which elasticsearch runs as background task. It's submitted with wait_for_completion=false and the client
+ * polls the task until it completes, so the runtime of the task is not bound by any HTTP timeout.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public interface TaskMigration extends Migration {
+
+    /**
+     * Lets elasticsearch pick one slice per shard
+     */
+    String AUTO_SLICES = "auto";
+    /**
+     * Lets the client derive the slice count from the number of shards of the source indices
+     */
+    String SHARD_SLICES = "shards";
+
+    /**
+     * @return the indices the task reads from
+     */
+    Set<String> getSourceIndices();
+
+    /**
+     * @return the indices the task writes to
+     */
+    Set<String> getTargetIndices();
+
+    /**
+     * @return a positive number, {@link #AUTO_SLICES} or {@link #SHARD_SLICES}
+     */
+    String getSlices();
+
+    TaskMigration withSlices(String slices);
+}
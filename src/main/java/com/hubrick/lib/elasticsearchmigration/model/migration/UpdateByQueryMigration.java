@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimap;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Updates the documents of the indices which match the query, or all documents without query, typically with a script.
+ * Used to backfill a field after its mapping was added.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@EqualsAndHashCode
+@Getter
+@AllArgsConstructor
+public class UpdateByQueryMigration implements TaskMigration {
+
+    @NonNull
+    private final Set<String> indices;
+    @NonNull
+    private final Optional<String> query;
+    @NonNull
+    private final Optional<String> script;
+    @NonNull
+    private final Conflicts conflicts;
+    @NonNull
+    private final String slices;
+    @NonNull
+    private final Optional<Double> requestsPerSecond;
+
+    @Override
+    public Set<String> getSourceIndices() {
+        return indices;
+    }
+
+    @Override
+    public Set<String> getTargetIndices() {
+        return indices;
+    }
+
+    @Override
+    public UpdateByQueryMigration withSlices(final String slices) {
+        return new UpdateByQueryMigration(indices, query, script, conflicts, slices, requestsPerSecond);
+    }
+
+    @Override
+    public Method getMethod() {
+        return Method.POST;
+    }
+
+    @Override
+    public String getUrl() {
+        return "/" + Joiner.on(",").join(indices) + "/_update_by_query";
+    }
+
+    @Override
+    public Map<String, String> getParameters() {
+        final ImmutableMap.Builder<String, String> parameters = ImmutableMap.<String, String>builder()
+                .put("wait_for_completion", "false")
+                .put("conflicts", conflicts.name().toLowerCase())
+                .put("slices", slices)
+                .put("refresh", "true");
+        requestsPerSecond.ifPresent(e -> parameters.put("requests_per_second", e < 0 ? "-1" : String.valueOf(e)));
+        return parameters.build();
+    }
+
+    @Override
+    public Multimap<String, String> getHeaders() {
+        return HashMultimap.create();
+    }
+
+    @Override
+    public String getBody() {
+        final StringBuilder body = new StringBuilder("{");
+        query.ifPresent(e -> body.append("\"query\":").append(e));
+        script.ifPresent(e -> body.append(query.isPresent() ? "," : "").append("\"script\":").append(e));
+        return body.append('}').toString();
+    }
+}
@@ -23,6 +23,7 @@ import lombok.EqualsAndHashCode;
 import lombok.NonNull;
 
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * @author Emir Dizdarevic
@@ -30,7 +31,7 @@ import java.util.Map;
  */
 @EqualsAndHashCode
 @AllArgsConstructor
-public class UpdateDocumentMigration implements Migration {
+public class UpdateDocumentMigration implements DocumentMigration {
 
     @NonNull
     private final String index;
@@ -41,6 +42,31 @@ public class UpdateDocumentMigration implements Migration {
     @NonNull
     private final String definition;
 
+    @Override
+    public String getIndex() {
+        return index;
+    }
+
+    @Override
+    public String getMapping() {
+        return mapping;
+    }
+
+    @Override
+    public Optional<String> getId() {
+        return Optional.of(id);
+    }
+
+    @Override
+    public OpType getOpType() {
+        return OpType.UPDATE;
+    }
+
+    @Override
+    public Optional<String> getSource() {
+        return Optional.of(definition);
+    }
+
     @Override
     public Method getMethod() {
         return Method.POST;
@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NonNull;
 
 import java.util.Map;
@@ -31,6 +32,7 @@ import java.util.Set;
  * @since 1.0.0
  */
 @EqualsAndHashCode
+@Getter
 @AllArgsConstructor
 public class UpdateMappingMigration implements Migration {
 
@@ -17,6 +17,8 @@ package com.hubrick.lib.elasticsearchmigration.service;
 
 import com.hubrick.lib.elasticsearchmigration.model.input.ChecksumedMigrationFile;
 
+import java.util.Set;
+
 /**
  * @author Emir Dizdarevic
  * @since 1.0.0
@@ -24,4 +26,12 @@ import com.hubrick.lib.elasticsearchmigration.model.input.ChecksumedMigrationFil
 public interface Parser {
 
     ChecksumedMigrationFile parse(final String path);
+
+    /**
+     * Checksums which identify the file without parsing it. They have to be a subset of the checksums returned by
+     * {@link #parse(String)}.
+     */
+    default Set<String> getFileChecksums(final String path) {
+        return parse(path).getSha256Checksums();
+    }
 }
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the changeset resources of a base package on the classpath.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public interface ResourceScanner {
+
+    /**
+     * @param basePackage  the package to look in, including sub packages
+     * @param fileNamePattern pattern the file name (without the path) has to match
+     * @return the classpath resource paths of the matching files
+     */
+    Set<String> getResources(final String basePackage, final Pattern fileNamePattern);
+}
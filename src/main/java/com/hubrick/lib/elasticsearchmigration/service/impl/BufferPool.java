@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded pool of direct buffers of equal size. At most {@code poolSize} direct buffers are ever allocated, they are
+ * reused once released and never freed. When all of them are taken, heap buffers are handed out instead and left to the
+ * garbage collector on release, so a caller never waits for a buffer and direct memory stays bounded.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+class BufferPool {
+
+    private final int poolSize;
+    private final int bufferSize;
+    private final Deque<ByteBuffer> idle = new ArrayDeque<>();
+    private int allocated;
+
+    BufferPool(final int poolSize, final int bufferSize) {
+        checkArgument(poolSize >= 0, "poolSize must not be negative");
+        checkArgument(bufferSize > 0, "bufferSize must be positive");
+        this.poolSize = poolSize;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} bytes
+     */
+    synchronized ByteBuffer acquire() {
+        if (!idle.isEmpty()) {
+            return idle.pop();
+        }
+        if (allocated < poolSize) {
+            allocated++;
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Takes back a buffer returned by {@link #acquire()}. The buffer must not be used by the caller afterwards.
+     */
+    synchronized void release(final ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            buffer.clear();
+            idle.push(buffer);
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    synchronized int getIdleCount() {
+        return idle.size();
+    }
+}
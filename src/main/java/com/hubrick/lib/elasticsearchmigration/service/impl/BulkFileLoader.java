@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.ByteStreams;
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkFileMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.SlicedDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.util.HashUtils;
+import com.hubrick.lib.elasticsearchmigration.util.ResourceUtils;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Carries out a {@link BulkFileMigration}. The file is read line by line and every line is sent as a document of a _bulk
+ * request, the requests are cut along the limits of the {@link BulkConfig}. Reading blocks and therefore runs on its own
+ * executor, reading stops whenever the window of requests in flight is full. So at no point more than the window's
+ * worth of requests is held in memory, regardless of the size of the file. The lines are kept as the bytes read from
+ * the file and sent as {@link SlicedDocumentMigration}s, they are never decoded.
+ * <p>
+ * The file is checksummed while it's read. Gzip compressed files are recognized by their magic bytes and checksummed
+ * in their compressed form, just like when the changeset was parsed. Uncompressed files on the file system are loaded by
+ * the {@link MappedFileLoader} instead.
+ * <p>
+ * Documents which take their id from the file are sent one request after another. Concurrent requests could store
+ * the lines of a duplicated id in any order, sent in sequence the last line of the file wins like on a single request.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+class BulkFileLoader {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int INITIAL_RUN_BUFFER_SIZE = 64 * 1024;
+
+    private final BulkConfig bulkConfig;
+    private final Function<BulkMigration, CompletableFuture<Void>> bulkApplier;
+    private final IntSupplier maxInFlightRequests;
+    private final Executor executor;
+    private final MappedFileLoader mappedFileLoader;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    BulkFileLoader(@NonNull final BulkConfig bulkConfig,
+                   @NonNull final Function<BulkMigration, CompletableFuture<Void>> bulkApplier,
+                   @NonNull final IntSupplier maxInFlightRequests,
+                   @NonNull final Executor executor) {
+        this.bulkConfig = bulkConfig;
+        this.bulkApplier = bulkApplier;
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.executor = executor;
+        this.mappedFileLoader = new MappedFileLoader(bulkConfig, bulkApplier, maxInFlightRequests, executor);
+    }
+
+    /**
+     * Classpath resources are opened on the calling thread, so they are looked up with the same class loader as the changeset.
+     */
+    CompletableFuture<Void> load(final BulkFileMigration migration) {
+        final Optional<Path> path = migration.getPath();
+        if (path.isPresent()) {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    load(migration, path.get());
+                } catch (IOException e) {
+                    throw new MigrationFailedException("IO Exception while loading " + migration.getFile(), e);
+                }
+            }, executor);
+        }
+
+        final InputStream inputStream = ResourceUtils.getResourceAsStream(migration.getFile(), this);
+        if (inputStream == null) {
+            throw new MigrationFailedException("Resource " + migration.getFile() + " not found");
+        }
+
+        return CompletableFuture.runAsync(() -> {
+            try (final InputStream in = inputStream) {
+                load(migration, in);
+            } catch (IOException e) {
+                throw new MigrationFailedException("IO Exception while loading " + migration.getFile(), e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Loads a file from the file system. The whole file is verified upfront, so nothing is written if it changed since the
+     * changeset was parsed. Uncompressed files are handed to the {@link MappedFileLoader}, compressed ones are streamed.
+     *
+     * @return the number of documents sent
+     */
+    long load(final BulkFileMigration migration, final Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            verifyChecksum(migration, HashUtils.hashSha256(channel));
+
+            final ByteBuffer magic = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(magic, 0);
+            if (magic.position() == 2 && (magic.getShort(0) & 0xffff) == GZIP_MAGIC) {
+                return load(migration, Channels.newInputStream(channel), false);
+            }
+            return mappedFileLoader.load(migration, channel);
+        }
+    }
+
+    /**
+     * Sends the documents of the stream and blocks until all of them are stored.
+     *
+     * @return the number of documents sent
+     */
+    long load(final BulkFileMigration migration, final InputStream inputStream) throws IOException {
+        return load(migration, inputStream, true);
+    }
+
+    private long load(final BulkFileMigration migration, final InputStream inputStream, final boolean verifyChecksum) throws IOException {
+        final DigestInputStream digestInputStream = new DigestInputStream(inputStream, HashUtils.createSha256Digest());
+        final BufferedInputStream bufferedInputStream = new BufferedInputStream(digestInputStream);
+        final InputStream content = decompress(bufferedInputStream);
+        final Run run = new Run(migration);
+
+        try {
+            final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = content.read(readBuffer)) != -1) {
+                int offset = 0;
+                while (offset < read) {
+                    final int newline = indexOf(readBuffer, (byte) '\n', offset, read);
+                    run.append(readBuffer, offset, (newline < 0 ? read : newline) - offset);
+                    if (newline < 0) {
+                        break;
+                    }
+                    run.endLine();
+                    offset = newline + 1;
+                }
+            }
+            final long documents = run.finish();
+
+            // Trailing bytes after the last gzip member are part of the checksum as well
+            ByteStreams.exhaust(bufferedInputStream);
+            if (verifyChecksum) {
+                verifyChecksum(migration, HashUtils.toHex(digestInputStream.getMessageDigest().digest()));
+            }
+            log.info("Loaded " + documents + " documents from " + migration.getFile() + " into " + migration.getIndex());
+            return documents;
+        } catch (RuntimeException | IOException e) {
+            // Requests which are already on the wire can't be aborted, they are awaited before reporting the failure
+            run.getInFlight().forEach(future -> future.handle((result, throwable) -> null).join());
+            throw e;
+        }
+    }
+
+    private static int indexOf(final byte[] bytes, final byte value, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void join(final CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MigrationFailedException("Error performing migration", e.getCause());
+        }
+    }
+
+    private InputStream decompress(final BufferedInputStream inputStream) throws IOException {
+        inputStream.mark(2);
+        final int magic = inputStream.read() | (inputStream.read() << 8);
+        inputStream.reset();
+        return magic == GZIP_MAGIC ? new GZIPInputStream(inputStream) : inputStream;
+    }
+
+    /**
+     * Reads the value of the id field from the top level of the document, nested fields of the same name are skipped.
+     */
+    static Optional<String> readId(final BulkFileMigration migration, final JsonParser jsonParser, final String location) throws IOException {
+        if (!migration.getIdField().isPresent()) {
+            return Optional.empty();
+        }
+
+        final String idField = migration.getIdField().get();
+        try (final JsonParser parser = jsonParser) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new MigrationFailedException(location + " of " + migration.getFile() + " is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final boolean matches = idField.equals(parser.getCurrentName());
+                final JsonToken value = parser.nextToken();
+                if (matches && value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+                    return Optional.of(parser.getText());
+                }
+                parser.skipChildren();
+            }
+        }
+        throw new MigrationFailedException(location + " of " + migration.getFile() + " has no value for id field " + idField);
+    }
+
+    /**
+     * The number of requests which may be in flight at once while loading the file.
+     */
+    static int getMaxInFlightRequests(final BulkFileMigration migration, final IntSupplier maxInFlightRequests) {
+        return migration.getIdField().isPresent() ? 1 : Math.max(1, maxInFlightRequests.getAsInt());
+    }
+
+    static boolean isBlank(final ByteBuffer line) {
+        for (int i = line.position(); i < line.limit(); i++) {
+            final byte b = line.get(i);
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void verifyChecksum(final BulkFileMigration migration, final String sha256Checksum) {
+        if (migration.getSha256Checksum().isPresent() && !migration.getSha256Checksum().get().equals(sha256Checksum)) {
+            throw new MigrationFailedException("File " + migration.getFile() + " changed after the changeset was checksummed. Expected sha256 "
+                    + migration.getSha256Checksum().get() + " but loaded " + sha256Checksum);
+        }
+    }
+
+    /**
+     * Collects the lines of the current _bulk request. The bytes of the lines are appended to a buffer which belongs to
+     * the request and the documents are slices of it, so the file is never decoded. Once the request is sent its buffer
+     * isn't written anymore, the next request starts a new one.
+     */
+    private class Run {
+
+        private final BulkFileMigration migration;
+        @Getter
+        private final Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        private final List<DocumentMigration> migrations = new ArrayList<>();
+        private byte[] buffer = new byte[INITIAL_RUN_BUFFER_SIZE];
+        private int length;
+        private int lineStart;
+        private long sizeInBytes;
+        private long lineNumber;
+        private long documents;
+
+        Run(final BulkFileMigration migration) {
+            this.migration = migration;
+        }
+
+        void append(final byte[] bytes, final int offset, final int count) {
+            if (length + count > buffer.length) {
+                // Documents already sliced keep the old array
+                buffer = Arrays.copyOf(buffer, Math.max(length + count, buffer.length * 2));
+            }
+            System.arraycopy(bytes, offset, buffer, length, count);
+            length += count;
+        }
+
+        void endLine() throws IOException {
+            lineNumber++;
+            int lineEnd = length;
+            if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            final ByteBuffer line = ByteBuffer.wrap(buffer, lineStart, lineEnd - lineStart).slice();
+            lineStart = length;
+            if (isBlank(line)) {
+                return;
+            }
+
+            final DocumentMigration documentMigration = new SlicedDocumentMigration(
+                    migration.getIndex(),
+                    migration.getMapping(),
+                    readId(migration, jsonFactory.createParser(buffer, line.arrayOffset(), line.remaining()), "Line " + lineNumber),
+                    migration.getOpType(),
+                    line
+            );
+            if (!migrations.isEmpty() && (migrations.size() >= bulkConfig.getMaxActions() || sizeInBytes + line.remaining() > bulkConfig.getMaxSizeInBytes())) {
+                send();
+            }
+            migrations.add(documentMigration);
+            sizeInBytes += line.remaining();
+            documents++;
+        }
+
+        long finish() {
+            if (length > lineStart) {
+                try {
+                    endLine();
+                } catch (IOException e) {
+                    throw new MigrationFailedException("IO Exception while loading " + migration.getFile(), e);
+                }
+            }
+            if (!migrations.isEmpty()) {
+                send();
+            }
+            while (!inFlight.isEmpty()) {
+                join(inFlight.poll());
+            }
+            return documents;
+        }
+
+        private void send() {
+            while (inFlight.size() >= getMaxInFlightRequests(migration, maxInFlightRequests)) {
+                join(inFlight.poll());
+            }
+            inFlight.add(bulkApplier.apply(new BulkMigration(migrations)));
+            migrations.clear();
+            sizeInBytes = 0;
+            buffer = new byte[INITIAL_RUN_BUFFER_SIZE];
+            length = 0;
+            lineStart = 0;
+        }
+    }
+}
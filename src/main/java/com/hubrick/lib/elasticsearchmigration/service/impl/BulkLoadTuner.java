@@ -0,0 +1,338 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.es.BulkLoadEntry;
+import com.hubrick.lib.elasticsearchmigration.model.es.BulkLoadEntryMeta;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkLoad;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkFileMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.TaskMigration;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Applies the settings of a {@link BulkLoad} to a set of indices and restores the previous ones afterwards.
+ * <p>
+ * Settings which were not set explicitly are restored as null, which resets them to their default. After the restore the
+ * health of the indices is awaited until it's back at the status it had before, i.e. until restored replicas are recovered.
+ * Each health request waits at most {@code healthTimeoutInMillis}, so no request is cut by an HTTP timeout.
+ * <p>
+ * The saved settings are stored as a {@link BulkLoadEntry} before any index is tuned and the entry is deleted once they
+ * are restored. An entry which is still there on the next run belongs to a run which did not get to restore the settings,
+ * they are restored from the entry rather than taken for the settings of the indices.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+class BulkLoadTuner {
+
+    static final String REFRESH_INTERVAL = "index.refresh_interval";
+    static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    static final String TRANSLOG_DURABILITY = "index.translog.durability";
+
+    private static final Map<String, String> BULK_LOAD_SETTINGS = ImmutableMap.of(
+            REFRESH_INTERVAL, "-1",
+            NUMBER_OF_REPLICAS, "0",
+            TRANSLOG_DURABILITY, "async"
+    );
+    private static final Map<String, String> LENIENT_PARAMETERS = ImmutableMap.of(
+            "ignore_unavailable", "true",
+            "allow_no_indices", "true"
+    );
+
+    private final RestClient restClient;
+    private final ObjectMapper objectMapper;
+    private final RequestRetrier requestRetrier;
+    private final String identifier;
+    private final long healthTimeoutInMillis;
+
+    BulkLoadTuner(@NonNull final RestClient restClient,
+                  @NonNull final ObjectMapper objectMapper,
+                  @NonNull final RequestRetrier requestRetrier,
+                  @NonNull final String identifier,
+                  final long healthTimeoutInMillis) {
+        this.restClient = restClient;
+        this.objectMapper = objectMapper;
+        this.requestRetrier = requestRetrier;
+        this.identifier = identifier;
+        this.healthTimeoutInMillis = healthTimeoutInMillis;
+    }
+
+    /**
+     * @return the indices written by document and task migrations, the default targets of a {@link BulkLoad}
+     */
+    static Set<String> getWrittenIndices(final List<Migration> migrations) {
+        final ImmutableSet.Builder<String> indices = ImmutableSet.builder();
+        for (Migration migration : migrations) {
+            if (migration instanceof DocumentMigration) {
+                indices.add(((DocumentMigration) migration).getIndex());
+            } else if (migration instanceof TaskMigration) {
+                indices.addAll(((TaskMigration) migration).getTargetIndices());
+            } else if (migration instanceof BulkFileMigration) {
+                indices.add(((BulkFileMigration) migration).getIndex());
+            }
+        }
+        return indices.build();
+    }
+
+    /**
+     * Saves the current settings and health of the indices and applies the bulk load settings. Indices which don't exist
+     * yet are tuned by {@link Session#tuneCreatedIndex(String)} once they are created.
+     */
+    Session tune(final Set<String> indices) {
+        final String names = Joiner.on(",").join(indices);
+        final Map<String, Map<String, String>> savedSettings = getSettings(names);
+        // Asking for the health of a missing index would block until it's created
+        final String status = savedSettings.isEmpty() ? "red" : getHealthStatus(Joiner.on(",").join(savedSettings.keySet()));
+        log.info("Applying bulk load settings to " + savedSettings.keySet() + ". Saved settings: " + savedSettings);
+        if (!savedSettings.isEmpty()) {
+            writeEntry(savedSettings);
+        }
+        putSettings(names, BULK_LOAD_SETTINGS);
+        return new Session(indices, names, savedSettings, status);
+    }
+
+    /**
+     * Restores the settings saved by an earlier bulk load of this identifier which never restored them, e.g. because the
+     * process died in between. Does nothing if there is no such bulk load.
+     */
+    void restoreUnfinished() {
+        final Optional<BulkLoadEntry> bulkLoadEntry = readEntry();
+        if (!bulkLoadEntry.isPresent()) {
+            return;
+        }
+
+        final Map<String, Map<String, String>> savedSettings = new LinkedHashMap<>();
+        bulkLoadEntry.get().getSettings().forEach((index, settings) -> {
+            // Settings saved as null are left out of the stored entry
+            final Map<String, String> indexSettings = new LinkedHashMap<>();
+            BULK_LOAD_SETTINGS.keySet().forEach(e -> indexSettings.put(e, settings.get(e)));
+            savedSettings.put(index, indexSettings);
+        });
+        log.warn("The bulk load started at " + bulkLoadEntry.get().getCreated() + " did not restore the settings of " + savedSettings.keySet() + ". Restoring them now");
+        new Session(savedSettings.keySet(), Joiner.on(",").join(savedSettings.keySet()), savedSettings, "red").close();
+    }
+
+    private Map<String, Map<String, String>> getSettings(final String names) {
+        final JsonNode indices = perform("GET", "/" + names + "/_settings", ImmutableMap.<String, String>builder().putAll(LENIENT_PARAMETERS).put("flat_settings", "true").build(), null);
+        final Map<String, Map<String, String>> settings = new LinkedHashMap<>();
+        final Iterator<Map.Entry<String, JsonNode>> fields = indices.fields();
+        while (fields.hasNext()) {
+            final Map.Entry<String, JsonNode> index = fields.next();
+            final Map<String, String> indexSettings = new LinkedHashMap<>();
+            for (String setting : BULK_LOAD_SETTINGS.keySet()) {
+                indexSettings.put(setting, index.getValue().path("settings").path(setting).asText(null));
+            }
+            settings.put(index.getKey(), indexSettings);
+        }
+        return settings;
+    }
+
+    private Optional<BulkLoadEntry> readEntry() {
+        try {
+            final JsonNode document = perform("GET", getEntryUrl(), ImmutableMap.of("realtime", "true"), null);
+            if (!document.path("found").asBoolean()) {
+                return Optional.empty();
+            }
+            return Optional.of(objectMapper.treeToValue(document.path("_source"), BulkLoadEntry.class));
+        } catch (MigrationFailedException e) {
+            if (e.getCause() instanceof ResponseException && ((ResponseException) e.getCause()).getResponse().getStatusLine().getStatusCode() == 404) {
+                return Optional.empty();
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new MigrationFailedException("Could not read bulk load entry", e);
+        }
+    }
+
+    private void writeEntry(final Map<String, Map<String, String>> savedSettings) {
+        try {
+            perform("PUT", getEntryUrl(), ImmutableMap.of(), objectMapper.writeValueAsString(new BulkLoadEntry(identifier, savedSettings, Instant.now())));
+        } catch (IOException e) {
+            throw new MigrationFailedException("Could not write bulk load entry", e);
+        }
+    }
+
+    private void deleteEntry() {
+        try {
+            perform("DELETE", getEntryUrl(), ImmutableMap.of(), null);
+        } catch (MigrationFailedException e) {
+            if (!(e.getCause() instanceof ResponseException) || ((ResponseException) e.getCause()).getResponse().getStatusLine().getStatusCode() != 404) {
+                throw e;
+            }
+        }
+    }
+
+    private String getEntryUrl() {
+        return "/" + BulkLoadEntryMeta.INDEX + "/" + BulkLoadEntryMeta.TYPE + "/" + identifier;
+    }
+
+    private String getHealthStatus(final String names) {
+        return perform("GET", "/_cluster/health/" + names, ImmutableMap.of(), null).path("status").asText("red");
+    }
+
+    private void putSettings(final String names, final Map<String, String> settings) {
+        final ObjectNode body = objectMapper.createObjectNode();
+        // Null resets a setting to its default
+        settings.forEach((key, value) -> {
+            if (value == null) {
+                body.putNull(key);
+            } else {
+                body.put(key, value);
+            }
+        });
+        perform("PUT", "/" + names + "/_settings", LENIENT_PARAMETERS, body.toString());
+    }
+
+    private JsonNode perform(final String method, final String url, final Map<String, String> parameters, final String body) {
+        return requestRetrier.execute(method + " " + url, attempt -> {
+            try {
+                final Response response = body == null ?
+                        restClient.performRequest(method, url, parameters) :
+                        restClient.performRequest(method, url, parameters, new StringEntity(body, ContentType.APPLICATION_JSON));
+                return objectMapper.readTree(response.getEntity().getContent());
+            } catch (ResponseException e) {
+                throw new MigrationFailedException("Error performing migration", e);
+            } catch (IOException e) {
+                throw new MigrationFailedException("IO Exception during migration", e);
+            }
+        });
+    }
+
+    class Session implements AutoCloseable {
+
+        private final Set<String> indices;
+        private final String names;
+        private final Map<String, Map<String, String>> savedSettings;
+        private final String status;
+
+        private Session(final Set<String> indices, final String names, final Map<String, Map<String, String>> savedSettings, final String status) {
+            this.indices = indices;
+            this.names = names;
+            this.savedSettings = savedSettings;
+            this.status = status;
+        }
+
+        /**
+         * Applies the bulk load settings to an index which was created after the session started, if it's one of the
+         * tuned indices. The settings it was created with are saved and restored like the ones of the other indices.
+         */
+        synchronized void tuneCreatedIndex(final String index) {
+            if (savedSettings.containsKey(index) || indices.stream().noneMatch(e -> MigrationResource.overlaps(e, index))) {
+                return;
+            }
+
+            final Map<String, Map<String, String>> createdSettings = getSettings(index);
+            if (createdSettings.isEmpty()) {
+                return;
+            }
+            log.info("Applying bulk load settings to created index " + index + ". Saved settings: " + createdSettings);
+            savedSettings.putAll(createdSettings);
+            writeEntry(savedSettings);
+            putSettings(index, BULK_LOAD_SETTINGS);
+        }
+
+        /**
+         * Merging before the replicas are restored saves copying segments which are merged away right afterwards.
+         */
+        void forceMerge(final int maxNumSegments) {
+            log.info("Force merging " + savedSettings.keySet() + " to " + maxNumSegments + " segments");
+            try {
+                restClient.performRequest("POST", "/" + names + "/_forcemerge", ImmutableMap.<String, String>builder().putAll(LENIENT_PARAMETERS).put("max_num_segments", String.valueOf(maxNumSegments)).build());
+            } catch (ResponseException e) {
+                throw new MigrationFailedException("Error performing migration", e);
+            } catch (IOException e) {
+                // The merge can't be cancelled, it goes on in the background if the response got lost
+                log.warn("Force merge of " + savedSettings.keySet() + " did not respond, it continues in the background", e);
+            }
+        }
+
+        /**
+         * Restores the saved settings and waits for the health of the indices to recover. A failed restore doesn't stop the
+         * restore of the other indices, the failures are thrown together at the end.
+         */
+        @Override
+        public synchronized void close() {
+            MigrationFailedException failure = null;
+            for (Map.Entry<String, Map<String, String>> index : savedSettings.entrySet()) {
+                try {
+                    putSettings(index.getKey(), index.getValue());
+                } catch (RuntimeException e) {
+                    final MigrationFailedException restoreFailure = new MigrationFailedException("Could not restore the settings of index " + index.getKey() + ". Settings before the bulk load: " + index.getValue(), e);
+                    log.error(restoreFailure.getMessage(), e);
+                    if (failure == null) {
+                        failure = restoreFailure;
+                    } else {
+                        failure.addSuppressed(restoreFailure);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (!savedSettings.isEmpty()) {
+                deleteEntry();
+            }
+            log.info("Restored settings of " + savedSettings.keySet());
+            awaitHealth();
+        }
+
+        private void awaitHealth() {
+            if ("red".equals(status) || savedSettings.isEmpty()) {
+                return;
+            }
+
+            final Map<String, String> parameters = ImmutableMap.of("wait_for_status", status, "timeout", healthTimeoutInMillis + "ms");
+            while (true) {
+                try {
+                    perform("GET", "/_cluster/health/" + Joiner.on(",").join(savedSettings.keySet()), parameters, null);
+                    log.info("Indices " + savedSettings.keySet() + " are " + status + " again");
+                    return;
+                } catch (MigrationFailedException e) {
+                    // Elasticsearch answers a health request which timed out with 408
+                    if (!(e.getCause() instanceof ResponseException) || ((ResponseException) e.getCause()).getResponse().getStatusLine().getStatusCode() != 408) {
+                        throw e;
+                    }
+                    log.info("Waiting for indices " + savedSettings.keySet() + " to become " + status + "...");
+                }
+            }
+        }
+    }
+}
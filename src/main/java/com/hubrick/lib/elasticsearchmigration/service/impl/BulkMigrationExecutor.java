@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Utf8;
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.OpType;
+import com.hubrick.lib.elasticsearchmigration.model.migration.SlicedDocumentMigration;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Coalesces runs of consecutive {@link DocumentMigration}s into {@link BulkMigration}s and executes them,
+ * resending only the items which failed with a transient error. Failed _bulk requests are retried as a whole by the
+ * {@link RequestRetrier}; a create item which conflicts in such a retry was written by the lost earlier attempt. Bulks
+ * with update items or documents without ids are only resent after rejections, see {@link BulkMigration#isIdempotent()}.
+ * With a {@link ThroughputController} the batches are split further into requests of the currently sustainable size.
+ * <p>
+ * The body of every request is written into buffers of the {@link BufferPool} right before it's sent and the buffers are
+ * returned once its response arrived, so big batches neither allocate their body on the heap nor hold it while waiting.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+public class BulkMigrationExecutor {
+
+    private static final int MAX_REPORTED_FAILURES = 10;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final BulkConfig bulkConfig;
+    private final Function<Migration, CompletableFuture<Response>> requestPerformer;
+    private final ObjectMapper objectMapper;
+    private final ScheduledExecutorService scheduler;
+    private final RequestRetrier requestRetrier;
+    private final Optional<ThroughputController> throughputController;
+    private final BufferPool bufferPool;
+
+    public BulkMigrationExecutor(@NonNull final BulkConfig bulkConfig,
+                                 @NonNull final Function<Migration, CompletableFuture<Response>> requestPerformer,
+                                 @NonNull final ObjectMapper objectMapper,
+                                 @NonNull final ScheduledExecutorService scheduler) {
+        this(bulkConfig, requestPerformer, objectMapper, scheduler, new RequestRetrier(0, 0, scheduler), Optional.empty(), new BufferPool(0, DEFAULT_BUFFER_SIZE));
+    }
+
+    public BulkMigrationExecutor(@NonNull final BulkConfig bulkConfig,
+                                 @NonNull final Function<Migration, CompletableFuture<Response>> requestPerformer,
+                                 @NonNull final ObjectMapper objectMapper,
+                                 @NonNull final ScheduledExecutorService scheduler,
+                                 @NonNull final RequestRetrier requestRetrier,
+                                 @NonNull final Optional<ThroughputController> throughputController,
+                                 @NonNull final BufferPool bufferPool) {
+        this.bulkConfig = bulkConfig;
+        this.requestPerformer = requestPerformer;
+        this.objectMapper = objectMapper;
+        this.scheduler = scheduler;
+        this.requestRetrier = requestRetrier;
+        this.throughputController = throughputController;
+        this.bufferPool = bufferPool;
+    }
+
+    public List<Migration> batch(final List<Migration> migrations) {
+        if (!bulkConfig.getEnabled()) {
+            return migrations;
+        }
+
+        final List<Migration> batchedMigrations = new ArrayList<>(migrations.size());
+        final List<DocumentMigration> run = new ArrayList<>();
+        long runSizeInBytes = 0;
+        for (Migration migration : migrations) {
+            if (migration instanceof DocumentMigration) {
+                final long itemSizeInBytes = getItemSizeInBytes((DocumentMigration) migration);
+                if (!run.isEmpty() && (run.size() >= bulkConfig.getMaxActions() || runSizeInBytes + itemSizeInBytes > bulkConfig.getMaxSizeInBytes())) {
+                    flush(run, batchedMigrations);
+                    runSizeInBytes = 0;
+                }
+                run.add((DocumentMigration) migration);
+                runSizeInBytes += itemSizeInBytes;
+            } else {
+                flush(run, batchedMigrations);
+                runSizeInBytes = 0;
+                batchedMigrations.add(migration);
+            }
+        }
+        flush(run, batchedMigrations);
+
+        return batchedMigrations;
+    }
+
+    /**
+     * The encoded size of {@link BulkMigration#toBulkItem(DocumentMigration)}, without rendering the source.
+     */
+    private static long getItemSizeInBytes(final DocumentMigration migration) {
+        if (migration instanceof SlicedDocumentMigration) {
+            // The source is already encoded, decoding it just to measure it would copy it onto the heap
+            return Utf8.encodedLength(BulkMigration.toBulkAction(migration)) + ((SlicedDocumentMigration) migration).getSourceBuffer().remaining() + 1L;
+        }
+        return Utf8.encodedLength(BulkMigration.toBulkAction(migration)) + migration.getSource().map(e -> Utf8.encodedLength(e) + 1L).orElse(0L);
+    }
+
+    private void flush(final List<DocumentMigration> run, final List<Migration> batchedMigrations) {
+        if (run.size() == 1) {
+            batchedMigrations.add(run.get(0));
+        } else if (run.size() > 1) {
+            batchedMigrations.add(new BulkMigration(run));
+        }
+        run.clear();
+    }
+
+    public CompletableFuture<Void> execute(final BulkMigration bulkMigration) {
+        return throughputController
+                .map(e -> executeAdaptively(bulkMigration, 0, e))
+                .orElseGet(() -> execute(bulkMigration.getMigrations(), encode(bulkMigration.getMigrations()), 0));
+    }
+
+    /**
+     * Sends the items from the offset on in consecutive requests, each sized and paced by the controller at the time it is sent.
+     */
+    private CompletableFuture<Void> executeAdaptively(final BulkMigration bulkMigration, final int offset, final ThroughputController throughputController) {
+        final List<DocumentMigration> migrations = bulkMigration.getMigrations();
+        if (offset >= migrations.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final int end = Math.min(migrations.size(), offset + throughputController.getBatchSize());
+        final List<DocumentMigration> chunk = migrations.subList(offset, end);
+        // The throughput is reserved with the estimated size, the chunk is encoded only once the delay is over so that no
+        // pooled buffers are held while waiting
+        final long delayInMillis = throughputController.reserve(end - offset, chunk.stream().mapToLong(BulkMigrationExecutor::getItemSizeInBytes).sum());
+        return delay(delayInMillis)
+                .thenCompose(e -> execute(chunk, encode(chunk), 0))
+                .thenCompose(e -> executeAdaptively(bulkMigration, end, throughputController));
+    }
+
+    private BulkPayload encode(final List<DocumentMigration> migrations) {
+        final BulkPayloadBuilder builder = new BulkPayloadBuilder(bufferPool);
+        migrations.forEach(builder::append);
+        return builder.build();
+    }
+
+    /**
+     * Sends the payload, which is released as soon as the request, including its retries, is done.
+     */
+    private CompletableFuture<Void> execute(final List<DocumentMigration> migrations, final BulkPayload payload, final int retry) {
+        final BulkMigration bulkMigration = new BulkMigration(migrations, payload.getBuffers());
+        return requestRetrier.executeAsync(
+                bulkMigration.getMethod() + " " + bulkMigration.getUrl(),
+                RequestRetrier.getRetryable(bulkMigration),
+                attempt -> {
+                    final long start = System.nanoTime();
+                    return requestPerformer.apply(bulkMigration)
+                            .whenComplete((response, throwable) -> {
+                                if (throwable != null && isRejection(throwable)) {
+                                    throughputController.ifPresent(ThroughputController::onRejection);
+                                }
+                            })
+                            .thenApply(response -> {
+                                final List<BulkItemFailure> failures = getFailures(bulkMigration, response, attempt > 0);
+                                throughputController.ifPresent(e -> e.onResponse(System.nanoTime() - start, (int) failures.stream().filter(BulkItemFailure::isRejected).count()));
+                                return failures;
+                            });
+                }
+        ).whenComplete((failures, throwable) -> payload.release()).thenCompose(failures -> {
+            if (failures.isEmpty()) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            if (retry >= bulkConfig.getMaxItemRetries() || !failures.stream().allMatch(BulkItemFailure::isRetryable)) {
+                throw new MigrationFailedException(describe(failures, bulkMigration.getMigrations().size()));
+            }
+
+            final long backoffInMillis = (long) bulkConfig.getItemRetryBackoffInMillis() << retry;
+            log.warn("{} of {} bulk items failed. Retrying them in {}ms", failures.size(), bulkMigration.getMigrations().size(), backoffInMillis);
+            final List<DocumentMigration> failedMigrations = failures.stream().map(BulkItemFailure::getMigration).collect(Collectors.toList());
+            return delay(backoffInMillis).thenCompose(e -> execute(failedMigrations, encode(failedMigrations), retry + 1));
+        });
+    }
+
+    private List<BulkItemFailure> getFailures(final BulkMigration bulkMigration, final Response response, final boolean retried) {
+        try (final InputStream content = response.getEntity().getContent()) {
+            final JsonNode items = objectMapper.readTree(content).path("items");
+            if (items.size() != bulkMigration.getMigrations().size()) {
+                throw new MigrationFailedException("Bulk response contains " + items.size() + " items but " + bulkMigration.getMigrations().size() + " were sent");
+            }
+
+            final List<BulkItemFailure> failures = new LinkedList<>();
+            for (int i = 0; i < items.size(); i++) {
+                // Every item is an object with the action name as its only field
+                final JsonNode result = items.get(i).elements().next();
+                final int status = result.path("status").asInt();
+                if (retried && status == 409 && bulkMigration.getMigrations().get(i).getOpType() == OpType.CREATE) {
+                    continue;
+                }
+                if (status >= 300) {
+                    final JsonNode error = result.path("error");
+                    final String reason = error.isMissingNode() ? result.path("result").asText() : error.path("type").asText() + ": " + error.path("reason").asText();
+                    failures.add(new BulkItemFailure(bulkMigration.getMigrations().get(i), status, reason));
+                }
+            }
+            return failures;
+        } catch (IOException e) {
+            throw new MigrationFailedException("IO Exception during migration", e);
+        }
+    }
+
+    private String describe(final List<BulkItemFailure> failures, final int numberOfItems) {
+        return failures.size() + " of " + numberOfItems + " bulk items failed. Failures: " + failures.stream()
+                .limit(MAX_REPORTED_FAILURES)
+                .map(e -> e.getMigration().getIndex() + "/" + e.getMigration().getMapping() + "/" + e.getMigration().getId().orElse("") + " " + e.getStatus() + " " + e.getReason())
+                .collect(Collectors.joining(", ", "[", failures.size() > MAX_REPORTED_FAILURES ? ", ...]" : "]"));
+    }
+
+    private static boolean isRejection(final Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ResponseException) {
+                return ((ResponseException) cause).getResponse().getStatusLine().getStatusCode() == 429;
+            }
+        }
+        return false;
+    }
+
+    private CompletableFuture<Void> delay(final long millis) {
+        if (millis <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        scheduler.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class BulkItemFailure {
+
+        private final DocumentMigration migration;
+        private final int status;
+        private final String reason;
+
+        boolean isRetryable() {
+            return status == 429 || status >= 500;
+        }
+
+        boolean isRejected() {
+            return status == 429;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The body of a _bulk request written by a {@link BulkPayloadBuilder}. The pooled buffers go back to the {@link BufferPool}
+ * on {@link #release()}, after which the buffers of the payload must not be read anymore.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+class BulkPayload {
+
+    @Getter
+    private final List<ByteBuffer> buffers;
+    @Getter
+    private final long sizeInBytes;
+    private final List<ByteBuffer> pooledBuffers;
+    private final BufferPool bufferPool;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    BulkPayload(final List<ByteBuffer> buffers, final List<ByteBuffer> pooledBuffers, final long sizeInBytes, final BufferPool bufferPool) {
+        this.buffers = ImmutableList.copyOf(buffers);
+        this.pooledBuffers = ImmutableList.copyOf(pooledBuffers);
+        this.sizeInBytes = sizeInBytes;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns the pooled buffers, only the first call has an effect.
+     */
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            pooledBuffers.forEach(bufferPool::release);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.SlicedDocumentMigration;
+import lombok.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes the NDJSON body of a _bulk request into buffers of a {@link BufferPool}. Sources are encoded straight from their
+ * strings into the buffers, so neither the joined body nor the bytes of a document exist on the heap. A document can span
+ * several buffers. Sources of {@link SlicedDocumentMigration}s are referenced instead of copied.
+ * <p>
+ * The bytes are the same as those of {@link BulkMigration#getBody()}.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+class BulkPayloadBuilder {
+
+    private static final int MIN_BUFFER_SIZE = 4;
+
+    private final BufferPool bufferPool;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final List<ByteBuffer> pooledBuffers = new ArrayList<>();
+
+    private ByteBuffer current;
+    private int regionStart;
+    private long sizeInBytes;
+    private boolean built;
+
+    BulkPayloadBuilder(@NonNull final BufferPool bufferPool) {
+        checkArgument(bufferPool.getBufferSize() >= MIN_BUFFER_SIZE, "bufferSize must be at least %s bytes to hold any character", MIN_BUFFER_SIZE);
+        this.bufferPool = bufferPool;
+    }
+
+    BulkPayloadBuilder append(final DocumentMigration migration) {
+        checkState(!built, "payload already built");
+        write(BulkMigration.toBulkAction(migration), false);
+        if (migration instanceof SlicedDocumentMigration) {
+            cut();
+            final ByteBuffer source = ((SlicedDocumentMigration) migration).getSourceBuffer();
+            buffers.add(source);
+            sizeInBytes += source.remaining();
+            write('\n');
+        } else if (migration.getSource().isPresent()) {
+            // Raw line breaks can only appear as whitespace between JSON tokens, so replacing them keeps the document intact
+            write(migration.getSource().get(), true);
+            write('\n');
+        }
+        return this;
+    }
+
+    /**
+     * The number of bytes written so far.
+     */
+    long getSizeInBytes() {
+        return sizeInBytes + (current == null ? 0 : current.position() - regionStart);
+    }
+
+    /**
+     * Completes the payload. The builder can't be used afterwards, the buffers belong to the payload.
+     */
+    BulkPayload build() {
+        checkState(!built, "payload already built");
+        cut();
+        built = true;
+        return new BulkPayload(buffers, pooledBuffers, sizeInBytes, bufferPool);
+    }
+
+    private void write(final String value, final boolean replaceLineBreaks) {
+        final CharBuffer in = CharBuffer.wrap(value);
+        encoder.reset();
+        boolean flushing = false;
+        while (true) {
+            final ByteBuffer out = ensureRemaining();
+            final int start = out.position();
+            CoderResult result = flushing ? encoder.flush(out) : encoder.encode(in, out, true);
+            if (!flushing && result.isUnderflow()) {
+                flushing = true;
+                result = encoder.flush(out);
+            }
+            if (replaceLineBreaks) {
+                // Both bytes never occur within a multi byte UTF-8 sequence
+                for (int i = start; i < out.position(); i++) {
+                    final byte b = out.get(i);
+                    if (b == '\n' || b == '\r') {
+                        out.put(i, (byte) ' ');
+                    }
+                }
+            }
+            if (!result.isOverflow()) {
+                // Malformed and unmappable input is replaced, so the result can only be an underflow
+                return;
+            }
+            nextBuffer();
+        }
+    }
+
+    private void write(final char value) {
+        ensureRemaining().put((byte) value);
+    }
+
+    private ByteBuffer ensureRemaining() {
+        if (current == null || !current.hasRemaining()) {
+            nextBuffer();
+        }
+        return current;
+    }
+
+    private void nextBuffer() {
+        cut();
+        current = bufferPool.acquire();
+        pooledBuffers.add(current);
+        regionStart = 0;
+    }
+
+    /**
+     * Ends the region written into the current buffer since the last cut, writing continues right behind it.
+     */
+    private void cut() {
+        if (current != null && current.position() > regionStart) {
+            final ByteBuffer region = current.duplicate();
+            region.position(regionStart);
+            region.limit(current.position());
+            buffers.add(region.slice());
+            sizeInBytes += current.position() - regionStart;
+            regionStart = current.position();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.service.SchemaValidator;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Hand written validator for schema/yaml/schema.json. Instead of trying every branch of the schema's oneOf for each entry it
+ * dispatches on the "type" discriminator and checks the entry against the matching table row only.
+ * Keep the tables in sync with the schema file, {@link JsonSchemaValidator} remains the reference implementation.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class ChangesetSchemaValidator implements SchemaValidator {
+
+    private static final String TYPE_FIELD = "type";
+    private static final Set<String> OP_TYPES = ImmutableSet.of("INDEX", "CREATE", "UPDATE", "DELETE");
+    private static final Set<String> WRITE_OP_TYPES = ImmutableSet.of("INDEX", "CREATE");
+    private static final Set<String> SLICES = ImmutableSet.of("auto", "shards");
+    private static final Set<String> CONFLICTS = ImmutableSet.of("PROCEED", "ABORT");
+
+    private enum PropertyKind {
+        STRING,
+        OP_TYPE,
+        /**
+         * An {@link #OP_TYPE} whose items carry a source, the only kind a bulk file line can be sent as
+         */
+        WRITE_OP_TYPE,
+        CONFLICTS,
+        /**
+         * Non empty array whose first element is a string, the schema allows additional items of any type
+         */
+        INDICES,
+        NUMBER,
+        POSITIVE_INTEGER,
+        /**
+         * Positive integer or one of {@link #SLICES}
+         */
+        SLICES
+    }
+
+    private static final Map<String, EntrySchema> ENTRY_SCHEMAS = ImmutableMap.<String, EntrySchema>builder()
+            .put("CREATE_INDEX", new EntrySchema(
+                    ImmutableMap.of("index", PropertyKind.STRING, "definition", PropertyKind.STRING),
+                    ImmutableSet.of("index", "definition")))
+            .put("DELETE_INDEX", new EntrySchema(
+                    ImmutableMap.of("index", PropertyKind.STRING),
+                    ImmutableSet.of("index")))
+            .put("CREATE_OR_UPDATE_INDEX_TEMPLATE", new EntrySchema(
+                    ImmutableMap.of("template", PropertyKind.STRING, "definition", PropertyKind.STRING),
+                    ImmutableSet.of("template", "definition")))
+            .put("DELETE_INDEX_TEMPLATE", new EntrySchema(
+                    ImmutableMap.of("template", PropertyKind.STRING),
+                    ImmutableSet.of("template")))
+            .put("UPDATE_MAPPING", new EntrySchema(
+                    ImmutableMap.of("indices", PropertyKind.INDICES, "mapping", PropertyKind.STRING, "definition", PropertyKind.STRING),
+                    ImmutableSet.of("indices", "mapping", "definition")))
+            .put("INDEX_DOCUMENT", new EntrySchema(
+                    ImmutableMap.of("index", PropertyKind.STRING, "id", PropertyKind.STRING, "mapping", PropertyKind.STRING, "opType", PropertyKind.OP_TYPE, "definition", PropertyKind.STRING),
+                    ImmutableSet.of("index", "mapping", "definition")))
+            .put("DELETE_DOCUMENT", new EntrySchema(
+                    ImmutableMap.of("index", PropertyKind.STRING, "id", PropertyKind.STRING, "mapping", PropertyKind.STRING),
+                    ImmutableSet.of("index", "id")))
+            .put("UPDATE_DOCUMENT", new EntrySchema(
+                    ImmutableMap.of("index", PropertyKind.STRING, "id", PropertyKind.STRING, "mapping", PropertyKind.STRING, "definition", PropertyKind.STRING),
+                    ImmutableSet.of("index", "mapping", "id", "definition")))
+            .put("REINDEX", new EntrySchema(
+                    ImmutableMap.<String, PropertyKind>builder()
+                            .put("source", PropertyKind.STRING)
+                            .put("destination", PropertyKind.STRING)
+                            .put("query", PropertyKind.STRING)
+                            .put("script", PropertyKind.STRING)
+                            .put("slices", PropertyKind.SLICES)
+                            .put("requestsPerSecond", PropertyKind.NUMBER)
+                            .build(),
+                    ImmutableSet.of("source", "destination")))
+            .put("UPDATE_BY_QUERY", new EntrySchema(
+                    ImmutableMap.<String, PropertyKind>builder()
+                            .put("indices", PropertyKind.INDICES)
+                            .put("query", PropertyKind.STRING)
+                            .put("script", PropertyKind.STRING)
+                            .put("conflicts", PropertyKind.CONFLICTS)
+                            .put("slices", PropertyKind.SLICES)
+                            .put("requestsPerSecond", PropertyKind.NUMBER)
+                            .build(),
+                    ImmutableSet.of("indices")))
+            .put("DELETE_BY_QUERY", new EntrySchema(
+                    ImmutableMap.<String, PropertyKind>builder()
+                            .put("indices", PropertyKind.INDICES)
+                            .put("query", PropertyKind.STRING)
+                            .put("conflicts", PropertyKind.CONFLICTS)
+                            .put("slices", PropertyKind.SLICES)
+                            .put("requestsPerSecond", PropertyKind.NUMBER)
+                            .build(),
+                    ImmutableSet.of("indices", "query")))
+            .put("ALIAS", new EntrySchema(
+                    ImmutableMap.of("definition", PropertyKind.STRING),
+                    ImmutableSet.of("definition")))
+            .put("REBUILD_INDEX", new EntrySchema(
+                    ImmutableMap.<String, PropertyKind>builder()
+                            .put("alias", PropertyKind.STRING)
+                            .put("definition", PropertyKind.STRING)
+                            .put("query", PropertyKind.STRING)
+                            .put("script", PropertyKind.STRING)
+                            .put("slices", PropertyKind.SLICES)
+                            .put("requestsPerSecond", PropertyKind.NUMBER)
+                            .put("warmup", PropertyKind.STRING)
+                            .build(),
+                    ImmutableSet.of("alias", "definition")))
+            .put("BULK_FILE", new EntrySchema(
+                    ImmutableMap.of("file", PropertyKind.STRING, "index", PropertyKind.STRING, "mapping", PropertyKind.STRING, "idField", PropertyKind.STRING, "opType", PropertyKind.WRITE_OP_TYPE),
+                    ImmutableSet.of("file", "index", "mapping")))
+            .build();
+
+    private static final EntrySchema BULK_LOAD_SCHEMA = new EntrySchema(
+            ImmutableMap.of("indices", PropertyKind.INDICES, "maxNumSegments", PropertyKind.POSITIVE_INTEGER),
+            ImmutableSet.of());
+
+    @Override
+    public List<String> validate(final JsonNode changeset) {
+        final List<String> errors = new LinkedList<>();
+        if (changeset == null || !changeset.isObject()) {
+            errors.add(typeMismatch("", changeset, "object"));
+            return errors;
+        }
+
+        final JsonNode bulkLoad = changeset.get("bulkLoad");
+        if (bulkLoad != null) {
+            if (bulkLoad.isObject()) {
+                validateProperties("/bulkLoad", bulkLoad, BULK_LOAD_SCHEMA, false, errors);
+            } else {
+                errors.add(typeMismatch("/bulkLoad", bulkLoad, "object"));
+            }
+        }
+
+        final JsonNode migrations = changeset.get("migrations");
+        if (migrations == null) {
+            return errors;
+        }
+        if (!migrations.isArray()) {
+            errors.add(typeMismatch("/migrations", migrations, "array"));
+            return errors;
+        }
+
+        for (int i = 0; i < migrations.size(); i++) {
+            validateEntry("/migrations/" + i, migrations.get(i), errors);
+        }
+        return errors;
+    }
+
+    private void validateEntry(final String pointer, final JsonNode entry, final List<String> errors) {
+        if (!entry.isObject()) {
+            errors.add(typeMismatch(pointer, entry, "object"));
+            return;
+        }
+
+        final JsonNode type = entry.get(TYPE_FIELD);
+        if (type == null) {
+            errors.add(pointer + ": object has missing required properties ([\"" + TYPE_FIELD + "\"])");
+            return;
+        }
+        if (!type.isTextual()) {
+            errors.add(typeMismatch(pointer + "/" + TYPE_FIELD, type, "string"));
+            return;
+        }
+        final EntrySchema entrySchema = ENTRY_SCHEMAS.get(type.textValue());
+        if (entrySchema == null) {
+            errors.add(pointer + "/" + TYPE_FIELD + ": instance value (\"" + type.textValue() + "\") not found in enum (possible values: " + quote(ENTRY_SCHEMAS.keySet()) + ")");
+            return;
+        }
+
+        final List<String> missing = entrySchema.getRequired().stream().filter(e -> !entry.has(e)).sorted().collect(Collectors.toList());
+        if (!missing.isEmpty()) {
+            errors.add(pointer + ": object has missing required properties (" + quote(missing) + ")");
+        }
+        validateProperties(pointer, entry, entrySchema, true, errors);
+    }
+
+    /**
+     * @param typed whether the object is a migration entry, whose type discriminator was checked already
+     */
+    private void validateProperties(final String pointer, final JsonNode entry, final EntrySchema entrySchema, final boolean typed, final List<String> errors) {
+        final List<String> additional = new ArrayList<>();
+        final Iterator<Map.Entry<String, JsonNode>> fields = entry.fields();
+        while (fields.hasNext()) {
+            final Map.Entry<String, JsonNode> field = fields.next();
+            if (typed && TYPE_FIELD.equals(field.getKey())) {
+                continue;
+            }
+            final PropertyKind propertyKind = entrySchema.getProperties().get(field.getKey());
+            if (propertyKind == null) {
+                additional.add(field.getKey());
+            } else {
+                validateProperty(pointer + "/" + field.getKey(), field.getValue(), propertyKind, errors);
+            }
+        }
+        if (!additional.isEmpty()) {
+            additional.sort(String::compareTo);
+            errors.add(pointer + ": object instance has properties which are not allowed by the schema: " + quote(additional));
+        }
+    }
+
+    private void validateProperty(final String pointer, final JsonNode value, final PropertyKind propertyKind, final List<String> errors) {
+        switch (propertyKind) {
+            case STRING:
+                if (!value.isTextual()) {
+                    errors.add(typeMismatch(pointer, value, "string"));
+                }
+                break;
+            case OP_TYPE:
+                validateEnum(pointer, value, OP_TYPES, errors);
+                break;
+            case WRITE_OP_TYPE:
+                validateEnum(pointer, value, WRITE_OP_TYPES, errors);
+                break;
+            case CONFLICTS:
+                validateEnum(pointer, value, CONFLICTS, errors);
+                break;
+            case INDICES:
+                if (!value.isArray()) {
+                    errors.add(typeMismatch(pointer, value, "array"));
+                } else if (value.size() < 1) {
+                    errors.add(pointer + ": array is too short: must have at least 1 elements but instance has 0 elements");
+                } else if (!value.get(0).isTextual()) {
+                    errors.add(typeMismatch(pointer + "/0", value.get(0), "string"));
+                }
+                break;
+            case NUMBER:
+                if (!value.isNumber()) {
+                    errors.add(typeMismatch(pointer, value, "number"));
+                }
+                break;
+            case POSITIVE_INTEGER:
+                if (!value.isIntegralNumber()) {
+                    errors.add(typeMismatch(pointer, value, "integer"));
+                } else if (value.longValue() < 1) {
+                    errors.add(pointer + ": numeric instance is lower than the required minimum (minimum: 1, found: " + value.asText() + ")");
+                }
+                break;
+            case SLICES:
+                if (value.isIntegralNumber()) {
+                    if (value.longValue() < 1) {
+                        errors.add(pointer + ": numeric instance is lower than the required minimum (minimum: 1, found: " + value.asText() + ")");
+                    }
+                } else if (!value.isTextual()) {
+                    errors.add(typeMismatch(pointer, value, "integer\",\"string"));
+                } else if (!SLICES.contains(value.textValue())) {
+                    errors.add(pointer + ": ECMA 262 regex \"^(auto|shards)$\" does not match input string \"" + value.textValue() + "\"");
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown property kind " + propertyKind);
+        }
+    }
+
+    private static void validateEnum(final String pointer, final JsonNode value, final Set<String> values, final List<String> errors) {
+        if (!value.isTextual()) {
+            errors.add(typeMismatch(pointer, value, "string"));
+        } else if (!values.contains(value.textValue())) {
+            errors.add(pointer + ": instance value (\"" + value.textValue() + "\") not found in enum (possible values: " + quote(values) + ")");
+        }
+    }
+
+    private static String typeMismatch(final String pointer, final JsonNode value, final String expectedType) {
+        return pointer + ": instance type (" + getTypeName(value) + ") does not match any allowed primitive type (allowed: [\"" + expectedType + "\"])";
+    }
+
+    private static String getTypeName(final JsonNode value) {
+        if (value == null || value.isNull() || value.isMissingNode()) {
+            return "null";
+        } else if (value.isObject()) {
+            return "object";
+        } else if (value.isArray()) {
+            return "array";
+        } else if (value.isTextual()) {
+            return "string";
+        } else if (value.isBoolean()) {
+            return "boolean";
+        } else if (value.isIntegralNumber()) {
+            return "integer";
+        } else if (value.isNumber()) {
+            return "number";
+        } else {
+            return value.getNodeType().name().toLowerCase();
+        }
+    }
+
+    private static String quote(final Iterable<String> values) {
+        final StringBuilder result = new StringBuilder("[");
+        for (String value : values) {
+            if (result.length() > 1) {
+                result.append(',');
+            }
+            result.append('"').append(value).append('"');
+        }
+        return result.append(']').toString();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class EntrySchema {
+
+        private final Map<String, PropertyKind> properties;
+        private final Set<String> required;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.exception.InvalidSchemaException;
+import com.hubrick.lib.elasticsearchmigration.service.ResourceScanner;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Finds changesets by asking the class loader for the roots containing the base package and listing only the base package
+ * in each of them: the entries of the jar below the package path or the files below the package directory.
+ * Unlike a full classpath scan nothing else is read and no metadata store is built. Roots which are neither jars nor
+ * directories (e.g. custom url schemes of application servers) are handed to the fallback scanner.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+public class ClasspathResourceScanner implements ResourceScanner {
+
+    private final ResourceScanner fallbackResourceScanner;
+
+    public ClasspathResourceScanner(@NonNull final ResourceScanner fallbackResourceScanner) {
+        this.fallbackResourceScanner = fallbackResourceScanner;
+    }
+
+    @Override
+    public Set<String> getResources(final String basePackage, final Pattern fileNamePattern) {
+        final String packagePath = basePackage.replace('.', '/');
+        final Set<String> resources = new LinkedHashSet<>();
+        try {
+            final Enumeration<URL> roots = getClassLoader().getResources(packagePath);
+            while (roots.hasMoreElements()) {
+                final URL root = roots.nextElement();
+                if ("file".equals(root.getProtocol())) {
+                    listDirectory(Paths.get(root.toURI()), packagePath, fileNamePattern, resources);
+                } else {
+                    final URLConnection connection = root.openConnection();
+                    if (connection instanceof JarURLConnection) {
+                        listJar((JarURLConnection) connection, fileNamePattern, resources);
+                    } else {
+                        log.debug("Unsupported classpath root {}, using fallback scanner", root);
+                        return fallbackResourceScanner.getResources(basePackage, fileNamePattern);
+                    }
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            throw new InvalidSchemaException("Problem scanning classpath for changesets in " + basePackage, e);
+        }
+        return resources;
+    }
+
+    private void listDirectory(final Path directory, final String packagePath, final Pattern fileNamePattern, final Set<String> resources) throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.filter(Files::isRegularFile)
+                    .filter(e -> fileNamePattern.matcher(e.getFileName().toString()).matches())
+                    .sorted()
+                    .forEach(e -> resources.add(packagePath + "/" + directory.relativize(e).toString().replace('\\', '/')));
+        }
+    }
+
+    private void listJar(final JarURLConnection connection, final Pattern fileNamePattern, final Set<String> resources) throws IOException {
+        final String prefix = connection.getEntryName() + "/";
+        // A private, uncached jar file can be closed without affecting other users of the same jar
+        connection.setUseCaches(false);
+        try (final JarFile jarFile = connection.getJarFile()) {
+            final Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (!entry.isDirectory() && name.startsWith(prefix) && fileNamePattern.matcher(name.substring(name.lastIndexOf('/') + 1)).matches()) {
+                    resources.add(name);
+                }
+            }
+        }
+    }
+
+    private ClassLoader getClassLoader() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return contextClassLoader != null ? contextClassLoader : getClass().getClassLoader();
+    }
+}
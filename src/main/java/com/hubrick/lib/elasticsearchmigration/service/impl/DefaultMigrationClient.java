@@ -22,41 +22,59 @@ import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.collect.*;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import com.hubrick.lib.elasticsearchmigration.MigrationClientConfig;
+import com.hubrick.lib.elasticsearchmigration.RefreshPolicy;
 import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
-import com.hubrick.lib.elasticsearchmigration.exception.PreviousMigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.es.BulkLoadEntryMeta;
+import com.hubrick.lib.elasticsearchmigration.model.es.LockEntryMeta;
 import com.hubrick.lib.elasticsearchmigration.model.es.MigrationEntry;
 import com.hubrick.lib.elasticsearchmigration.model.es.MigrationEntryMeta;
+import com.hubrick.lib.elasticsearchmigration.model.es.MigrationFingerprint;
+import com.hubrick.lib.elasticsearchmigration.model.es.MigrationFingerprintMeta;
 import com.hubrick.lib.elasticsearchmigration.model.es.State;
 import com.hubrick.lib.elasticsearchmigration.model.migration.*;
 import com.hubrick.lib.elasticsearchmigration.service.MigrationClient;
+import com.hubrick.lib.elasticsearchmigration.util.HashUtils;
 import com.jayway.jsonpath.JsonPath;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.HttpEntity;
 import org.apache.http.message.BasicHeader;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.RestStatus;
-import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -64,15 +82,23 @@ import java.util.stream.Collectors;
  * @since 1.0.0
  */
 @Slf4j
-public class DefaultMigrationClient implements MigrationClient {
+public class DefaultMigrationClient implements MigrationClient, AutoCloseable {
 
     private static final String WAIT_FOR_ACTIVE_SHARDS_FIELD = "wait_for_active_shards";
+    private static final String REFRESH_FIELD = "refresh";
+    private static final Map<String, String> NUMBER_OF_SHARDS_FILTER = ImmutableMap.of("filter_path", "*.settings.index.number_of_shards");
 
     static final String ELASTICSEARCH_MIGRATION_VERSION_INDEX;
+    static final String ELASTICSEARCH_MIGRATION_FINGERPRINT_INDEX;
+    static final String ELASTICSEARCH_MIGRATION_LOCK_INDEX;
+    static final String ELASTICSEARCH_MIGRATION_BULK_LOAD_INDEX;
 
     static {
         try {
             ELASTICSEARCH_MIGRATION_VERSION_INDEX = Resources.toString(Resources.getResource(DefaultMigrationClient.class, "/schema/es/elasticsearch_migration_version.json"), Charsets.UTF_8);
+            ELASTICSEARCH_MIGRATION_FINGERPRINT_INDEX = Resources.toString(Resources.getResource(DefaultMigrationClient.class, "/schema/es/elasticsearch_migration_fingerprint.json"), Charsets.UTF_8);
+            ELASTICSEARCH_MIGRATION_LOCK_INDEX = Resources.toString(Resources.getResource(DefaultMigrationClient.class, "/schema/es/elasticsearch_migration_lock.json"), Charsets.UTF_8);
+            ELASTICSEARCH_MIGRATION_BULK_LOAD_INDEX = Resources.toString(Resources.getResource(DefaultMigrationClient.class, "/schema/es/elasticsearch_migration_bulk_load.json"), Charsets.UTF_8);
         } catch (IOException e) {
             throw new IllegalStateException("Failed to load index files", e);
         }
@@ -84,22 +110,87 @@ public class DefaultMigrationClient implements MigrationClient {
     private final Integer backoffPeriodInMillis;
     private final Integer retryCount;
     private final ObjectMapper objectMapper;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService loaderExecutor;
+    private final RequestRetrier requestRetrier;
+    private final BulkMigrationExecutor bulkMigrationExecutor;
+    private final PipelinedRequestExecutor pipelinedRequestExecutor;
+    private final RefreshPolicy refreshPolicy;
+    private final Integer historyPageSize;
+    private final MigrationLock migrationLock;
+    private final TaskTracker taskTracker;
+    private final IndexRebuilder indexRebuilder;
+    private final BulkLoadTuner bulkLoadTuner;
+    private final BulkFileLoader bulkFileLoader;
+    private final Set<String> indicesPendingRefresh = ConcurrentHashMap.newKeySet();
 
     private Integer numberOfNodesInCluster;
+    private volatile int currentVersion;
+    private volatile BulkLoadTuner.Session bulkLoadSession;
+    private volatile MigrationLock.Lease currentLease;
     private boolean init = false;
-    private final AtomicInteger currentTry = new AtomicInteger(0);
 
     public DefaultMigrationClient(@NonNull final String identifier,
                                   @NonNull final RestHighLevelClient restHighLevelClient,
                                   @NonNull final Boolean ignorePreviousFailures,
                                   @NonNull final Integer backoffPeriodInMillis,
                                   @NonNull final Integer retryCount) {
+        this(identifier, restHighLevelClient, ignorePreviousFailures, backoffPeriodInMillis, retryCount, MigrationClientConfig.builder().build());
+    }
+
+    public DefaultMigrationClient(@NonNull final String identifier,
+                                  @NonNull final RestHighLevelClient restHighLevelClient,
+                                  @NonNull final Boolean ignorePreviousFailures,
+                                  @NonNull final Integer backoffPeriodInMillis,
+                                  @NonNull final Integer retryCount,
+                                  @NonNull final MigrationClientConfig migrationClientConfig) {
+        final BulkConfig bulkConfig = migrationClientConfig.getBulkConfig();
+        final int maxInFlightRequests = migrationClientConfig.getMaxInFlightRequests();
         this.identifier = identifier;
         this.restHighLevelClient = restHighLevelClient;
         this.ignorePreviousFailures = ignorePreviousFailures;
         this.backoffPeriodInMillis = backoffPeriodInMillis;
         this.retryCount = retryCount;
         this.objectMapper = createObjectMapper();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("elasticsearch-migration-scheduler-%d").build());
+        this.requestRetrier = new RequestRetrier(retryCount, backoffPeriodInMillis, scheduler);
+        final Optional<ThroughputController> throughputController = bulkConfig.getAdaptive() ? Optional.of(new ThroughputController(bulkConfig, maxInFlightRequests)) : Optional.empty();
+        final IntSupplier maxInFlightBulkRequests = throughputController.<IntSupplier>map(e -> e::getConcurrency).orElse(() -> maxInFlightRequests);
+        this.bulkMigrationExecutor = new BulkMigrationExecutor(
+                bulkConfig,
+                this::performMigrationRequestAsync,
+                objectMapper,
+                scheduler,
+                requestRetrier,
+                throughputController,
+                new BufferPool(migrationClientConfig.getBufferPoolSize(), migrationClientConfig.getBufferSizeInBytes())
+        );
+        this.pipelinedRequestExecutor = new PipelinedRequestExecutor(
+                maxInFlightRequests,
+                maxInFlightBulkRequests,
+                this::applyMigration
+        );
+        this.loaderExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("elasticsearch-migration-loader-%d").build());
+        this.bulkFileLoader = new BulkFileLoader(bulkConfig, bulkMigrationExecutor::execute, maxInFlightBulkRequests, loaderExecutor);
+        this.refreshPolicy = migrationClientConfig.getRefreshPolicy();
+        this.historyPageSize = migrationClientConfig.getHistoryPageSize();
+        this.migrationLock = new MigrationLock(restHighLevelClient.getLowLevelClient(), objectMapper, scheduler, requestRetrier, identifier, migrationClientConfig.getLockLeaseInMillis(), backoffPeriodInMillis, retryCount);
+        this.taskTracker = new TaskTracker(restHighLevelClient.getLowLevelClient(), objectMapper, scheduler, requestRetrier, migrationClientConfig.getTaskPollIntervalInMillis());
+        this.indexRebuilder = new IndexRebuilder(
+                objectMapper,
+                migration -> requestRetrier.executeAsync(describe(migration), RequestRetrier.getRetryable(migration), attempt -> performMigrationRequestAsync(migration)),
+                this::applyMigration
+        );
+        this.bulkLoadTuner = new BulkLoadTuner(restHighLevelClient.getLowLevelClient(), objectMapper, requestRetrier, identifier, migrationClientConfig.getTaskPollIntervalInMillis());
+    }
+
+    /**
+     * Stops the threads of this client. The elasticsearch client is left open, it belongs to the caller.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        loaderExecutor.shutdown();
     }
 
     private void init() {
@@ -107,10 +198,13 @@ public class DefaultMigrationClient implements MigrationClient {
             init = true;
             numberOfNodesInCluster = getNumberOfNodesInCluster();
             performRequestIgnoreExistingExceptions(new CreateIndexMigration(MigrationEntryMeta.INDEX, ELASTICSEARCH_MIGRATION_VERSION_INDEX));
+            performRequestIgnoreExistingExceptions(new CreateIndexMigration(MigrationFingerprintMeta.INDEX, ELASTICSEARCH_MIGRATION_FINGERPRINT_INDEX));
+            performRequestIgnoreExistingExceptions(new CreateIndexMigration(LockEntryMeta.INDEX, ELASTICSEARCH_MIGRATION_LOCK_INDEX));
+            performRequestIgnoreExistingExceptions(new CreateIndexMigration(BulkLoadEntryMeta.INDEX, ELASTICSEARCH_MIGRATION_BULK_LOAD_INDEX));
         }
     }
 
-    private ObjectMapper createObjectMapper() {
+    static ObjectMapper createObjectMapper() {
         final ObjectMapper objectMapper = new ObjectMapper();
         final JavaTimeModule javaTimeModule = new JavaTimeModule();
 
@@ -141,39 +235,267 @@ public class DefaultMigrationClient implements MigrationClient {
 
     @Override
     public void applyMigrationSet(final MigrationSet migrationSet) {
-        init();
-
         final List<MigrationSetEntry> orderedMigrationSetEntries = Lists.newArrayList(migrationSet.getMigrations());
         orderedMigrationSetEntries.sort(Comparator.comparingInt(o -> o.getMigrationMeta().getVersion()));
 
-        final List<MigrationEntry> allMigrations = getAllMigrations();
+        final List<MigrationMeta> orderedMigrationMetas = orderedMigrationSetEntries.stream().map(MigrationSetEntry::getMigrationMeta).collect(Collectors.toList());
+        final String fingerprint = computeFingerprint(orderedMigrationMetas);
+        if (isUpToDate(fingerprint)) {
+            log.info("Migration set with fingerprint {} already applied. Nothing to do.", fingerprint);
+            return;
+        }
+
+        init();
+
+        try (final MigrationLock.Lease lease = migrationLock.acquire()) {
+            // Another instance may have applied the same set while this one was waiting for the lock
+            if (isUpToDate(fingerprint)) {
+                log.info("Migration set with fingerprint {} applied by another instance. Nothing to do.", fingerprint);
+                return;
+            }
+            currentLease = lease;
+            try {
+                applyMigrationSet(orderedMigrationSetEntries, orderedMigrationMetas, fingerprint, lease);
+            } finally {
+                currentLease = null;
+            }
+        }
+    }
+
+    private void applyMigrationSet(final List<MigrationSetEntry> orderedMigrationSetEntries,
+                                   final List<MigrationMeta> orderedMigrationMetas,
+                                   final String fingerprint,
+                                   final MigrationLock.Lease lease) {
+        // Settings left behind by a bulk load which was interrupted must not be taken for the settings of the indices
+        bulkLoadTuner.restoreUnfinished();
+
         log.info("Running checks...");
-        checkAllPreviousMigrationsAppliedSuccessfully(allMigrations);
-        checkForMetadataConflicts(allMigrations, orderedMigrationSetEntries.stream().map(MigrationSetEntry::getMigrationMeta).collect(Collectors.toList()));
+        final MigrationHistoryChecker migrationHistoryChecker = new MigrationHistoryChecker(ignorePreviousFailures, orderedMigrationMetas);
+        forEachMigrationEntry(migrationHistoryChecker);
+        final Set<Integer> appliedVersions = migrationHistoryChecker.finish();
         log.info("Checks done");
 
-        final Set<Integer> appliedVersions = allMigrations.stream().map(MigrationEntry::getVersion).collect(Collectors.toSet());
-        for (MigrationSetEntry migrationSetEntry : orderedMigrationSetEntries) {
-            log.info("Applying migration version " + migrationSetEntry.getMigrationMeta().getVersion());
-            if (appliedVersions.contains(migrationSetEntry.getMigrationMeta().getVersion())) {
-                log.info("Skipping migration. Already applied.");
-            } else {
-                try {
-                    insertNewMigrationEntry(migrationSetEntry);
-                    for (Migration migration : migrationSetEntry.getMigration()) {
-                        log.info("Applying change " + migration.getClass().getSimpleName());
-                        performRequest(migration);
-                    }
-                    updateMigrationEntry(migrationSetEntry.getMigrationMeta().getVersion(), State.SUCCESS, "");
-                } catch (Exception e) {
-                    updateMigrationEntry(migrationSetEntry.getMigrationMeta().getVersion(), State.FAILURE, e.getCause().getMessage());
-                    throw new MigrationFailedException("Performing migration version " + migrationSetEntry.getMigrationMeta().getVersion() + " failed. Message: " + e.getCause().getMessage(), e);
+        if (orderedMigrationMetas.stream().anyMatch(e -> !appliedVersions.contains(e.getVersion()))) {
+            // The stored fingerprint no longer describes the cluster once a new version is about to be applied
+            deleteFingerprint();
+        }
+
+        indicesPendingRefresh.clear();
+        try {
+            for (MigrationSetEntry migrationSetEntry : orderedMigrationSetEntries) {
+                log.info("Applying migration version " + migrationSetEntry.getMigrationMeta().getVersion());
+                if (appliedVersions.contains(migrationSetEntry.getMigrationMeta().getVersion())) {
+                    log.info("Skipping migration. Already applied.");
+                } else {
+                    lease.verify();
+                    applyMigrationSetEntry(migrationSetEntry);
                 }
             }
+        } catch (RuntimeException e) {
+            try {
+                refreshPendingIndices();
+            } catch (RuntimeException refreshException) {
+                e.addSuppressed(refreshException);
+            }
+            throw e;
+        }
+        refreshPendingIndices();
+        lease.verify();
+        writeFingerprint(fingerprint, orderedMigrationMetas.isEmpty() ? 0 : Iterables.getLast(orderedMigrationMetas).getVersion());
+    }
+
+    /**
+     * Hashes the ordered version, name and checksums of every migration in the set. Checksums are sorted so that the
+     * fingerprint does not depend on set iteration order.
+     */
+    static String computeFingerprint(final List<MigrationMeta> orderedMigrationMetas) {
+        final MessageDigest messageDigest = HashUtils.createSha256Digest();
+        for (MigrationMeta migrationMeta : orderedMigrationMetas) {
+            messageDigest.update((migrationMeta.getVersion() + "\n" + migrationMeta.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+            for (String checksum : Ordering.natural().sortedCopy(migrationMeta.getSha256Checksums())) {
+                messageDigest.update((checksum + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            messageDigest.update((byte) 0);
+        }
+        return HashUtils.toHex(messageDigest.digest());
+    }
+
+    /**
+     * Compares the fingerprint stored by the last successful run with a single realtime get. Any failure, including a
+     * missing fingerprint index, falls back to the full check.
+     */
+    private boolean isUpToDate(final String fingerprint) {
+        try {
+            final Response response = restHighLevelClient.getLowLevelClient().performRequest(
+                    "GET",
+                    "/" + MigrationFingerprintMeta.INDEX + "/" + MigrationFingerprintMeta.TYPE + "/" + identifier,
+                    ImmutableMap.of("realtime", "true")
+            );
+            final JsonNode source = objectMapper.readTree(response.getEntity().getContent()).path("_source");
+            return fingerprint.equals(source.path(MigrationFingerprintMeta.FINGERPRINT_FIELD).asText(null));
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != 404) {
+                log.warn("Could not read migration fingerprint. Falling back to full check", e);
+            }
+            return false;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not read migration fingerprint. Falling back to full check", e);
+            return false;
+        }
+    }
+
+    private void writeFingerprint(final String fingerprint, final int version) {
+        try {
+            performRequest(
+                    new IndexDocumentMigration(
+                            MigrationFingerprintMeta.INDEX,
+                            MigrationFingerprintMeta.TYPE,
+                            Optional.of(identifier),
+                            Optional.of(OpType.INDEX),
+                            objectMapper.writeValueAsString(new MigrationFingerprint(identifier, fingerprint, version, Instant.now()))
+                    )
+            );
+        } catch (JsonProcessingException e) {
+            throw new MigrationFailedException("Could not write migration fingerprint", e);
+        }
+    }
+
+    private void deleteFingerprint() {
+        try {
+            performRequest(new DeleteDocumentMigration(MigrationFingerprintMeta.INDEX, MigrationFingerprintMeta.TYPE, identifier));
+        } catch (MigrationFailedException e) {
+            if (!(e.getCause() instanceof ResponseException) || ((ResponseException) e.getCause()).getResponse().getStatusLine().getStatusCode() != 404) {
+                throw e;
+            }
+        }
+    }
+
+    private void applyMigrationSetEntry(final MigrationSetEntry migrationSetEntry) {
+        // Lazily loaded changesets are parsed here, an invalid file must fail before its history entry is written
+        final List<Migration> migrations = migrationSetEntry.getMigration();
+        final Set<String> sha256Checksums = migrationSetEntry.getMigrationMeta().getAllSha256Checksums();
+        currentVersion = migrationSetEntry.getMigrationMeta().getVersion();
+        try {
+            insertNewMigrationEntry(migrationSetEntry, sha256Checksums);
+            final Optional<BulkLoad> bulkLoad = migrationSetEntry.getBulkLoad();
+            if (bulkLoad.isPresent()) {
+                applyMigrationsWithBulkLoad(migrations, bulkLoad.get());
+            } else {
+                pipelinedRequestExecutor.execute(bulkMigrationExecutor.batch(migrations));
+            }
+            if (refreshPolicy == RefreshPolicy.PER_VERSION) {
+                refreshPendingIndices();
+            }
+            updateMigrationEntry(migrationSetEntry.getMigrationMeta().getVersion(), State.SUCCESS, "");
+        } catch (Exception e) {
+            updateMigrationEntry(migrationSetEntry.getMigrationMeta().getVersion(), State.FAILURE, getFailureMessage(e));
+            throw new MigrationFailedException("Performing migration version " + migrationSetEntry.getMigrationMeta().getVersion() + " failed. Message: " + getFailureMessage(e), e);
+        }
+    }
+
+    /**
+     * Applies the migrations while their indices use the bulk load settings. The settings are restored even if a migration fails.
+     * With a refresh interval of -1 writes can't wait for a refresh, so the written indices are refreshed once at the end instead.
+     */
+    private void applyMigrationsWithBulkLoad(final List<Migration> migrations, final BulkLoad bulkLoad) {
+        final Set<String> indices = bulkLoad.getIndices().orElseGet(() -> BulkLoadTuner.getWrittenIndices(migrations));
+        if (indices.isEmpty()) {
+            log.warn("Bulk load requested but the version writes no documents. Applying it without bulk load settings");
+            pipelinedRequestExecutor.execute(bulkMigrationExecutor.batch(migrations));
+            return;
+        }
+
+        try (final BulkLoadTuner.Session session = bulkLoadTuner.tune(indices)) {
+            bulkLoadSession = session;
+            try {
+                pipelinedRequestExecutor.execute(bulkMigrationExecutor.batch(migrations));
+            } finally {
+                bulkLoadSession = null;
+            }
+            if (refreshPolicy == RefreshPolicy.PER_REQUEST) {
+                refreshPendingIndices();
+            }
+            bulkLoad.getMaxNumSegments().ifPresent(session::forceMerge);
+        }
+    }
+
+    private CompletableFuture<Void> applyMigration(final Migration migration) {
+        if (migration instanceof BulkMigration) {
+            log.info("Applying " + ((BulkMigration) migration).getMigrations().size() + " document changes in bulk");
+            return bulkMigrationExecutor.execute((BulkMigration) migration);
+        } else if (migration instanceof BulkFileMigration) {
+            log.info("Applying change " + migration.getClass().getSimpleName() + " from file " + ((BulkFileMigration) migration).getFile());
+            return bulkFileLoader.load((BulkFileMigration) migration);
+        } else if (migration instanceof RebuildIndexMigration) {
+            log.info("Applying change " + migration.getClass().getSimpleName() + " for alias " + ((RebuildIndexMigration) migration).getAlias());
+            return indexRebuilder.rebuild((RebuildIndexMigration) migration);
+        } else if (migration instanceof TaskMigration) {
+            log.info("Applying change " + migration.getClass().getSimpleName() + " as task");
+            return resolveSlices((TaskMigration) migration).thenCompose(this::performTask).thenAccept(response -> {
+            });
+        } else {
+            log.info("Applying change " + migration.getClass().getSimpleName());
+            final CompletableFuture<Void> applied = requestRetrier.executeAsync(
+                    describe(migration),
+                    RequestRetrier.getRetryable(migration),
+                    attempt -> recoverEarlierAttempt(migration, attempt, performMigrationRequestAsync(migration))
+            ).thenAccept(response -> {
+            });
+            final BulkLoadTuner.Session session = bulkLoadSession;
+            if (session != null && migration instanceof CreateIndexMigration) {
+                // Tuning blocks, so it runs on the loader threads. Writes to the index depend on its creation and wait for it
+                return applied.thenRunAsync(() -> session.tuneCreatedIndex(((CreateIndexMigration) migration).getIndex()), loaderExecutor);
+            }
+            return applied;
+        }
+    }
+
+    /**
+     * Submits the task without retrying failures which may have started it already, a second task would run concurrently
+     * with the first one.
+     */
+    private CompletableFuture<JsonNode> performTask(final TaskMigration migration) {
+        final String description = "version " + currentVersion + ": " + describe(migration);
+        return requestRetrier.executeAsync(describe(migration), RequestRetrier::isRejected, attempt -> performMigrationRequestAsync(migration))
+                .thenApply(this::readTaskId)
+                .thenCompose(taskId -> {
+                    log.info("Started task " + taskId + " for " + description);
+                    return taskTracker.await(description, taskId);
+                });
+    }
+
+    private String readTaskId(final Response response) {
+        try {
+            final String taskId = objectMapper.readTree(response.getEntity().getContent()).path("task").asText(null);
+            if (taskId == null) {
+                throw new MigrationFailedException("Elasticsearch did not start a task for " + response.getRequestLine());
+            }
+            return taskId;
+        } catch (IOException e) {
+            throw new MigrationFailedException("IO Exception during migration", e);
+        }
+    }
+
+    /**
+     * Resolves {@link TaskMigration#SHARD_SLICES} right before the task is submitted, the source indices may have been
+     * created by an earlier migration of the same version.
+     */
+    private CompletableFuture<TaskMigration> resolveSlices(final TaskMigration migration) {
+        if (!TaskMigration.SHARD_SLICES.equals(migration.getSlices())) {
+            return CompletableFuture.completedFuture(migration);
+        }
+        return getNumberOfShardsAsync(Joiner.on(",").join(migration.getSourceIndices())).thenApply(e -> migration.withSlices(String.valueOf(e)));
+    }
+
+    private void refreshPendingIndices() {
+        if (!indicesPendingRefresh.isEmpty()) {
+            log.info("Refreshing indices " + indicesPendingRefresh);
+            performRequest(new RefreshIndexMigration(ImmutableSet.copyOf(indicesPendingRefresh)));
+            indicesPendingRefresh.clear();
         }
     }
 
-    private void insertNewMigrationEntry(MigrationSetEntry migrationSetEntry) throws JsonProcessingException {
+    private void insertNewMigrationEntry(MigrationSetEntry migrationSetEntry, Set<String> sha256Checksums) throws JsonProcessingException {
         performRequest(
                 new IndexDocumentMigration(
                         MigrationEntryMeta.INDEX,
@@ -185,7 +507,7 @@ public class DefaultMigrationClient implements MigrationClient {
                                         identifier,
                                         migrationSetEntry.getMigrationMeta().getVersion(),
                                         migrationSetEntry.getMigrationMeta().getName(),
-                                        migrationSetEntry.getMigrationMeta().getSha256Checksums(),
+                                        sha256Checksums,
                                         State.IN_PROGRESS,
                                         null,
                                         Instant.now()
@@ -214,42 +536,12 @@ public class DefaultMigrationClient implements MigrationClient {
                     )
             );
         } catch (Exception e) {
-            throw new MigrationFailedException("Performing migration version " + version + " failed. Message: " + e.getCause().getMessage());
+            throw new MigrationFailedException("Performing migration version " + version + " failed. Message: " + getFailureMessage(e));
         }
     }
 
-    private void checkAllPreviousMigrationsAppliedSuccessfully(final List<MigrationEntry> migrationEntries) {
-        if (!ignorePreviousFailures) {
-            for (MigrationEntry migrationEntry : migrationEntries) {
-                if (migrationEntry.getState() != State.SUCCESS) {
-                    throw new PreviousMigrationFailedException("Previous migration in FAILED state. Message: " + migrationEntry.getFailureMessage());
-                }
-            }
-        }
-    }
-
-    private void checkForMetadataConflicts(final List<MigrationEntry> migrationEntries, final List<MigrationMeta> migrationMetas) {
-        if (migrationMetas.size() < migrationEntries.stream().filter(e -> State.SUCCESS == e.getState()).count()) {
-            throw new MigrationFailedException("Local migration set smaller then one found in ES. Local migration set: " + migrationMetas.size() + ", ES migration set: " + migrationEntries.size());
-        }
-
-        for (int i = 0; i < migrationEntries.size(); i++) {
-            if (!(migrationEntries.get(i).getVersion() == migrationMetas.get(i).getVersion())) {
-                throw new MigrationFailedException("Version mismatch for " + migrationEntries.get(i).getName() + ". Local version: " + migrationMetas.get(i).getVersion() + ", ES version: " + migrationEntries.get(i).getVersion());
-            } else if (Sets.intersection(migrationEntries.get(i).getSha256Checksum(), migrationMetas.get(i).getSha256Checksums()).isEmpty()) {
-                throw new MigrationFailedException("Checksum mismatch for " + migrationEntries.get(i).getName() + ". Local checksums: " + migrationMetas.get(i).getVersion() + ":" + migrationMetas.get(i).getSha256Checksums() + ", ES checksums: " + migrationEntries.get(i).getVersion() + ":" + migrationEntries.get(i).getSha256Checksum());
-            } else if (!migrationEntries.get(i).getName().equals(migrationMetas.get(i).getName())) {
-                throw new MigrationFailedException("Name mismatch. Local checksum: " + migrationMetas.get(i).getVersion() + ":" + migrationMetas.get(i).getName() + ", ES checksum: " + migrationEntries.get(i).getVersion() + ":" + migrationEntries.get(i).getName());
-            }
-        }
-
-        // Should never happen since the changeset is ordered by version but better safe then sorry
-        final Optional<MigrationEntry> lastMigrationEntry = Optional.ofNullable(Iterables.getLast(migrationEntries, null));
-        for (int i = migrationEntries.size(); i < migrationMetas.size(); i++) {
-            if (lastMigrationEntry.isPresent() && lastMigrationEntry.get().getVersion() >= migrationMetas.get(i).getVersion()) {
-                throw new MigrationFailedException("Migration Set contains version lower or equal to the latest applied version. New version: " + migrationMetas.get(i).getVersion() + ", Latest applied version: " + lastMigrationEntry.get().getVersion());
-            }
-        }
+    private static String getFailureMessage(final Exception e) {
+        return e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
     }
 
     public void performRequestIgnoreExistingExceptions(final Migration migration) {
@@ -270,36 +562,165 @@ public class DefaultMigrationClient implements MigrationClient {
         }
     }
 
-    private List<MigrationEntry> getAllMigrations() {
+    /**
+     * Streams the migration history of this identifier page by page using search_after. The version is unique per
+     * identifier and therefore a stable sort key, even though the keyword mapping orders it lexicographically.
+     */
+    private void forEachMigrationEntry(final Consumer<MigrationEntry> consumer) {
         try {
             final QueryBuilder queryBuilder = QueryBuilders.boolQuery().must(QueryBuilders.termQuery(MigrationEntryMeta.IDENTIFIER_FIELD, identifier));
-            final SearchRequest searchRequest = new SearchRequest()
-                    .indices(MigrationEntryMeta.INDEX)
-                    .searchType(SearchType.DEFAULT)
-                    .source(SearchSourceBuilder.searchSource().query(queryBuilder).fetchSource(true).size(1000));
-
-            final SearchResponse searchResponse = restHighLevelClient.search(searchRequest);
-            if (searchResponse.status() == RestStatus.OK) {
-                List<MigrationEntry> entries = transformHitsFromEs(searchResponse.getHits(), MigrationEntry.class);
-                entries.sort(Comparator.comparingInt(MigrationEntry::getVersion));
-                return entries;
-            } else {
-                throw new MigrationFailedException("Could not access '" + MigrationEntryMeta.INDEX + "' index. Failures: " + Arrays.asList(searchResponse.getShardFailures()));
+            Object[] searchAfter = null;
+            while (true) {
+                final SearchSourceBuilder searchSourceBuilder = SearchSourceBuilder.searchSource()
+                        .query(queryBuilder)
+                        .fetchSource(true)
+                        .size(historyPageSize)
+                        .sort(MigrationEntryMeta.VERSION_FIELD, SortOrder.ASC);
+                if (searchAfter != null) {
+                    searchSourceBuilder.searchAfter(searchAfter);
+                }
+
+                final SearchRequest searchRequest = new SearchRequest()
+                        .indices(MigrationEntryMeta.INDEX)
+                        .searchType(SearchType.DEFAULT)
+                        .source(searchSourceBuilder);
+
+                final SearchResponse searchResponse = restHighLevelClient.search(searchRequest);
+                if (searchResponse.status() != RestStatus.OK) {
+                    throw new MigrationFailedException("Could not access '" + MigrationEntryMeta.INDEX + "' index. Failures: " + Arrays.asList(searchResponse.getShardFailures()));
+                }
+
+                final SearchHit[] hits = searchResponse.getHits().getHits();
+                for (SearchHit hit : hits) {
+                    consumer.accept(transformSourceFromEs(hit.getSourceAsString(), MigrationEntry.class));
+                }
+                if (hits.length < historyPageSize) {
+                    return;
+                }
+                searchAfter = hits[hits.length - 1].getSortValues();
             }
         } catch (IOException e) {
             throw new MigrationFailedException("IO Exception during migration", e);
         }
     }
 
-    public void performRequest(final Migration migration) {
-        try {
-            final StringEntity stringEntity = new StringEntity(migration.getBody(), ContentType.APPLICATION_JSON);
-            restHighLevelClient.getLowLevelClient().performRequest(migration.getMethod().name(), migration.getUrl(), augmentParameters(migration.getParameters()), stringEntity, convertToHeaderArray(migration.getHeaders()));
-        } catch (ResponseException e) {
-            throw new MigrationFailedException("Error performing migration", e);
-        } catch (IOException e) {
-            throw new MigrationFailedException("IO Exception during migration", e);
+    /**
+     * Performs a migration which is part of a changeset. Unless the refresh policy is {@link RefreshPolicy#PER_REQUEST} and no
+     * bulk load is running the refresh of written documents is deferred and the written indices are recorded for a single refresh later on.
+     */
+    private CompletableFuture<Response> performMigrationRequestAsync(final Migration migration) {
+        // Stops writing as soon as another instance may hold the lock, requests already on the wire can't be recalled
+        final MigrationLock.Lease lease = currentLease;
+        if (lease != null) {
+            lease.verify();
+        }
+
+        if (refreshPolicy == RefreshPolicy.PER_REQUEST && bulkLoadSession == null) {
+            return performRequestAsync(migration, migration.getParameters());
+        }
+
+        if (migration instanceof DocumentMigration) {
+            indicesPendingRefresh.add(((DocumentMigration) migration).getIndex());
+        } else if (migration instanceof BulkMigration) {
+            ((BulkMigration) migration).getMigrations().forEach(e -> indicesPendingRefresh.add(e.getIndex()));
+        } else if (migration instanceof TaskMigration) {
+            indicesPendingRefresh.addAll(((TaskMigration) migration).getTargetIndices());
+        }
+
+        final Map<String, String> parameters = new HashMap<>(migration.getParameters());
+        parameters.remove(REFRESH_FIELD);
+        return performRequestAsync(migration, parameters);
+    }
+
+    public Response performRequest(final Migration migration) {
+        return performRequest(migration, migration.getParameters());
+    }
+
+    private Response performRequest(final Migration migration, final Map<String, String> parameters) {
+        // The entity is repeatable, every attempt sends the same body
+        final HttpEntity entity = migration.getEntity();
+        return requestRetrier.execute(describe(migration), RequestRetrier.getRetryable(migration), attempt -> {
+            try {
+                return restHighLevelClient.getLowLevelClient().performRequest(migration.getMethod().name(), migration.getUrl(), augmentParameters(parameters), entity, convertToHeaderArray(migration.getHeaders()));
+            } catch (ResponseException e) {
+                if (attempt > 0 && isConflictWithEarlierAttempt(migration, e)) {
+                    return e.getResponse();
+                }
+                throw new MigrationFailedException("Error performing migration", e);
+            } catch (IOException e) {
+                throw new MigrationFailedException("IO Exception during migration", e);
+            }
+        });
+    }
+
+    private CompletableFuture<Response> recoverEarlierAttempt(final Migration migration, final int attempt, final CompletableFuture<Response> response) {
+        if (attempt == 0) {
+            return response;
         }
+
+        final CompletableFuture<Response> recovered = new CompletableFuture<>();
+        response.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                recovered.complete(value);
+            } else if (throwable.getCause() instanceof ResponseException && isConflictWithEarlierAttempt(migration, (ResponseException) throwable.getCause())) {
+                recovered.complete(((ResponseException) throwable.getCause()).getResponse());
+            } else {
+                recovered.completeExceptionally(throwable);
+            }
+        });
+        return recovered;
+    }
+
+    /**
+     * A retried request may fail because its earlier attempt was applied although its response got lost. Creating the same
+     * document or index again is then reported as conflict, which is treated as success. The same goes for alias updates
+     * whose removed aliases or indices are gone already.
+     */
+    private static boolean isConflictWithEarlierAttempt(final Migration migration, final ResponseException e) {
+        final int status = e.getResponse().getStatusLine().getStatusCode();
+        if (migration instanceof DocumentMigration && ((DocumentMigration) migration).getOpType() == OpType.CREATE) {
+            return status == 409;
+        } else if (migration instanceof CreateIndexMigration) {
+            return status == 400 && (e.getMessage().contains("index_already_exists_exception") || e.getMessage().contains("resource_already_exists_exception"));
+        } else if (migration instanceof AliasMigration) {
+            return status == 404;
+        }
+        return false;
+    }
+
+    private static String describe(final Migration migration) {
+        return migration.getMethod() + " " + migration.getUrl();
+    }
+
+    /**
+     * @return the number of retries per request ("METHOD url") performed by this client
+     */
+    public Map<String, Integer> getRetryCounts() {
+        return requestRetrier.getRetryCounts();
+    }
+
+    private CompletableFuture<Response> performRequestAsync(final Migration migration, final Map<String, String> parameters) {
+        return performRequestAsync(migration.getMethod().name(), migration.getUrl(), augmentParameters(parameters), migration.getEntity(), convertToHeaderArray(migration.getHeaders()));
+    }
+
+    private CompletableFuture<Response> performRequestAsync(final String method, final String url, final Map<String, String> parameters, final HttpEntity entity, final Header... headers) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        restHighLevelClient.getLowLevelClient().performRequestAsync(method, url, parameters, entity, new ResponseListener() {
+            @Override
+            public void onSuccess(final Response response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                if (e instanceof ResponseException) {
+                    future.completeExceptionally(new MigrationFailedException("Error performing migration", e));
+                } else {
+                    future.completeExceptionally(new MigrationFailedException("IO Exception during migration", e));
+                }
+            }
+        }, headers);
+        return future;
     }
 
     private Header[] convertToHeaderArray(Multimap<String, String> headers) {
@@ -321,33 +742,53 @@ public class DefaultMigrationClient implements MigrationClient {
 
 
     public int getNumberOfNodesInCluster() {
-        try {
-            final Response response = restHighLevelClient.getLowLevelClient().performRequest("GET", "/_nodes");
-            return JsonPath.read(IOUtils.toString(response.getEntity().getContent(), Charsets.UTF_8), "$._nodes.total");
-        } catch (ResponseException e) {
-            throw new MigrationFailedException("Error performing migration", e);
-        } catch (IOException e) {
-            throw new MigrationFailedException("IO Exception during migration", e);
-        }
+        return requestRetrier.execute("GET /_nodes", attempt -> {
+            try {
+                final Response response = restHighLevelClient.getLowLevelClient().performRequest("GET", "/_nodes");
+                return JsonPath.read(IOUtils.toString(response.getEntity().getContent(), Charsets.UTF_8), "$._nodes.total");
+            } catch (ResponseException e) {
+                throw new MigrationFailedException("Error performing migration", e);
+            } catch (IOException e) {
+                throw new MigrationFailedException("IO Exception during migration", e);
+            }
+        });
     }
 
+    /**
+     * @return the smallest number of shards of the indices matched by the given names, wildcards or aliases
+     */
     public int getNumberOfShards(String index) {
+        return requestRetrier.execute("GET /" + index + "/_settings", attempt -> {
+            try {
+                return parseNumberOfShards(index, restHighLevelClient.getLowLevelClient().performRequest("GET", "/" + index + "/_settings", NUMBER_OF_SHARDS_FILTER));
+            } catch (ResponseException e) {
+                throw new MigrationFailedException("Error performing migration", e);
+            } catch (IOException e) {
+                throw new MigrationFailedException("IO Exception during migration", e);
+            }
+        });
+    }
+
+    private CompletableFuture<Integer> getNumberOfShardsAsync(String index) {
+        return requestRetrier.executeAsync(
+                "GET /" + index + "/_settings",
+                attempt -> performRequestAsync("GET", "/" + index + "/_settings", NUMBER_OF_SHARDS_FILTER, null).thenApply(e -> parseNumberOfShards(index, e))
+        );
+    }
+
+    private static int parseNumberOfShards(final String index, final Response response) {
         try {
-            final Response response = restHighLevelClient.getLowLevelClient().performRequest("GET", "/" + index + "_settings");
-            return JsonPath.read(IOUtils.toString(response.getEntity().getContent(), Charsets.UTF_8), "$." + index + ".settings.index.number_of_shards");
-        } catch (ResponseException e) {
-            throw new MigrationFailedException("Error performing migration", e);
+            // The settings API returns the shard count as string, keyed by the concrete index names
+            final List<Object> numberOfShards = JsonPath.read(IOUtils.toString(response.getEntity().getContent(), Charsets.UTF_8), "$.*.settings.index.number_of_shards");
+            return numberOfShards.stream()
+                    .mapToInt(e -> Integer.parseInt(String.valueOf(e)))
+                    .min()
+                    .orElseThrow(() -> new MigrationFailedException("No index matches " + index));
         } catch (IOException e) {
             throw new MigrationFailedException("IO Exception during migration", e);
         }
     }
 
-    private <T> List<T> transformHitsFromEs(SearchHits hits, Class<T> clazz) {
-        return Arrays.asList(hits.getHits()).stream()
-                .map(hit -> transformSourceFromEs(hit.getSourceAsString(), clazz))
-                .collect(Collectors.toList());
-    }
-
     private <T> T transformSourceFromEs(String source, Class<T> clazz) {
         try {
             if (source != null) {
@@ -360,9 +801,4 @@ public class DefaultMigrationClient implements MigrationClient {
             throw new RuntimeException(e);
         }
     }
-
-    @FunctionalInterface
-    private interface Action0<T> {
-        T call();
-    }
 }
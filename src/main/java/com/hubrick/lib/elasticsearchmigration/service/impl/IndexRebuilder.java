@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.AliasMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.CreateIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.RebuildIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.RefreshIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.ReindexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.WarmupMigration;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Response;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Carries out a {@link RebuildIndexMigration}. Readers keep using the old indices through the alias while the new index is
+ * created, filled and warmed up. Only then the alias is moved to the new index and the old indices are deleted, both in a
+ * single atomic alias update.
+ * <p>
+ * The old indices are the ones the alias points to, or the index named like the alias if it's still a concrete index.
+ * Versioned indices of the alias which it doesn't point to are left overs of failed rebuilds and are deleted by the swap as well.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+class IndexRebuilder {
+
+    private final ObjectMapper objectMapper;
+    private final Function<Migration, CompletableFuture<Response>> requestPerformer;
+    private final Function<Migration, CompletableFuture<Void>> migrationApplier;
+
+    IndexRebuilder(@NonNull final ObjectMapper objectMapper,
+                   @NonNull final Function<Migration, CompletableFuture<Response>> requestPerformer,
+                   @NonNull final Function<Migration, CompletableFuture<Void>> migrationApplier) {
+        this.objectMapper = objectMapper;
+        this.requestPerformer = requestPerformer;
+        this.migrationApplier = migrationApplier;
+    }
+
+    CompletableFuture<Void> rebuild(final RebuildIndexMigration migration) {
+        return requestPerformer.apply(migration)
+                .thenApply(response -> readAliasState(migration.getAlias(), response))
+                .thenCompose(aliasState -> rebuild(migration, aliasState));
+    }
+
+    private CompletableFuture<Void> rebuild(final RebuildIndexMigration migration, final AliasState aliasState) {
+        final String newIndex = migration.getIndexName(aliasState.getLatestVersion() + 1);
+        log.info("Rebuilding " + migration.getAlias() + " as " + newIndex + (aliasState.getLiveIndices().isEmpty() ? "" : " from " + aliasState.getLiveIndices()));
+
+        CompletableFuture<Void> result = migrationApplier.apply(new CreateIndexMigration(newIndex, migration.getDefinition()));
+        if (!aliasState.getLiveIndices().isEmpty()) {
+            result = result.thenCompose(e -> migrationApplier.apply(new ReindexMigration(
+                    Joiner.on(",").join(aliasState.getLiveIndices()),
+                    newIndex,
+                    migration.getQuery(),
+                    migration.getScript(),
+                    migration.getSlices(),
+                    migration.getRequestsPerSecond()
+            )));
+        }
+        // The swap must not make the new index visible before all reindexed documents are searchable
+        result = result.thenCompose(e -> migrationApplier.apply(new RefreshIndexMigration(ImmutableSet.of(newIndex))));
+        if (migration.getWarmup().isPresent()) {
+            result = result.thenCompose(e -> migrationApplier.apply(new WarmupMigration(ImmutableSet.of(newIndex), migration.getWarmup().get())));
+        }
+
+        final Set<String> oldIndices = ImmutableSet.<String>builder().addAll(aliasState.getLiveIndices()).addAll(aliasState.getStaleIndices()).build();
+        return result.thenCompose(e -> {
+            log.info("Swapping " + migration.getAlias() + " to " + newIndex + (oldIndices.isEmpty() ? "" : ", deleting " + oldIndices));
+            return migrationApplier.apply(AliasMigration.swap(migration.getAlias(), newIndex, oldIndices));
+        });
+    }
+
+    private AliasState readAliasState(final String alias, final Response response) {
+        final JsonNode indices;
+        try {
+            indices = objectMapper.readTree(response.getEntity().getContent());
+        } catch (IOException e) {
+            throw new MigrationFailedException("IO Exception during migration", e);
+        }
+        return getAliasState(alias, indices);
+    }
+
+    /**
+     * @param indices the indices starting with the alias name and their aliases, as returned by {@code GET /<alias>*}{@code /_alias}
+     */
+    static AliasState getAliasState(final String alias, final JsonNode indices) {
+        final Pattern versionedIndexPattern = Pattern.compile(Pattern.quote(alias) + "_v(\\d+)");
+        final ImmutableSet.Builder<String> liveIndices = ImmutableSet.builder();
+        final ImmutableSet.Builder<String> staleIndices = ImmutableSet.builder();
+        int latestVersion = 0;
+
+        final Iterator<Map.Entry<String, JsonNode>> fields = indices.fields();
+        while (fields.hasNext()) {
+            final Map.Entry<String, JsonNode> index = fields.next();
+            final Matcher matcher = versionedIndexPattern.matcher(index.getKey());
+            final boolean versioned = matcher.matches();
+            if (versioned) {
+                latestVersion = Math.max(latestVersion, Integer.parseInt(matcher.group(1)));
+            }
+
+            if (alias.equals(index.getKey()) || index.getValue().path("aliases").has(alias)) {
+                liveIndices.add(index.getKey());
+            } else if (versioned) {
+                staleIndices.add(index.getKey());
+            }
+        }
+        return new AliasState(liveIndices.build(), staleIndices.build(), latestVersion);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class AliasState {
+
+        /**
+         * Indices readers currently see through the alias
+         */
+        private final Set<String> liveIndices;
+        /**
+         * Versioned indices the alias doesn't point to
+         */
+        private final Set<String> staleIndices;
+        private final int latestVersion;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.base.Charsets;
+import com.hubrick.lib.elasticsearchmigration.exception.InvalidSchemaException;
+import com.hubrick.lib.elasticsearchmigration.service.ResourceScanner;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Finds changesets through META-INF/es-migrations/&lt;basePackage&gt;.idx files which list one resource path per line
+ * (empty lines and lines starting with '#' are ignored). The indices of all classpath entries are merged. If no index exists
+ * for the base package, the fallback scanner is used.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+public class IndexedResourceScanner implements ResourceScanner {
+
+    private static final String RESOURCE_DIRECTORY = "META-INF/es-migrations/";
+
+    private final ResourceScanner fallbackResourceScanner;
+
+    public IndexedResourceScanner(@NonNull final ResourceScanner fallbackResourceScanner) {
+        this.fallbackResourceScanner = fallbackResourceScanner;
+    }
+
+    public static String getIndexResourceName(final String basePackage) {
+        return RESOURCE_DIRECTORY + basePackage + ".idx";
+    }
+
+    public static void write(@NonNull final Collection<String> resources, @NonNull final OutputStream outputStream) throws IOException {
+        final Writer writer = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+        for (String resource : resources) {
+            writer.write(resource);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    @Override
+    public Set<String> getResources(final String basePackage, final Pattern fileNamePattern) {
+        final String indexResourceName = getIndexResourceName(basePackage);
+        final Enumeration<URL> indices;
+        try {
+            indices = getClassLoader().getResources(indexResourceName);
+        } catch (IOException e) {
+            throw new InvalidSchemaException("Problem looking up changeset index " + indexResourceName, e);
+        }
+
+        if (!indices.hasMoreElements()) {
+            log.debug("No changeset index {} found, scanning the classpath", indexResourceName);
+            return fallbackResourceScanner.getResources(basePackage, fileNamePattern);
+        }
+
+        final Set<String> resources = new LinkedHashSet<>();
+        while (indices.hasMoreElements()) {
+            final URL index = indices.nextElement();
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(index.openStream(), Charsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String resource = StringUtils.trimToNull(line);
+                    if (resource != null && !resource.startsWith("#") && fileNamePattern.matcher(getFileName(resource)).matches()) {
+                        resources.add(resource);
+                    }
+                }
+            } catch (IOException e) {
+                throw new InvalidSchemaException("Problem reading changeset index " + index, e);
+            }
+        }
+        return resources;
+    }
+
+    private static String getFileName(final String resource) {
+        return resource.lastIndexOf("/") != -1 ? resource.substring(resource.lastIndexOf("/") + 1) : resource;
+    }
+
+    private ClassLoader getClassLoader() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return contextClassLoader != null ? contextClassLoader : getClass().getClassLoader();
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.core.load.Dereferencing;
+import com.github.fge.jsonschema.core.load.configuration.LoadingConfiguration;
+import com.github.fge.jsonschema.core.report.ProcessingReport;
+import com.github.fge.jsonschema.main.JsonSchema;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.hubrick.lib.elasticsearchmigration.exception.InvalidSchemaException;
+import com.hubrick.lib.elasticsearchmigration.service.SchemaValidator;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Validates changesets with the generic json-schema-validator against schema/yaml/schema.json.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class JsonSchemaValidator implements SchemaValidator {
+
+    private static final String MIGRATION_SCHEMA;
+
+    static {
+        try {
+            MIGRATION_SCHEMA = Resources.toString(Resources.getResource(JsonSchemaValidator.class, "/schema/yaml/schema.json"), Charsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load yaml schema", e);
+        }
+    }
+
+    private final JsonSchema jsonSchema;
+
+    public JsonSchemaValidator() {
+        this.jsonSchema = createJsonSchema();
+    }
+
+    private JsonSchema createJsonSchema() {
+        final LoadingConfiguration loadingConfiguration = LoadingConfiguration.newBuilder()
+                .dereferencing(Dereferencing.INLINE).freeze();
+        final JsonSchemaFactory factory = JsonSchemaFactory.newBuilder()
+                .setLoadingConfiguration(loadingConfiguration).freeze();
+
+        try {
+            final JsonNode schemaObject = new ObjectMapper().readTree(MIGRATION_SCHEMA);
+            return factory.getJsonSchema(schemaObject);
+        } catch (Exception e) {
+            throw new IllegalStateException("Couldn't parse yaml schema", e);
+        }
+    }
+
+    @Override
+    public List<String> validate(final JsonNode changeset) {
+        try {
+            final ProcessingReport report = jsonSchema.validate(changeset);
+            final List<String> errors = new LinkedList<>();
+            if (!report.isSuccess()) {
+                report.forEach(e -> errors.add(e.getMessage()));
+            }
+            return errors;
+        } catch (ProcessingException e) {
+            throw new InvalidSchemaException("Couldn't validate yaml file", e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkFileMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.SlicedDocumentMigration;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * Loads an uncompressed NDJSON file from the file system without reading it onto the heap.
+ * <p>
+ * The file is cut into segments of about {@link BulkConfig#getMaxSizeInBytes()} bytes. The segment boundaries are moved
+ * to the next line start, they are searched in parallel and only the few bytes around each boundary are read. Then one
+ * sender per request of the in flight window takes the next segment, memory maps it and sends its lines as
+ * {@link SlicedDocumentMigration}s. The slices reference the mapping, so the documents go from the page cache to the
+ * connection without being copied or decoded. Documents which take their id from the file are sent by a single sender,
+ * which takes the segments in file order.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+class MappedFileLoader {
+
+    private static final int BOUNDARY_SCAN_SIZE = 8192;
+
+    private final BulkConfig bulkConfig;
+    private final Function<BulkMigration, CompletableFuture<Void>> bulkApplier;
+    private final IntSupplier maxInFlightRequests;
+    private final Executor executor;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    MappedFileLoader(@NonNull final BulkConfig bulkConfig,
+                     @NonNull final Function<BulkMigration, CompletableFuture<Void>> bulkApplier,
+                     @NonNull final IntSupplier maxInFlightRequests,
+                     @NonNull final Executor executor) {
+        this.bulkConfig = bulkConfig;
+        this.bulkApplier = bulkApplier;
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.executor = executor;
+    }
+
+    /**
+     * Sends the documents of the file and blocks until all of them are stored. The first failure stops the senders from
+     * taking further segments.
+     *
+     * @return the number of documents sent
+     */
+    long load(final BulkFileMigration migration, final FileChannel channel) throws IOException {
+        final long[] boundaries = findSegmentBoundaries(channel, Math.max(1, bulkConfig.getMaxSizeInBytes()));
+        final int numberOfSegments = boundaries.length - 1;
+        final AtomicInteger nextSegment = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicLong documents = new AtomicLong();
+        final int senders = Math.max(1, Math.min(BulkFileLoader.getMaxInFlightRequests(migration, maxInFlightRequests), numberOfSegments));
+        log.info("Loading " + migration.getFile() + " (" + channel.size() + " bytes) in " + numberOfSegments + " segments with " + senders + " senders");
+
+        final List<CompletableFuture<Void>> futures = IntStream.range(0, senders)
+                .mapToObj(i -> CompletableFuture.runAsync(() -> {
+                    int segment;
+                    while (!failed.get() && (segment = nextSegment.getAndIncrement()) < numberOfSegments) {
+                        try {
+                            documents.addAndGet(sendSegment(migration, channel, boundaries[segment], boundaries[segment + 1]));
+                        } catch (IOException e) {
+                            failed.set(true);
+                            throw new UncheckedIOException(e);
+                        } catch (RuntimeException e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                    }
+                }, executor))
+                .collect(Collectors.toList());
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MigrationFailedException("Error performing migration", e.getCause());
+        }
+
+        log.info("Loaded " + documents.get() + " documents from " + migration.getFile() + " into " + migration.getIndex());
+        return documents.get();
+    }
+
+    /**
+     * Returns the start of every segment followed by the size of the file. Segments never split a line, a line which is
+     * longer than a segment extends it and the boundaries within the line are dropped.
+     */
+    static long[] findSegmentBoundaries(final FileChannel channel, final long segmentSize) throws IOException {
+        final long size = channel.size();
+        try {
+            final long[] lineStarts = LongStream.range(1, (size + segmentSize - 1) / segmentSize).parallel()
+                    .map(i -> {
+                        try {
+                            return findNextLineStart(channel, i * segmentSize, size);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .toArray();
+            return LongStream.concat(LongStream.concat(LongStream.of(0), LongStream.of(lineStarts)), LongStream.of(size))
+                    .distinct()
+                    .sorted()
+                    .toArray();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static long findNextLineStart(final FileChannel channel, final long position, final long size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+        // A segment starts right after a newline, so a boundary on a line start stays where it is
+        long offset = position - 1;
+        while (offset < size) {
+            buffer.clear();
+            final int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return size;
+    }
+
+    private long sendSegment(final BulkFileMigration migration, final FileChannel channel, final long start, final long end) throws IOException {
+        if (end - start > Integer.MAX_VALUE) {
+            throw new MigrationFailedException("Line at byte " + start + " of " + migration.getFile() + " is too long to be mapped");
+        }
+
+        final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        final List<DocumentMigration> run = new ArrayList<>();
+        long runSizeInBytes = 0;
+        long documents = 0;
+        int lineStart = 0;
+        while (lineStart < segment.limit()) {
+            int lineEnd = lineStart;
+            while (lineEnd < segment.limit() && segment.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            final int nextLineStart = lineEnd + 1;
+            if (lineEnd > lineStart && segment.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            final ByteBuffer line = slice(segment, lineStart, lineEnd);
+            if (!BulkFileLoader.isBlank(line)) {
+                final DocumentMigration documentMigration = new SlicedDocumentMigration(
+                        migration.getIndex(),
+                        migration.getMapping(),
+                        BulkFileLoader.readId(migration, jsonFactory.createParser(new ByteBufferBackedInputStream(line.duplicate())), "Line at byte " + (start + lineStart)),
+                        migration.getOpType(),
+                        line
+                );
+                if (!run.isEmpty() && (run.size() >= bulkConfig.getMaxActions() || runSizeInBytes + line.remaining() > bulkConfig.getMaxSizeInBytes())) {
+                    send(run);
+                    runSizeInBytes = 0;
+                }
+                run.add(documentMigration);
+                runSizeInBytes += line.remaining();
+                documents++;
+            }
+            lineStart = nextLineStart;
+        }
+        if (!run.isEmpty()) {
+            send(run);
+        }
+        return documents;
+    }
+
+    private void send(final List<DocumentMigration> run) {
+        try {
+            bulkApplier.apply(new BulkMigration(run)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MigrationFailedException("Error performing migration", e.getCause());
+        } finally {
+            run.clear();
+        }
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int start, final int end) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(start);
+        duplicate.limit(end);
+        return duplicate.slice();
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Dependency graph of the migrations of one version. A migration depends on an earlier one if they touch overlapping resources
+ * and at least one of them writes it (see {@link MigrationResource}). Dependencies which are already implied by other dependencies
+ * are left out so that the graph only contains the edges which actually serialize the execution. Only the earlier migrations
+ * touching a conflicting resource are visited, so runs of document changes don't compare every pair of migrations.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class MigrationDependencyGraph {
+
+    @Getter
+    private final List<Migration> migrations;
+    private final List<Set<MigrationResource>> resources;
+    private final List<List<Dependency>> dependencies;
+
+    public MigrationDependencyGraph(@NonNull final List<Migration> migrations) {
+        this.migrations = ImmutableList.copyOf(migrations);
+        this.resources = this.migrations.stream().map(MigrationResource::resolve).collect(Collectors.toList());
+        this.dependencies = new ArrayList<>(migrations.size());
+
+        final ResourceIndex resourceIndex = new ResourceIndex();
+        for (int i = 0; i < this.migrations.size(); i++) {
+            final NavigableMap<Integer, MigrationResource> conflicts = resourceIndex.findConflicts(resources.get(i));
+            final List<Dependency> nodeDependencies = new ArrayList<>();
+            final Set<Integer> implied = new HashSet<>();
+            // Walking backwards guarantees that a predecessor is seen before any of its own ancestors
+            for (Map.Entry<Integer, MigrationResource> conflict : conflicts.descendingMap().entrySet()) {
+                if (!implied.contains(conflict.getKey())) {
+                    nodeDependencies.add(new Dependency(conflict.getKey(), conflict.getValue()));
+                    addAncestors(conflict.getKey(), conflicts.firstKey(), implied);
+                }
+            }
+            Collections.reverse(nodeDependencies);
+            dependencies.add(Collections.unmodifiableList(nodeDependencies));
+            resourceIndex.add(i, resources.get(i));
+        }
+    }
+
+    /**
+     * Collects the ancestors of the migration down to the given index, earlier ones can't be conflicts anymore.
+     */
+    private void addAncestors(final int index, final int lowestIndex, final Set<Integer> ancestors) {
+        final Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(index);
+        while (!pending.isEmpty()) {
+            for (Dependency dependency : dependencies.get(pending.pop())) {
+                if (dependency.getIndex() >= lowestIndex && ancestors.add(dependency.getIndex())) {
+                    pending.push(dependency.getIndex());
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return migrations.size();
+    }
+
+    public List<Dependency> getDependencies(final int index) {
+        return dependencies.get(index);
+    }
+
+    /**
+     * Renders one line per migration listing the resources it touches and the migrations it has to wait for
+     */
+    public String describe() {
+        final StringBuilder description = new StringBuilder();
+        for (int i = 0; i < migrations.size(); i++) {
+            description.append("  #").append(i + 1).append(' ').append(migrations.get(i).getClass().getSimpleName())
+                    .append(' ').append(resources.get(i));
+            if (dependencies.get(i).isEmpty()) {
+                description.append(" -> independent");
+            } else {
+                description.append(" -> after ").append(dependencies.get(i).stream()
+                        .map(e -> "#" + (e.getIndex() + 1) + " (" + e.getResource() + ")")
+                        .collect(Collectors.joining(", ")));
+            }
+            description.append('\n');
+        }
+        return description.toString();
+    }
+
+    /**
+     * The resources of the migrations seen so far, grouped so that a lookup only visits migrations touching a conflicting
+     * resource. Documents are looked up by their exact name, index and template patterns are compared per distinct name.
+     */
+    private static class ResourceIndex {
+
+        private final Map<MigrationResource.Type, Map<MigrationResource, List<Integer>>> migrationsByResource = new EnumMap<>(MigrationResource.Type.class);
+
+        void add(final int index, final Set<MigrationResource> resources) {
+            for (MigrationResource resource : resources) {
+                migrationsByResource.computeIfAbsent(resource.getType(), e -> new HashMap<>()).computeIfAbsent(resource, e -> new ArrayList<>()).add(index);
+            }
+        }
+
+        /**
+         * @return the earlier migrations which conflict with the given resources, each with the first of the resources it conflicts with
+         */
+        NavigableMap<Integer, MigrationResource> findConflicts(final Set<MigrationResource> resources) {
+            final NavigableMap<Integer, MigrationResource> conflicts = new TreeMap<>();
+            for (MigrationResource resource : resources) {
+                for (Map.Entry<MigrationResource, List<Integer>> candidate : getCandidates(resource)) {
+                    if (resource.conflictsWith(candidate.getKey())) {
+                        candidate.getValue().forEach(e -> conflicts.putIfAbsent(e, resource));
+                    }
+                }
+            }
+            return conflicts;
+        }
+
+        private List<Map.Entry<MigrationResource, List<Integer>>> getCandidates(final MigrationResource resource) {
+            final List<Map.Entry<MigrationResource, List<Integer>>> candidates = new ArrayList<>();
+            if (resource.getType() == MigrationResource.Type.CLUSTER) {
+                migrationsByResource.values().forEach(e -> candidates.addAll(e.entrySet()));
+                return candidates;
+            }
+
+            candidates.addAll(migrationsByResource.getOrDefault(MigrationResource.Type.CLUSTER, Collections.emptyMap()).entrySet());
+            final Map<MigrationResource, List<Integer>> sameType = migrationsByResource.getOrDefault(resource.getType(), Collections.emptyMap());
+            if (resource.getType() == MigrationResource.Type.DOCUMENT) {
+                for (MigrationResource.Access access : MigrationResource.Access.values()) {
+                    final MigrationResource document = new MigrationResource(resource.getType(), resource.getName(), access);
+                    final List<Integer> indices = sameType.get(document);
+                    if (indices != null) {
+                        candidates.add(new AbstractMap.SimpleImmutableEntry<>(document, indices));
+                    }
+                }
+            } else {
+                candidates.addAll(sameType.entrySet());
+            }
+            return candidates;
+        }
+    }
+
+    @Getter
+    public static class Dependency {
+
+        private final int index;
+        private final MigrationResource resource;
+
+        private Dependency(final int index, final MigrationResource resource) {
+            this.index = index;
+            this.resource = resource;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hubrick.lib.elasticsearchmigration.model.input.CachedMigrationFile;
+import com.hubrick.lib.elasticsearchmigration.model.input.ChecksumedMigrationFile;
+import com.hubrick.lib.elasticsearchmigration.util.SmileUtils;
+import com.hubrick.lib.elasticsearchmigration.util.VersionUtils;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * Local cache of parsed changeset files. Entries are stored in Smile and keyed by the sha256 checksum of the raw file,
+ * so a changed file simply doesn't hit anymore. Every library version gets its own sub directory because the binary form
+ * follows the model classes of the library.
+ * <p>
+ * Entries are written to a temporary file which is then atomically moved into place, concurrent writers of the same entry
+ * write identical content and the last move wins. Unreadable entries are treated as misses, the cache never fails a migration.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+public class MigrationFileCache {
+
+    private static final String ENTRY_SUFFIX = ".smile";
+
+    private final Path directory;
+    private final String libraryVersion;
+    private final ObjectMapper smileMapper;
+
+    public MigrationFileCache(@NonNull final Path directory) {
+        this(directory, VersionUtils.getLibraryVersion());
+    }
+
+    MigrationFileCache(@NonNull final Path directory, @NonNull final String libraryVersion) {
+        this.directory = directory.resolve(libraryVersion.replaceAll("[^A-Za-z0-9._-]", "_"));
+        this.libraryVersion = libraryVersion;
+        this.smileMapper = SmileUtils.createSmileMapper();
+    }
+
+    public Optional<ChecksumedMigrationFile> get(final String fileSha256Checksum) {
+        final Path entry = directory.resolve(fileSha256Checksum + ENTRY_SUFFIX);
+        try (final InputStream inputStream = Files.newInputStream(entry)) {
+            final CachedMigrationFile cachedMigrationFile = smileMapper.readValue(inputStream, CachedMigrationFile.class);
+            if (libraryVersion.equals(cachedMigrationFile.getLibraryVersion()) && fileSha256Checksum.equals(cachedMigrationFile.getFileSha256Checksum())) {
+                return Optional.of(cachedMigrationFile.getChecksumedMigrationFile());
+            }
+            log.warn("Ignoring cache entry " + entry + " which doesn't belong to the file or library version");
+        } catch (NoSuchFileException e) {
+            log.debug("No cache entry {}", entry);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable cache entry " + entry, e);
+        }
+        return Optional.empty();
+    }
+
+    public void put(final String fileSha256Checksum, final ChecksumedMigrationFile checksumedMigrationFile) {
+        final Path entry = directory.resolve(fileSha256Checksum + ENTRY_SUFFIX);
+        Path temporaryFile = null;
+        try {
+            Files.createDirectories(directory);
+            temporaryFile = Files.createTempFile(directory, fileSha256Checksum, ".tmp");
+            try (final OutputStream outputStream = Files.newOutputStream(temporaryFile)) {
+                smileMapper.writeValue(outputStream, new CachedMigrationFile(libraryVersion, fileSha256Checksum, checksumedMigrationFile));
+            }
+            try {
+                Files.move(temporaryFile, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Couldn't write cache entry " + entry, e);
+            if (temporaryFile != null) {
+                try {
+                    Files.deleteIfExists(temporaryFile);
+                } catch (IOException deleteException) {
+                    log.debug("Couldn't delete temporary cache file {}", temporaryFile, deleteException);
+                }
+            }
+        }
+    }
+}
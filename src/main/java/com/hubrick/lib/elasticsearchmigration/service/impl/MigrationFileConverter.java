@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.base.Suppliers;
+import com.hubrick.lib.elasticsearchmigration.model.input.*;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkLoad;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Conflicts;
+import com.hubrick.lib.elasticsearchmigration.model.migration.OpType;
+import com.hubrick.lib.elasticsearchmigration.model.migration.*;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Converts parsed changeset files into the migrations which are sent to elasticsearch.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class MigrationFileConverter {
+
+    public MigrationSetEntry convert(final VersionedMigrationFile versionedMigrationFile) {
+        final ChecksumedMigrationFile checksumedMigrationFile = versionedMigrationFile.getChecksumedMigrationFile();
+        return new MigrationSetEntry(
+                () -> convertToMigrations(checksumedMigrationFile),
+                () -> convertBulkLoad(checksumedMigrationFile.getMigrationFile()),
+                new MigrationMeta(
+                        checksumedMigrationFile.getSha256Checksums(),
+                        versionedMigrationFile.getVersion(),
+                        versionedMigrationFile.getName()
+                )
+        );
+    }
+
+    /**
+     * Creates an entry which only knows the checksums of the raw file. The changeset is parsed once its migrations
+     * or all of its checksums are requested.
+     */
+    public MigrationSetEntry convertLazily(final int version,
+                                           final String name,
+                                           final Set<String> fileSha256Checksums,
+                                           final Supplier<ChecksumedMigrationFile> checksumedMigrationFileSupplier) {
+        final Supplier<ChecksumedMigrationFile> checksumedMigrationFile = Suppliers.memoize(checksumedMigrationFileSupplier::get);
+        return new MigrationSetEntry(
+                () -> convertToMigrations(checksumedMigrationFile.get()),
+                () -> convertBulkLoad(checksumedMigrationFile.get().getMigrationFile()),
+                new MigrationMeta(
+                        fileSha256Checksums,
+                        version,
+                        name,
+                        () -> checksumedMigrationFile.get().getSha256Checksums()
+                )
+        );
+    }
+
+    private List<Migration> convertToMigrations(final ChecksumedMigrationFile checksumedMigrationFile) {
+        return checksumedMigrationFile.getMigrationFile().getMigrations().stream()
+                .map(e -> {
+                    if (e instanceof BulkFileMigrationFileEntry) {
+                        final BulkFileMigrationFileEntry bulkFileMigrationFileEntry = (BulkFileMigrationFileEntry) e;
+                        return convertBulkFile(bulkFileMigrationFileEntry, Optional.ofNullable(checksumedMigrationFile.getResourceSha256Checksums().get(bulkFileMigrationFileEntry.getFile())));
+                    }
+                    return convertToMigration(e);
+                })
+                .collect(Collectors.toList());
+    }
+
+    private BulkFileMigration convertBulkFile(final BulkFileMigrationFileEntry bulkFileMigrationFileEntry, final Optional<String> sha256Checksum) {
+        return new BulkFileMigration(
+                bulkFileMigrationFileEntry.getFile(),
+                bulkFileMigrationFileEntry.getIndex(),
+                bulkFileMigrationFileEntry.getMapping(),
+                bulkFileMigrationFileEntry.getIdField(),
+                bulkFileMigrationFileEntry.getOpType().map(e -> OpType.valueOf(e.name())),
+                sha256Checksum
+        );
+    }
+
+    private Optional<BulkLoad> convertBulkLoad(final MigrationFile migrationFile) {
+        return migrationFile.getBulkLoad().map(e -> new BulkLoad(e.getIndices(), e.getMaxNumSegments()));
+    }
+
+    public Migration convertToMigration(final BaseMigrationFileEntry baseMigrationFileEntry) {
+        switch (baseMigrationFileEntry.getType()) {
+            case CREATE_INDEX:
+                final CreateIndexMigrationFileEntry createIndexMigrationFileEntry = (CreateIndexMigrationFileEntry) baseMigrationFileEntry;
+                return new CreateIndexMigration(createIndexMigrationFileEntry.getIndex(), createIndexMigrationFileEntry.getDefinition());
+            case DELETE_INDEX:
+                final DeleteIndexMigrationFileEntry deleteIndexMigrationFileEntry = (DeleteIndexMigrationFileEntry) baseMigrationFileEntry;
+                return new DeleteIndexMigration(deleteIndexMigrationFileEntry.getIndex());
+            case CREATE_OR_UPDATE_INDEX_TEMPLATE:
+                final CreateOrUpdateIndexTemplateMigrationFileEntry createOrUpdateIndexTemplateMigrationFileEntry = (CreateOrUpdateIndexTemplateMigrationFileEntry) baseMigrationFileEntry;
+                return new CreateOrUpdateIndexTemplateMigration(createOrUpdateIndexTemplateMigrationFileEntry.getTemplate(), createOrUpdateIndexTemplateMigrationFileEntry.getDefinition());
+            case DELETE_INDEX_TEMPLATE:
+                final DeleteIndexTemplateMigrationFileEntry deleteIndexTemplateMigrationFileEntry = (DeleteIndexTemplateMigrationFileEntry) baseMigrationFileEntry;
+                return new DeleteIndexTemplateMigration(deleteIndexTemplateMigrationFileEntry.getTemplate());
+            case UPDATE_MAPPING:
+                final UpdateMappingMigrationFileEntry updateMappingMigrationFileEntry = (UpdateMappingMigrationFileEntry) baseMigrationFileEntry;
+                return new UpdateMappingMigration(updateMappingMigrationFileEntry.getIndices(), updateMappingMigrationFileEntry.getMapping(), updateMappingMigrationFileEntry.getDefinition());
+            case INDEX_DOCUMENT:
+                final IndexDocumentMigrationFileEntry indexDocumentMigrationFileEntry = (IndexDocumentMigrationFileEntry) baseMigrationFileEntry;
+                return new IndexDocumentMigration(
+                        indexDocumentMigrationFileEntry.getIndex(),
+                        indexDocumentMigrationFileEntry.getMapping(),
+                        indexDocumentMigrationFileEntry.getId(),
+                        indexDocumentMigrationFileEntry.getOpType().map(e -> OpType.valueOf(e.name())),
+                        indexDocumentMigrationFileEntry.getDefinition()
+                );
+            case DELETE_DOCUMENT:
+                final DeleteDocumentMigrationFileEntry deleteDocumentMigrationFileEntry = (DeleteDocumentMigrationFileEntry) baseMigrationFileEntry;
+                return new DeleteDocumentMigration(
+                        deleteDocumentMigrationFileEntry.getIndex(),
+                        deleteDocumentMigrationFileEntry.getMapping(),
+                        deleteDocumentMigrationFileEntry.getId()
+                );
+            case UPDATE_DOCUMENT:
+                final UpdateDocumentMigrationFileEntry updateDocumentMigrationFileEntry = (UpdateDocumentMigrationFileEntry) baseMigrationFileEntry;
+                return new UpdateDocumentMigration(
+                        updateDocumentMigrationFileEntry.getIndex(),
+                        updateDocumentMigrationFileEntry.getMapping(),
+                        updateDocumentMigrationFileEntry.getId(),
+                        updateDocumentMigrationFileEntry.getDefinition()
+                );
+            case REINDEX:
+                final ReindexMigrationFileEntry reindexMigrationFileEntry = (ReindexMigrationFileEntry) baseMigrationFileEntry;
+                return new ReindexMigration(
+                        reindexMigrationFileEntry.getSource(),
+                        reindexMigrationFileEntry.getDestination(),
+                        reindexMigrationFileEntry.getQuery(),
+                        reindexMigrationFileEntry.getScript(),
+                        reindexMigrationFileEntry.getSlices().orElse(TaskMigration.AUTO_SLICES),
+                        reindexMigrationFileEntry.getRequestsPerSecond()
+                );
+            case UPDATE_BY_QUERY:
+                final UpdateByQueryMigrationFileEntry updateByQueryMigrationFileEntry = (UpdateByQueryMigrationFileEntry) baseMigrationFileEntry;
+                return new UpdateByQueryMigration(
+                        updateByQueryMigrationFileEntry.getIndices(),
+                        updateByQueryMigrationFileEntry.getQuery(),
+                        updateByQueryMigrationFileEntry.getScript(),
+                        updateByQueryMigrationFileEntry.getConflicts().map(e -> Conflicts.valueOf(e.name())).orElse(Conflicts.PROCEED),
+                        updateByQueryMigrationFileEntry.getSlices().orElse(TaskMigration.AUTO_SLICES),
+                        updateByQueryMigrationFileEntry.getRequestsPerSecond()
+                );
+            case DELETE_BY_QUERY:
+                final DeleteByQueryMigrationFileEntry deleteByQueryMigrationFileEntry = (DeleteByQueryMigrationFileEntry) baseMigrationFileEntry;
+                return new DeleteByQueryMigration(
+                        deleteByQueryMigrationFileEntry.getIndices(),
+                        deleteByQueryMigrationFileEntry.getQuery(),
+                        deleteByQueryMigrationFileEntry.getConflicts().map(e -> Conflicts.valueOf(e.name())).orElse(Conflicts.PROCEED),
+                        deleteByQueryMigrationFileEntry.getSlices().orElse(TaskMigration.AUTO_SLICES),
+                        deleteByQueryMigrationFileEntry.getRequestsPerSecond()
+                );
+            case ALIAS:
+                final AliasMigrationFileEntry aliasMigrationFileEntry = (AliasMigrationFileEntry) baseMigrationFileEntry;
+                return new AliasMigration(aliasMigrationFileEntry.getDefinition());
+            case REBUILD_INDEX:
+                final RebuildIndexMigrationFileEntry rebuildIndexMigrationFileEntry = (RebuildIndexMigrationFileEntry) baseMigrationFileEntry;
+                return new RebuildIndexMigration(
+                        rebuildIndexMigrationFileEntry.getAlias(),
+                        rebuildIndexMigrationFileEntry.getDefinition(),
+                        rebuildIndexMigrationFileEntry.getQuery(),
+                        rebuildIndexMigrationFileEntry.getScript(),
+                        rebuildIndexMigrationFileEntry.getSlices().orElse(TaskMigration.AUTO_SLICES),
+                        rebuildIndexMigrationFileEntry.getRequestsPerSecond(),
+                        rebuildIndexMigrationFileEntry.getWarmup()
+                );
+            case BULK_FILE:
+                return convertBulkFile((BulkFileMigrationFileEntry) baseMigrationFileEntry, Optional.empty());
+            default:
+                throw new IllegalStateException("Unknown migration type " + baseMigrationFileEntry.getType());
+        }
+    }
+}
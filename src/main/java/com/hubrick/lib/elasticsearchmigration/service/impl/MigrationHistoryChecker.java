@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.Sets;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.exception.PreviousMigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.es.MigrationEntry;
+import com.hubrick.lib.elasticsearchmigration.model.es.State;
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationMeta;
+import lombok.NonNull;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Checks the migration history of an identifier against the local migration set one entry at a time, so that the
+ * history can be streamed page by page in any order instead of being loaded into memory as a whole.
+ * <p>
+ * The history is valid if every entry matches the local migration with the same version and the applied versions
+ * form a prefix of the ordered local migration set. Only the applied version numbers are retained.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+class MigrationHistoryChecker implements Consumer<MigrationEntry> {
+
+    private final boolean ignorePreviousFailures;
+    private final List<MigrationMeta> orderedMigrationMetas;
+    private final Map<Integer, MigrationMeta> migrationMetasByVersion = new LinkedHashMap<>();
+    private final Set<Integer> appliedVersions = new HashSet<>();
+
+    private long successfulEntries = 0;
+    private MigrationEntry lastMigrationEntry;
+
+    MigrationHistoryChecker(final boolean ignorePreviousFailures, @NonNull final List<MigrationMeta> orderedMigrationMetas) {
+        this.ignorePreviousFailures = ignorePreviousFailures;
+        this.orderedMigrationMetas = orderedMigrationMetas;
+        orderedMigrationMetas.forEach(e -> migrationMetasByVersion.put(e.getVersion(), e));
+    }
+
+    @Override
+    public void accept(final MigrationEntry migrationEntry) {
+        if (!ignorePreviousFailures && migrationEntry.getState() != State.SUCCESS) {
+            throw new PreviousMigrationFailedException("Previous migration in FAILED state. Message: " + migrationEntry.getFailureMessage());
+        }
+
+        if (migrationEntry.getState() == State.SUCCESS) {
+            successfulEntries++;
+        }
+        appliedVersions.add(migrationEntry.getVersion());
+        if (lastMigrationEntry == null || lastMigrationEntry.getVersion() < migrationEntry.getVersion()) {
+            lastMigrationEntry = migrationEntry;
+        }
+
+        final MigrationMeta migrationMeta = migrationMetasByVersion.get(migrationEntry.getVersion());
+        if (migrationMeta == null) {
+            // Reported once the whole history was seen to distinguish a smaller local set from a version gap
+            return;
+        }
+
+        // The file checksum usually matches, only a reformatted file has to be parsed to compare its normalized checksum
+        if (Sets.intersection(migrationEntry.getSha256Checksum(), migrationMeta.getSha256Checksums()).isEmpty() &&
+                Sets.intersection(migrationEntry.getSha256Checksum(), migrationMeta.getAllSha256Checksums()).isEmpty()) {
+            throw new MigrationFailedException("Checksum mismatch for " + migrationEntry.getName() + ". Local checksums: " + migrationMeta.getVersion() + ":" + migrationMeta.getAllSha256Checksums() + ", ES checksums: " + migrationEntry.getVersion() + ":" + migrationEntry.getSha256Checksum());
+        } else if (!migrationEntry.getName().equals(migrationMeta.getName())) {
+            throw new MigrationFailedException("Name mismatch. Local checksum: " + migrationMeta.getVersion() + ":" + migrationMeta.getName() + ", ES checksum: " + migrationEntry.getVersion() + ":" + migrationEntry.getName());
+        }
+    }
+
+    /**
+     * Completes the checks after the whole history has been streamed.
+     *
+     * @return the versions found in the history
+     */
+    Set<Integer> finish() {
+        if (orderedMigrationMetas.size() < successfulEntries) {
+            throw new MigrationFailedException("Local migration set smaller then one found in ES. Local migration set: " + orderedMigrationMetas.size() + ", ES migration set: " + appliedVersions.size());
+        }
+
+        for (Integer appliedVersion : appliedVersions) {
+            if (!migrationMetasByVersion.containsKey(appliedVersion)) {
+                throw new MigrationFailedException("Version mismatch. Version " + appliedVersion + " found in ES is missing in the local migration set");
+            }
+        }
+
+        for (MigrationMeta migrationMeta : orderedMigrationMetas) {
+            if (lastMigrationEntry != null && !appliedVersions.contains(migrationMeta.getVersion()) && lastMigrationEntry.getVersion() >= migrationMeta.getVersion()) {
+                throw new MigrationFailedException("Migration Set contains version lower or equal to the latest applied version. New version: " + migrationMeta.getVersion() + ", Latest applied version: " + lastMigrationEntry.getVersion());
+            }
+        }
+
+        return appliedVersions;
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationLockedException;
+import com.hubrick.lib.elasticsearchmigration.model.es.LockEntry;
+import com.hubrick.lib.elasticsearchmigration.model.es.LockEntryMeta;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock document per identifier which serializes migrations of concurrently starting instances.
+ * <p>
+ * The lock is claimed with op_type=create and held as a lease: while it is held a heartbeat rewrites the document every third
+ * of the lease. Waiting instances poll the document with exponential backoff and jitter. A lease whose document version did not
+ * change for a whole lease period, measured on the waiting instance so clocks don't have to be in sync, belongs to a crashed
+ * instance and is taken over with an optimistic version check. Claims are retried on transient errors; finding the own owner
+ * in the document means an earlier attempt succeeded. A lock without owner is not a lease: it is waited for
+ * {@code retryCount} times {@code backoffPeriodInMillis} and never taken over.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+class MigrationLock {
+
+    private final RestClient restClient;
+    private final ObjectMapper objectMapper;
+    private final ScheduledExecutorService scheduler;
+    private final RequestRetrier requestRetrier;
+    private final String lockId;
+    private final String owner;
+    private final long leaseInMillis;
+    private final long backoffPeriodInMillis;
+    private final int retryCount;
+
+    MigrationLock(@NonNull final RestClient restClient,
+                  @NonNull final ObjectMapper objectMapper,
+                  @NonNull final ScheduledExecutorService scheduler,
+                  @NonNull final RequestRetrier requestRetrier,
+                  @NonNull final String identifier,
+                  final long leaseInMillis,
+                  final long backoffPeriodInMillis,
+                  final int retryCount) {
+        this.restClient = restClient;
+        this.objectMapper = objectMapper;
+        this.scheduler = scheduler;
+        this.requestRetrier = requestRetrier;
+        this.lockId = identifier + "-global";
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+        this.leaseInMillis = leaseInMillis;
+        this.backoffPeriodInMillis = backoffPeriodInMillis;
+        this.retryCount = retryCount;
+    }
+
+    /**
+     * Blocks until the lock is held by this instance.
+     */
+    Lease acquire() {
+        int attempt = 0;
+        int retries = 0;
+        long observedVersion = -1;
+        long observedAt = System.nanoTime();
+        while (true) {
+            final Instant created = Instant.now();
+            final Optional<Long> claimedVersion = write(new LockEntry(owner, created, created), ImmutableMap.of("op_type", "create"));
+            if (claimedVersion.isPresent()) {
+                log.info("Acquired migration lock " + lockId);
+                return new Lease(created, claimedVersion.get());
+            }
+
+            final Optional<VersionedLockEntry> current = read();
+            if (!current.isPresent()) {
+                // Released between the claim and the read
+                continue;
+            }
+
+            if (owner.equals(current.get().getLockEntry().getOwner())) {
+                // The claim was retried after its first attempt succeeded without the response arriving
+                log.info("Acquired migration lock " + lockId);
+                return new Lease(current.get().getLockEntry().getCreated(), current.get().getVersion());
+            }
+
+            if (current.get().getLockEntry().getOwner() == null) {
+                if (retries++ >= retryCount) {
+                    throw new MigrationLockedException("Migration lock " + lockId + " is still held after " + retryCount + " retries");
+                }
+                log.info("Migration lock " + lockId + " is held without lease. Retrying in " + backoffPeriodInMillis + "ms");
+                sleep(backoffPeriodInMillis);
+                continue;
+            }
+
+            if (current.get().getVersion() != observedVersion) {
+                observedVersion = current.get().getVersion();
+                observedAt = System.nanoTime();
+            } else if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - observedAt) >= leaseInMillis) {
+                log.warn("Lease of " + current.get().getLockEntry().getOwner() + " on migration lock " + lockId + " expired. Taking it over");
+                final Optional<Long> takenOverVersion = write(new LockEntry(owner, created, created), ImmutableMap.of("version", String.valueOf(observedVersion)));
+                if (takenOverVersion.isPresent()) {
+                    return new Lease(created, takenOverVersion.get());
+                }
+                continue;
+            }
+
+            log.info("Migration lock " + lockId + " is held by " + current.get().getLockEntry().getOwner() + ". Waiting...");
+            sleep(RequestRetrier.getBackoffInMillis(attempt++, backoffPeriodInMillis));
+        }
+    }
+
+    private void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrationLockedException("Interrupted while waiting for migration lock " + lockId, e);
+        }
+    }
+
+    private String getUrl() {
+        return "/" + LockEntryMeta.INDEX + "/" + LockEntryMeta.TYPE + "/" + lockId;
+    }
+
+    /**
+     * @return the new document version or empty if the write lost against a concurrent one
+     */
+    private Optional<Long> write(final LockEntry lockEntry, final Map<String, String> parameters) {
+        return requestRetrier.execute("PUT " + getUrl(), attempt -> writeOnce(lockEntry, parameters));
+    }
+
+    private Optional<Long> writeOnce(final LockEntry lockEntry, final Map<String, String> parameters) {
+        try {
+            final StringEntity entity = new StringEntity(objectMapper.writeValueAsString(lockEntry), ContentType.APPLICATION_JSON);
+            final Response response = restClient.performRequest("PUT", getUrl(), parameters, entity);
+            return Optional.of(objectMapper.readTree(response.getEntity().getContent()).path("_version").asLong());
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() == 409) {
+                return Optional.empty();
+            }
+            throw new MigrationFailedException("Error writing migration lock", e);
+        } catch (IOException e) {
+            throw new MigrationFailedException("IO Exception during migration", e);
+        }
+    }
+
+    private Optional<VersionedLockEntry> read() {
+        return requestRetrier.execute("GET " + getUrl(), attempt -> readOnce());
+    }
+
+    private Optional<VersionedLockEntry> readOnce() {
+        try {
+            final Response response = restClient.performRequest("GET", getUrl(), ImmutableMap.of("realtime", "true"));
+            final JsonNode document = objectMapper.readTree(response.getEntity().getContent());
+            return Optional.of(new VersionedLockEntry(document.path("_version").asLong(), objectMapper.treeToValue(document.path("_source"), LockEntry.class)));
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() == 404) {
+                return Optional.empty();
+            }
+            throw new MigrationFailedException("Error reading migration lock", e);
+        } catch (IOException e) {
+            throw new MigrationFailedException("IO Exception during migration", e);
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class VersionedLockEntry {
+
+        private final long version;
+        private final LockEntry lockEntry;
+    }
+
+    /**
+     * A held lock. The heartbeat runs until the lease is closed, a heartbeat which finds the document changed by someone
+     * else marks the lease as lost. A lease which wasn't renewed for a whole lease period counts as lost as well, since
+     * waiting instances take it over by then.
+     */
+    class Lease implements AutoCloseable {
+
+        private final Instant created;
+        private final ScheduledFuture<?> heartbeat;
+        private long version;
+        private long renewedAt = System.nanoTime();
+        private boolean lost = false;
+
+        private Lease(final Instant created, final long version) {
+            this.created = created;
+            this.version = version;
+            final long heartbeatInterval = Math.max(1, leaseInMillis / 3);
+            this.heartbeat = scheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void heartbeat() {
+            if (lost) {
+                return;
+            }
+
+            try {
+                // Not retried: a retry could conflict with its own earlier attempt and the next heartbeat follows anyway
+                final Optional<Long> newVersion = writeOnce(new LockEntry(owner, created, Instant.now()), ImmutableMap.of("version", String.valueOf(version)));
+                if (newVersion.isPresent()) {
+                    version = newVersion.get();
+                    renewedAt = System.nanoTime();
+                } else {
+                    lost = true;
+                    log.error("Migration lock " + lockId + " was taken over by another instance");
+                }
+            } catch (RuntimeException e) {
+                // A missed heartbeat is harmless as long as one succeeds within the lease
+                log.warn("Heartbeat of migration lock " + lockId + " failed", e);
+            }
+        }
+
+        /**
+         * @throws MigrationLockedException if the lock was taken over by another instance or may have been
+         */
+        synchronized void verify() {
+            if (lost) {
+                throw new MigrationLockedException("Migration lock " + lockId + " was taken over by another instance");
+            }
+            final long unrenewedInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - renewedAt);
+            if (unrenewedInMillis >= leaseInMillis) {
+                throw new MigrationLockedException("Migration lock " + lockId + " was not renewed for " + unrenewedInMillis + "ms and may have been taken over by another instance");
+            }
+        }
+
+        /**
+         * Deletes the lock document. Failures are only logged, so they don't hide the outcome of the migration. A lock
+         * which couldn't be deleted is taken over once its lease expired.
+         */
+        @Override
+        public void close() {
+            heartbeat.cancel(false);
+            synchronized (this) {
+                if (lost) {
+                    return;
+                }
+                try {
+                    restClient.performRequest("DELETE", getUrl(), ImmutableMap.of("version", String.valueOf(version)));
+                    log.info("Released migration lock " + lockId);
+                } catch (ResponseException e) {
+                    if (e.getResponse().getStatusLine().getStatusCode() != 404 && e.getResponse().getStatusLine().getStatusCode() != 409) {
+                        log.error("Error releasing migration lock " + lockId + ". It's released once its lease expired", e);
+                    }
+                } catch (IOException e) {
+                    log.error("IO Exception while releasing migration lock " + lockId + ". It's released once its lease expired", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.model.migration.AliasMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkFileMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.CreateIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.CreateOrUpdateIndexTemplateMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteIndexTemplateMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.RebuildIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.RefreshIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.TaskMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.UpdateMappingMigration;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A resource (index, index template or document) which is read or written by a {@link Migration}.
+ * Two migrations have to keep their order if one of them writes a resource which overlaps a resource touched by the other one.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Getter
+@EqualsAndHashCode
+@AllArgsConstructor
+public class MigrationResource {
+
+    private static final String WILDCARD = "*";
+    private static final Set<String> ALIAS_ACTION_NAME_FIELDS = ImmutableSet.of("index", "indices", "alias", "aliases");
+
+    @NonNull
+    private final Type type;
+    @NonNull
+    private final String name;
+    @NonNull
+    private final Access access;
+
+    public enum Type {
+        INDEX,
+        TEMPLATE,
+        DOCUMENT,
+        /**
+         * Used for migrations whose effect is unknown, overlaps with every other resource
+         */
+        CLUSTER
+    }
+
+    public enum Access {
+        READ,
+        WRITE
+    }
+
+    public static Set<MigrationResource> resolve(final Migration migration) {
+        final ImmutableSet.Builder<MigrationResource> resources = ImmutableSet.builder();
+        if (migration instanceof CreateIndexMigration) {
+            final CreateIndexMigration createIndexMigration = (CreateIndexMigration) migration;
+            resources.add(new MigrationResource(Type.INDEX, createIndexMigration.getIndex(), Access.WRITE));
+            // Aliases declared in the definition resolve to the new index as soon as it exists
+            getDefinedAliases(createIndexMigration.getDefinition()).forEach(e -> resources.add(new MigrationResource(Type.INDEX, e, Access.WRITE)));
+        } else if (migration instanceof DeleteIndexMigration) {
+            resources.add(new MigrationResource(Type.INDEX, ((DeleteIndexMigration) migration).getIndex(), Access.WRITE));
+        } else if (migration instanceof UpdateMappingMigration) {
+            ((UpdateMappingMigration) migration).getIndices().forEach(e -> resources.add(new MigrationResource(Type.INDEX, e, Access.WRITE)));
+        } else if (migration instanceof RefreshIndexMigration) {
+            ((RefreshIndexMigration) migration).getIndices().forEach(e -> resources.add(new MigrationResource(Type.INDEX, e, Access.WRITE)));
+        } else if (migration instanceof CreateOrUpdateIndexTemplateMigration) {
+            final CreateOrUpdateIndexTemplateMigration templateMigration = (CreateOrUpdateIndexTemplateMigration) migration;
+            resources.add(new MigrationResource(Type.TEMPLATE, templateMigration.getTemplate(), Access.WRITE));
+            // A template applies to indices which are created afterwards, so it's ordered against every index its patterns match
+            getIndexPatterns(templateMigration.getDefinition()).forEach(e -> resources.add(new MigrationResource(Type.INDEX, e, Access.WRITE)));
+            getDefinedAliases(templateMigration.getDefinition()).forEach(e -> resources.add(new MigrationResource(Type.INDEX, e, Access.WRITE)));
+        } else if (migration instanceof DeleteIndexTemplateMigration) {
+            resources.add(new MigrationResource(Type.TEMPLATE, ((DeleteIndexTemplateMigration) migration).getName(), Access.WRITE));
+        } else if (migration instanceof DocumentMigration) {
+            addDocumentResources(resources, (DocumentMigration) migration);
+        } else if (migration instanceof BulkMigration) {
+            ((BulkMigration) migration).getMigrations().forEach(e -> addDocumentResources(resources, e));
+        } else if (migration instanceof AliasMigration) {
+            final Set<String> names = getAliasActionNames(((AliasMigration) migration).getDefinition());
+            // Aliases share the namespace of indices, an alias change is ordered like a change of the indices it resolves to
+            names.forEach(e -> resources.add(new MigrationResource(Type.INDEX, e, Access.WRITE)));
+            if (names.isEmpty()) {
+                resources.add(new MigrationResource(Type.CLUSTER, WILDCARD, Access.WRITE));
+            }
+        } else if (migration instanceof BulkFileMigration) {
+            // The ids of the documents are only known once the file is read, so every document of the index may be written
+            resources.add(new MigrationResource(Type.INDEX, ((BulkFileMigration) migration).getIndex(), Access.WRITE));
+        } else if (migration instanceof RebuildIndexMigration) {
+            final RebuildIndexMigration rebuildIndexMigration = (RebuildIndexMigration) migration;
+            resources.add(new MigrationResource(Type.INDEX, rebuildIndexMigration.getAlias(), Access.WRITE));
+            resources.add(new MigrationResource(Type.INDEX, rebuildIndexMigration.getAlias() + "_v*", Access.WRITE));
+        } else if (migration instanceof TaskMigration) {
+            ((TaskMigration) migration).getSourceIndices().forEach(e -> resources.add(new MigrationResource(Type.INDEX, e, Access.READ)));
+            ((TaskMigration) migration).getTargetIndices().forEach(e -> resources.add(new MigrationResource(Type.INDEX, e, Access.WRITE)));
+        } else {
+            resources.add(new MigrationResource(Type.CLUSTER, WILDCARD, Access.WRITE));
+        }
+        return resources.build();
+    }
+
+    private static void addDocumentResources(final ImmutableSet.Builder<MigrationResource> resources, final DocumentMigration migration) {
+        resources.add(new MigrationResource(Type.INDEX, migration.getIndex(), Access.READ));
+        // Documents with an auto generated id can't collide with any other write
+        migration.getId().ifPresent(id -> resources.add(new MigrationResource(Type.DOCUMENT, migration.getIndex() + "/" + migration.getMapping() + "/" + id, Access.WRITE)));
+    }
+
+    private static Set<String> getAliasActionNames(final String definition) {
+        final Object actions = JsonPath.parse(definition, com.jayway.jsonpath.Configuration.defaultConfiguration().addOptions(Option.SUPPRESS_EXCEPTIONS)).read("$.actions[*].*");
+        final ImmutableSet.Builder<String> result = ImmutableSet.builder();
+        if (actions instanceof Collection) {
+            for (Object action : (Collection<?>) actions) {
+                if (action instanceof Map) {
+                    for (String field : ALIAS_ACTION_NAME_FIELDS) {
+                        final Object value = ((Map<?, ?>) action).get(field);
+                        if (value instanceof Collection) {
+                            ((Collection<?>) value).forEach(e -> result.add(String.valueOf(e)));
+                        } else if (value != null) {
+                            result.add(String.valueOf(value));
+                        }
+                    }
+                }
+            }
+        }
+        return result.build();
+    }
+
+    private static Set<String> getDefinedAliases(final String definition) {
+        final Object aliases = JsonPath.parse(definition, com.jayway.jsonpath.Configuration.defaultConfiguration().addOptions(Option.SUPPRESS_EXCEPTIONS)).read("$.aliases");
+        final ImmutableSet.Builder<String> result = ImmutableSet.builder();
+        if (aliases instanceof Map) {
+            ((Map<?, ?>) aliases).keySet().forEach(e -> result.add(String.valueOf(e)));
+        }
+        return result.build();
+    }
+
+    private static Set<String> getIndexPatterns(final String definition) {
+        final Object patterns = JsonPath.parse(definition, com.jayway.jsonpath.Configuration.defaultConfiguration().addOptions(Option.SUPPRESS_EXCEPTIONS)).read("$.index_patterns");
+        final Object legacyPattern = JsonPath.parse(definition, com.jayway.jsonpath.Configuration.defaultConfiguration().addOptions(Option.SUPPRESS_EXCEPTIONS)).read("$.template");
+        if (patterns instanceof Collection && !((Collection<?>) patterns).isEmpty()) {
+            final ImmutableSet.Builder<String> result = ImmutableSet.builder();
+            ((Collection<?>) patterns).forEach(e -> result.add(String.valueOf(e)));
+            return result.build();
+        } else if (patterns instanceof String) {
+            return ImmutableSet.of((String) patterns);
+        } else if (legacyPattern instanceof String) {
+            return ImmutableSet.of((String) legacyPattern);
+        } else {
+            return ImmutableSet.of(WILDCARD);
+        }
+    }
+
+    public boolean conflictsWith(final MigrationResource other) {
+        if (access == Access.READ && other.access == Access.READ) {
+            return false;
+        } else if (type == Type.CLUSTER || other.type == Type.CLUSTER) {
+            return true;
+        } else if (type != other.type) {
+            return false;
+        } else if (type == Type.DOCUMENT) {
+            return name.equals(other.name);
+        } else {
+            return overlaps(normalize(name), normalize(other.name));
+        }
+    }
+
+    private static String normalize(final String name) {
+        return "_all".equals(name) ? WILDCARD : name;
+    }
+
+    /**
+     * Checks whether there is any name which is matched by both patterns. Only '*' is treated as wildcard like elasticsearch does.
+     */
+    static boolean overlaps(final String first, final String second) {
+        return overlaps(first, 0, second, 0, new Boolean[first.length() + 1][second.length() + 1]);
+    }
+
+    private static boolean overlaps(final String first, final int i, final String second, final int j, final Boolean[][] memo) {
+        if (memo[i][j] != null) {
+            return memo[i][j];
+        }
+
+        final boolean result;
+        if (i == first.length() && j == second.length()) {
+            result = true;
+        } else if (i < first.length() && first.charAt(i) == '*') {
+            result = overlaps(first, i + 1, second, j, memo) || (j < second.length() && overlaps(first, i, second, j + 1, memo));
+        } else if (j < second.length() && second.charAt(j) == '*') {
+            result = overlaps(first, i, second, j + 1, memo) || (i < first.length() && overlaps(first, i + 1, second, j, memo));
+        } else {
+            result = i < first.length() && j < second.length() && first.charAt(i) == second.charAt(j) && overlaps(first, i + 1, second, j + 1, memo);
+        }
+        memo[i][j] = result;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + ":" + name + "(" + access.name().toLowerCase() + ")";
+    }
+}
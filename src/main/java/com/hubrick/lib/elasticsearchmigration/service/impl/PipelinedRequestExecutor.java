@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkFileMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Executes the migrations of a version asynchronously while keeping at most {@code maxInFlightRequests} of them in flight.
+ * <p>
+ * The order is derived from a {@link MigrationDependencyGraph}: a migration is sent once all migrations it depends on completed,
+ * independent migrations run concurrently. Whenever more migrations are ready than the window allows the one which comes
+ * first in the changeset is sent first. With a window of 1 the migrations are simply sent one after another in changeset
+ * order and no graph is built.
+ * {@link BulkMigration}s and {@link BulkFileMigration}s can be limited further by a supplier, which is evaluated before every
+ * dispatch so it can follow a {@link ThroughputController}. A bulk which doesn't fit into that window is held back without
+ * holding back the other ready migrations.
+ * The first failure stops the dispatching. Requests which are already on the wire are awaited since the low level client
+ * doesn't allow to abort them.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+public class PipelinedRequestExecutor {
+
+    private final int maxInFlightRequests;
+    private final IntSupplier maxInFlightBulkRequests;
+    private final Function<Migration, CompletableFuture<Void>> migrationPerformer;
+
+    public PipelinedRequestExecutor(final int maxInFlightRequests, @NonNull final Function<Migration, CompletableFuture<Void>> migrationPerformer) {
+        this(maxInFlightRequests, () -> maxInFlightRequests, migrationPerformer);
+    }
+
+    public PipelinedRequestExecutor(final int maxInFlightRequests,
+                                    @NonNull final IntSupplier maxInFlightBulkRequests,
+                                    @NonNull final Function<Migration, CompletableFuture<Void>> migrationPerformer) {
+        checkArgument(maxInFlightRequests > 0, "maxInFlightRequests must be greater than 0");
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.maxInFlightBulkRequests = maxInFlightBulkRequests;
+        this.migrationPerformer = migrationPerformer;
+    }
+
+    private static boolean isBulk(final Migration migration) {
+        return migration instanceof BulkMigration || migration instanceof BulkFileMigration;
+    }
+
+    public void execute(final List<Migration> migrations) {
+        if (maxInFlightRequests == 1) {
+            // The changeset order is kept anyway, so the dependency graph isn't needed
+            for (Migration migration : migrations) {
+                try {
+                    migrationPerformer.apply(migration).join();
+                } catch (CompletionException e) {
+                    rethrow(unwrap(e));
+                }
+            }
+            return;
+        }
+
+        final MigrationDependencyGraph graph = new MigrationDependencyGraph(migrations);
+        log.info("Schedule with at most " + maxInFlightRequests + " requests in flight:\n" + graph.describe());
+        new Run(graph).execute();
+    }
+
+    private class Run {
+
+        private final MigrationDependencyGraph graph;
+        private final int[] pendingDependencies;
+        private final List<List<Integer>> dependents;
+        private final PriorityQueue<Integer> ready = new PriorityQueue<>();
+        private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+        private Throwable failure;
+        private int inFlight;
+        private int inFlightBulks;
+
+        Run(final MigrationDependencyGraph graph) {
+            this.graph = graph;
+            this.pendingDependencies = new int[graph.size()];
+            this.dependents = new ArrayList<>(graph.size());
+            for (int i = 0; i < graph.size(); i++) {
+                dependents.add(new ArrayList<>());
+            }
+            for (int i = 0; i < graph.size(); i++) {
+                pendingDependencies[i] = graph.getDependencies(i).size();
+                for (MigrationDependencyGraph.Dependency dependency : graph.getDependencies(i)) {
+                    dependents.get(dependency.getIndex()).add(i);
+                }
+                if (pendingDependencies[i] == 0) {
+                    ready.add(i);
+                }
+            }
+        }
+
+        void execute() {
+            while ((failure == null && !ready.isEmpty()) || inFlight > 0) {
+                dispatchReady();
+
+                final Completion completion = awaitCompletion();
+                inFlight--;
+                if (isBulk(graph.getMigrations().get(completion.getIndex()))) {
+                    inFlightBulks--;
+                }
+                if (completion.getThrowable() != null) {
+                    if (failure == null) {
+                        failure = completion.getThrowable();
+                    }
+                } else {
+                    for (Integer dependent : dependents.get(completion.getIndex())) {
+                        if (--pendingDependencies[dependent] == 0) {
+                            ready.add(dependent);
+                        }
+                    }
+                }
+            }
+
+            if (failure != null) {
+                rethrow(failure);
+            }
+        }
+
+        private void dispatchReady() {
+            final List<Integer> heldBack = new ArrayList<>();
+            while (failure == null && !ready.isEmpty() && inFlight < maxInFlightRequests) {
+                final int index = ready.poll();
+                if (!isBulk(graph.getMigrations().get(index))) {
+                    dispatch(index);
+                } else if (inFlightBulks < Math.max(1, maxInFlightBulkRequests.getAsInt())) {
+                    inFlightBulks++;
+                    dispatch(index);
+                } else {
+                    heldBack.add(index);
+                }
+            }
+            ready.addAll(heldBack);
+        }
+
+        private void dispatch(final int index) {
+            inFlight++;
+            try {
+                migrationPerformer.apply(graph.getMigrations().get(index))
+                        .whenComplete((result, throwable) -> completions.add(new Completion(index, unwrap(throwable))));
+            } catch (RuntimeException e) {
+                completions.add(new Completion(index, e));
+            }
+        }
+
+        private Completion awaitCompletion() {
+            try {
+                return completions.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MigrationFailedException("Interrupted while waiting for in flight requests", e);
+            }
+        }
+    }
+
+    private static void rethrow(final Throwable failure) {
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        throw new MigrationFailedException("Error performing migration", failure);
+    }
+
+    private static Throwable unwrap(final Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Completion {
+
+        private final int index;
+        private final Throwable throwable;
+    }
+}
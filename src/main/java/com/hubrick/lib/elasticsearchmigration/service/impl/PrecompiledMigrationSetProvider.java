@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hubrick.lib.elasticsearchmigration.exception.InvalidSchemaException;
+import com.hubrick.lib.elasticsearchmigration.model.input.PrecompiledMigrationSet;
+import com.hubrick.lib.elasticsearchmigration.model.input.VersionedMigrationFile;
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationSet;
+import com.hubrick.lib.elasticsearchmigration.service.MigrationSetProvider;
+import com.hubrick.lib.elasticsearchmigration.util.ResourceUtils;
+import com.hubrick.lib.elasticsearchmigration.util.SmileUtils;
+import com.hubrick.lib.elasticsearchmigration.util.VersionUtils;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Loads the changesets of a base package from the artifact written at build time by the elasticsearch-migration-maven-plugin
+ * (META-INF/es-migrations/&lt;basePackage&gt;.smile). The artifact already contains the parsed and checksumed changesets, so
+ * neither classpath scanning nor yaml parsing happens at runtime. If there is no artifact, or it was written in an incompatible
+ * format, the changesets are loaded by the fallback provider.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+public class PrecompiledMigrationSetProvider implements MigrationSetProvider {
+
+    public static final int FORMAT_VERSION = 1;
+    private static final String RESOURCE_DIRECTORY = "META-INF/es-migrations/";
+    private static final ObjectMapper SMILE_MAPPER = SmileUtils.createSmileMapper();
+
+    private final MigrationSetProvider fallbackMigrationSetProvider;
+    private final MigrationFileConverter migrationFileConverter = new MigrationFileConverter();
+
+    public PrecompiledMigrationSetProvider(@NonNull final MigrationSetProvider fallbackMigrationSetProvider) {
+        this.fallbackMigrationSetProvider = fallbackMigrationSetProvider;
+    }
+
+    public static String getResourceName(final String basePackage) {
+        return RESOURCE_DIRECTORY + basePackage + ".smile";
+    }
+
+    public static void write(@NonNull final List<VersionedMigrationFile> migrationFiles, @NonNull final OutputStream outputStream) throws IOException {
+        SMILE_MAPPER.writeValue(outputStream, new PrecompiledMigrationSet(FORMAT_VERSION, VersionUtils.getLibraryVersion(), migrationFiles));
+    }
+
+    @Override
+    public MigrationSet getMigrationSet(final String basePackage) {
+        checkNotNull(basePackage, "basePackage must not be null");
+
+        final String resourceName = getResourceName(basePackage);
+        final InputStream resource = ResourceUtils.getResourceAsStream(resourceName, this);
+        if (resource == null) {
+            log.info("No precompiled changesets found at " + resourceName + ", loading yaml changesets");
+            return fallbackMigrationSetProvider.getMigrationSet(basePackage);
+        }
+
+        final PrecompiledMigrationSet precompiledMigrationSet;
+        try (final InputStream inputStream = new BufferedInputStream(resource)) {
+            precompiledMigrationSet = SMILE_MAPPER.readValue(inputStream, PrecompiledMigrationSet.class);
+        } catch (IOException e) {
+            throw new InvalidSchemaException("Problem reading precompiled changesets " + resourceName, e);
+        }
+
+        if (precompiledMigrationSet.getFormatVersion() != FORMAT_VERSION) {
+            log.warn("Precompiled changesets " + resourceName + " have format " + precompiledMigrationSet.getFormatVersion() + " instead of " + FORMAT_VERSION + ", loading yaml changesets");
+            return fallbackMigrationSetProvider.getMigrationSet(basePackage);
+        }
+
+        log.info("Loaded " + precompiledMigrationSet.getMigrationFiles().size() + " precompiled changesets from " + resourceName + " (built with version " + precompiledMigrationSet.getLibraryVersion() + ")");
+        return new MigrationSet(precompiledMigrationSet.getMigrationFiles().stream()
+                .map(migrationFileConverter::convert)
+                .collect(Collectors.toCollection(LinkedHashSet::new)));
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.service.ResourceScanner;
+import org.reflections.Reflections;
+import org.reflections.scanners.ResourcesScanner;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Scans all classpath urls of the base package with Reflections. Reflections is an optional dependency, this scanner can only
+ * be used if it's on the classpath.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class ReflectionsResourceScanner implements ResourceScanner {
+
+    private static final String REFLECTIONS_CLASS = "org.reflections.Reflections";
+
+    public static boolean isAvailable() {
+        try {
+            Class.forName(REFLECTIONS_CLASS, false, ReflectionsResourceScanner.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Set<String> getResources(final String basePackage, final Pattern fileNamePattern) {
+        if (!isAvailable()) {
+            throw new IllegalStateException("No changeset index found for " + basePackage + " and " + REFLECTIONS_CLASS + " isn't on the classpath to scan for changesets");
+        }
+        return new Reflections(basePackage, new ResourcesScanner()).getResources(fileNamePattern);
+    }
+}
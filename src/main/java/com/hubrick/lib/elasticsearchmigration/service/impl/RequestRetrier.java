@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.ResponseException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/**
+ * Retries requests which failed with a transient error: 429, 502, 503 and 504 responses as well as connection level
+ * failures like refused connections or resets. Any other response, e.g. a 400 for a mapping conflict, is fatal.
+ * <p>
+ * Retries are delayed with exponential backoff and jitter, starting at {@value #INITIAL_BACKOFF_IN_MILLIS}ms and capped at
+ * the configured maximum. Attempts are numbered from 0 so callers can recognize a conflict with their own earlier attempt
+ * whose response got lost. The number of retries is recorded per request.
+ * <p>
+ * Timeouts, lost connections and 502/504 responses leave open whether the request was applied. Only idempotent requests
+ * are retried after them, see {@link #getRetryable(Migration)}.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+public class RequestRetrier {
+
+    static final long INITIAL_BACKOFF_IN_MILLIS = 250;
+
+    private final int retryCount;
+    private final long maxBackoffInMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, AtomicInteger> retries = new ConcurrentHashMap<>();
+
+    public RequestRetrier(final int retryCount, final long maxBackoffInMillis, @NonNull final ScheduledExecutorService scheduler) {
+        this.retryCount = retryCount;
+        this.maxBackoffInMillis = maxBackoffInMillis;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Performs the request on the calling thread, sleeping between attempts.
+     */
+    public <T> T execute(final String request, final IntFunction<T> attempt) {
+        return execute(request, RequestRetrier::isRetryable, attempt);
+    }
+
+    /**
+     * Like {@link #execute(String, IntFunction)} but only retries failures accepted by the given predicate.
+     */
+    public <T> T execute(final String request, final Predicate<Throwable> retryable, final IntFunction<T> attempt) {
+        for (int retry = 0; ; retry++) {
+            try {
+                return attempt.apply(retry);
+            } catch (RuntimeException e) {
+                if (retry >= retryCount || !retryable.test(e)) {
+                    throw e;
+                }
+
+                final long backoffInMillis = recordRetry(request, retry, e);
+                try {
+                    Thread.sleep(backoffInMillis);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    e.addSuppressed(interruptedException);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs the request asynchronously, later attempts are scheduled on the scheduler.
+     */
+    public <T> CompletableFuture<T> executeAsync(final String request, final IntFunction<CompletableFuture<T>> attempt) {
+        return executeAsync(request, RequestRetrier::isRetryable, attempt);
+    }
+
+    /**
+     * Like {@link #executeAsync(String, IntFunction)} but only retries failures accepted by the given predicate, e.g.
+     * {@link #isRejected(Throwable)} for requests which must not be sent twice.
+     */
+    public <T> CompletableFuture<T> executeAsync(final String request, final Predicate<Throwable> retryable, final IntFunction<CompletableFuture<T>> attempt) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        executeAsync(request, retryable, attempt, 0, result);
+        return result;
+    }
+
+    private <T> void executeAsync(final String request, final Predicate<Throwable> retryable, final IntFunction<CompletableFuture<T>> attempt, final int retry, final CompletableFuture<T> result) {
+        CompletableFuture<T> future;
+        try {
+            future = attempt.apply(retry);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        future.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                result.complete(value);
+                return;
+            }
+
+            final Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            if (retry >= retryCount || !retryable.test(cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            final long backoffInMillis = recordRetry(request, retry, cause);
+            scheduler.schedule(() -> executeAsync(request, retryable, attempt, retry + 1, result), backoffInMillis, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private long recordRetry(final String request, final int retry, final Throwable cause) {
+        retries.computeIfAbsent(request, e -> new AtomicInteger()).incrementAndGet();
+        final long backoffInMillis = getBackoffInMillis(retry, maxBackoffInMillis);
+        log.warn("Request " + request + " failed (" + describe(cause) + "). Retry " + (retry + 1) + " of " + retryCount + " in " + backoffInMillis + "ms");
+        return backoffInMillis;
+    }
+
+    /**
+     * @return the number of retries per request ("METHOD url") since this retrier was created
+     */
+    public Map<String, Integer> getRetryCounts() {
+        final ImmutableMap.Builder<String, Integer> retryCounts = ImmutableMap.builder();
+        retries.forEach((request, count) -> retryCounts.put(request, count.get()));
+        return retryCounts.build();
+    }
+
+    /**
+     * Exponential backoff with jitter: a random delay between half and all of {@code 2^retry} times the initial backoff,
+     * capped at the given maximum.
+     */
+    static long getBackoffInMillis(final int retry, final long maxBackoffInMillis) {
+        final long backoffInMillis = Math.min(maxBackoffInMillis, INITIAL_BACKOFF_IN_MILLIS << Math.min(retry, 16));
+        return backoffInMillis / 2 + ThreadLocalRandom.current().nextLong(backoffInMillis / 2 + 1);
+    }
+
+    /**
+     * The failures after which the migration may be sent again: all transient ones for idempotent migrations, only
+     * rejections for those which would be applied twice.
+     */
+    static Predicate<Throwable> getRetryable(final Migration migration) {
+        return migration.isIdempotent() ? RequestRetrier::isRetryable : RequestRetrier::isRejected;
+    }
+
+    static boolean isRetryable(final Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ResponseException) {
+                final int status = ((ResponseException) cause).getResponse().getStatusLine().getStatusCode();
+                return status == 429 || status == 502 || status == 503 || status == 504;
+            } else if (cause instanceof IOException) {
+                // No response at all: refused or reset connections, timeouts
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A 429 or 503 response means the request was turned away before it was processed, so it's safe to send it again
+     * even if it's not idempotent.
+     */
+    static boolean isRejected(final Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ResponseException) {
+                final int status = ((ResponseException) cause).getResponse().getStatusLine().getStatusCode();
+                return status == 429 || status == 503;
+            }
+        }
+        return false;
+    }
+
+    private static String describe(final Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ResponseException) {
+                return "status " + ((ResponseException) cause).getResponse().getStatusLine().getStatusCode();
+            } else if (cause instanceof IOException) {
+                return cause.toString();
+            }
+        }
+        return throwable.toString();
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.TaskMigration;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the background tasks started by {@link TaskMigration}s. The task is polled through the _tasks API with one short
+ * request every {@code pollIntervalInMillis}, so no request lives longer than a single poll no matter how long the task
+ * runs. Failed polls are retried like any other request while the task keeps running on the cluster.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+class TaskTracker {
+
+    private static final int MAX_REPORTED_FAILURES = 10;
+
+    private final RestClient restClient;
+    private final ObjectMapper objectMapper;
+    private final ScheduledExecutorService scheduler;
+    private final RequestRetrier requestRetrier;
+    private final long pollIntervalInMillis;
+
+    TaskTracker(@NonNull final RestClient restClient,
+                @NonNull final ObjectMapper objectMapper,
+                @NonNull final ScheduledExecutorService scheduler,
+                @NonNull final RequestRetrier requestRetrier,
+                final long pollIntervalInMillis) {
+        this.restClient = restClient;
+        this.objectMapper = objectMapper;
+        this.scheduler = scheduler;
+        this.requestRetrier = requestRetrier;
+        this.pollIntervalInMillis = pollIntervalInMillis;
+    }
+
+    /**
+     * @return the response of the completed task. Completes exceptionally if the task failed or any of its documents could
+     * not be processed.
+     */
+    CompletableFuture<JsonNode> await(final String description, final String taskId) {
+        final CompletableFuture<JsonNode> result = new CompletableFuture<>();
+        poll(description, taskId, result);
+        return result;
+    }
+
+    private void poll(final String description, final String taskId, final CompletableFuture<JsonNode> result) {
+        requestRetrier.executeAsync("GET /_tasks/" + taskId, attempt -> getTask(taskId)).whenComplete((task, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+                return;
+            }
+
+            try {
+                if (task.path("completed").asBoolean(false)) {
+                    result.complete(getResponse(description, taskId, task));
+                } else {
+                    logProgress(description, taskId, task.path("task").path("status"));
+                    scheduler.schedule(() -> poll(description, taskId, result), pollIntervalInMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private CompletableFuture<JsonNode> getTask(final String taskId) {
+        final CompletableFuture<JsonNode> future = new CompletableFuture<>();
+        restClient.performRequestAsync("GET", "/_tasks/" + taskId, Collections.emptyMap(), new ResponseListener() {
+            @Override
+            public void onSuccess(final Response response) {
+                try {
+                    future.complete(objectMapper.readTree(response.getEntity().getContent()));
+                } catch (IOException e) {
+                    future.completeExceptionally(new MigrationFailedException("IO Exception during migration", e));
+                }
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                if (e instanceof ResponseException) {
+                    future.completeExceptionally(new MigrationFailedException("Error reading task " + taskId, e));
+                } else {
+                    future.completeExceptionally(new MigrationFailedException("IO Exception during migration", e));
+                }
+            }
+        });
+        return future;
+    }
+
+    private JsonNode getResponse(final String description, final String taskId, final JsonNode task) {
+        final JsonNode error = task.path("error");
+        if (!error.isMissingNode()) {
+            throw new MigrationFailedException("Task " + taskId + " (" + description + ") failed: " + error.path("type").asText() + ": " + error.path("reason").asText());
+        }
+
+        final JsonNode response = task.path("response");
+        final JsonNode failures = response.path("failures");
+        if (failures.size() > 0) {
+            final StringBuilder message = new StringBuilder("Task " + taskId + " (" + description + ") completed with " + failures.size() + " failures: ");
+            for (int i = 0; i < Math.min(failures.size(), MAX_REPORTED_FAILURES); i++) {
+                message.append(i > 0 ? ", " : "").append(failures.get(i));
+            }
+            throw new MigrationFailedException(message.toString());
+        }
+        if (response.path("timed_out").asBoolean(false)) {
+            throw new MigrationFailedException("Task " + taskId + " (" + description + ") timed out");
+        }
+
+        log.info("Task " + taskId + " (" + description + ") completed in " + response.path("took").asLong() + "ms. " + describeStatus(response));
+        return response;
+    }
+
+    private void logProgress(final String description, final String taskId, final JsonNode status) {
+        log.info("Task " + taskId + " (" + description + ") running. " + describeStatus(status));
+    }
+
+    /**
+     * Sliced tasks report the sum over their slices in the status of the parent task.
+     */
+    private static String describeStatus(final JsonNode status) {
+        final long total = status.path("total").asLong();
+        final long processed = status.path("created").asLong() + status.path("updated").asLong() + status.path("deleted").asLong() +
+                status.path("noops").asLong() + status.path("version_conflicts").asLong();
+        return "Processed " + processed + " of " + total + " documents" + (total > 0 ? " (" + processed * 100 / total + "%)" : "") +
+                ". Created: " + status.path("created").asLong() +
+                ", updated: " + status.path("updated").asLong() +
+                ", deleted: " + status.path("deleted").asLong() +
+                ", noops: " + status.path("noops").asLong() +
+                ", version_conflicts: " + status.path("version_conflicts").asLong() +
+                ", batches: " + status.path("batches").asLong() +
+                ", throttled_millis: " + status.path("throttled_millis").asLong();
+    }
+}
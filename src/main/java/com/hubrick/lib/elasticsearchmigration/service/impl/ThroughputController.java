@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Adapts the size and concurrency of _bulk requests to what the cluster currently sustains.
+ * <p>
+ * Every response below the target latency increases the batch size additively, once batches have reached
+ * {@link BulkConfig#getMaxActions()} the concurrency is increased by one instead. A response above the target latency halves
+ * the batch size, a rejection (HTTP 429 or es_rejected_execution_exception) halves batch size and concurrency. Independent
+ * of that, requests are paced so that the configured documents and bytes per second are not exceeded.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+public class ThroughputController {
+
+    private final int maxBatchSize;
+    private final int batchSizeIncrement;
+    private final int maxConcurrency;
+    private final long targetLatencyInNanos;
+    private final double nanosPerDocument;
+    private final double nanosPerByte;
+
+    private int batchSize;
+    private int concurrency = 1;
+    private long nextFreeNanos = System.nanoTime();
+
+    public ThroughputController(@NonNull final BulkConfig bulkConfig, final int maxConcurrency) {
+        checkArgument(maxConcurrency > 0, "maxConcurrency must be greater than 0");
+        this.maxBatchSize = bulkConfig.getMaxActions();
+        this.batchSizeIncrement = Math.max(1, maxBatchSize / 20);
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyInNanos = TimeUnit.MILLISECONDS.toNanos(bulkConfig.getTargetLatencyInMillis());
+        this.nanosPerDocument = TimeUnit.SECONDS.toNanos(1) / (double) bulkConfig.getMaxDocumentsPerSecond();
+        this.nanosPerByte = TimeUnit.SECONDS.toNanos(1) / (double) bulkConfig.getMaxBytesPerSecond();
+        this.batchSize = Math.max(1, maxBatchSize / 10);
+    }
+
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Reserves the throughput for a request.
+     *
+     * @return the delay in milliseconds after which the request may be sent
+     */
+    public synchronized long reserve(final int documents, final long bytes) {
+        final long now = System.nanoTime();
+        final long start = Math.max(now, nextFreeNanos);
+        nextFreeNanos = start + (long) Math.max(documents * nanosPerDocument, bytes * nanosPerByte);
+        return TimeUnit.NANOSECONDS.toMillis(start - now);
+    }
+
+    public synchronized void onResponse(final long latencyInNanos, final int rejectedItems) {
+        if (rejectedItems > 0) {
+            onRejection();
+        } else if (latencyInNanos > targetLatencyInNanos) {
+            batchSize = Math.max(1, batchSize / 2);
+            log.debug("Bulk latency {}ms above target. Batch size {}, concurrency {}", TimeUnit.NANOSECONDS.toMillis(latencyInNanos), batchSize, concurrency);
+        } else if (batchSize < maxBatchSize) {
+            batchSize = Math.min(maxBatchSize, batchSize + batchSizeIncrement);
+        } else if (concurrency < maxConcurrency) {
+            concurrency++;
+            log.debug("Bulk latency below target at full batch size. Batch size {}, concurrency {}", batchSize, concurrency);
+        }
+    }
+
+    public synchronized void onRejection() {
+        batchSize = Math.max(1, batchSize / 2);
+        concurrency = Math.max(1, concurrency / 2);
+        log.info("Bulk request rejected by the cluster. Reducing batch size to {} and concurrency to {}", batchSize, concurrency);
+    }
+}
@@ -15,22 +15,31 @@
  */
 package com.hubrick.lib.elasticsearchmigration.service.impl;
 
+import com.hubrick.lib.elasticsearchmigration.exception.InvalidSchemaException;
 import com.hubrick.lib.elasticsearchmigration.model.input.*;
-import com.hubrick.lib.elasticsearchmigration.model.migration.OpType;
 import com.hubrick.lib.elasticsearchmigration.model.migration.*;
 import com.hubrick.lib.elasticsearchmigration.service.MigrationSetProvider;
 import com.hubrick.lib.elasticsearchmigration.service.Parser;
-import org.reflections.Reflections;
-import org.reflections.scanners.ResourcesScanner;
+import com.hubrick.lib.elasticsearchmigration.service.ResourceScanner;
+import lombok.NonNull;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
+ * Loads all changesets of a base package. The files are checksumed concurrently on the given executor, the resulting entries
+ * are ordered by version regardless of which file finished first. A changeset is only parsed and validated once its migrations
+ * are needed, which means already applied versions are verified by their file checksum alone.
+ *
  * @author Emir Dizdarevic
  * @since 1.0.0
  */
@@ -39,88 +48,120 @@ public class YamlDirectoryMigrationSetProvider implements MigrationSetProvider {
     private static final Pattern MIGRATION_FILE_PATTERN = Pattern.compile("^V([0-9]+)__([a-zA-Z0-9]{1}[a-zA-Z0-9_-]*)\\.yaml$");
 
     private final Parser yamlParser;
+    private final Executor executor;
+    private final ResourceScanner resourceScanner;
+    private final MigrationFileConverter migrationFileConverter = new MigrationFileConverter();
 
     public YamlDirectoryMigrationSetProvider() {
-        this.yamlParser = new YamlParser();
+        this(ForkJoinPool.commonPool());
+    }
+
+    public YamlDirectoryMigrationSetProvider(@NonNull final Executor executor) {
+        this(executor, new YamlParser());
+    }
+
+    public YamlDirectoryMigrationSetProvider(@NonNull final Executor executor, @NonNull final Parser yamlParser) {
+        this(executor, yamlParser, new IndexedResourceScanner(new ClasspathResourceScanner(new ReflectionsResourceScanner())));
+    }
+
+    public YamlDirectoryMigrationSetProvider(@NonNull final Executor executor, @NonNull final Parser yamlParser, @NonNull final ResourceScanner resourceScanner) {
+        this.yamlParser = yamlParser;
+        this.executor = executor;
+        this.resourceScanner = resourceScanner;
     }
 
     @Override
     public MigrationSet getMigrationSet(final String basePackage) {
+        final List<String> sortedResources = getMigrationResources(basePackage);
+
+        // Resources are looked up through the context class loader which isn't inherited by pool threads
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        final List<Set<String>> fileChecksums = joinInOrder(sortedResources, resource -> withContextClassLoader(contextClassLoader, () -> yamlParser.getFileChecksums(resource)));
+
+        final Set<MigrationSetEntry> migrationSetEntries = new LinkedHashSet<>();
+        for (int i = 0; i < sortedResources.size(); i++) {
+            final String resource = sortedResources.get(i);
+            final Matcher matcher = matchResourceName(resource);
+            migrationSetEntries.add(migrationFileConverter.convertLazily(
+                    Integer.parseInt(matcher.group(1)),
+                    matcher.group(2),
+                    fileChecksums.get(i),
+                    () -> parse(resource, contextClassLoader).getChecksumedMigrationFile()
+            ));
+        }
+        return new MigrationSet(migrationSetEntries);
+    }
+
+    /**
+     * Parses all changesets of the base package without converting them to migrations, ordered by version
+     */
+    public List<VersionedMigrationFile> getMigrationFiles(final String basePackage) {
+        final List<String> sortedResources = getMigrationResources(basePackage);
+
+        // Resources are looked up through the context class loader which isn't inherited by pool threads
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return joinInOrder(sortedResources, resource -> parse(resource, contextClassLoader));
+    }
+
+    private <T> List<T> joinInOrder(final List<String> sortedResources, final Function<String, T> function) {
+        final List<CompletableFuture<T>> futures = new ArrayList<>(sortedResources.size());
+        for (String resource : sortedResources) {
+            futures.add(CompletableFuture.supplyAsync(() -> function.apply(resource), executor));
+        }
+
+        // Joining in version order makes sure the same failure is reported no matter which file finished first
+        final List<T> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<T> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new InvalidSchemaException("Problem loading migration files", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Finds the changeset resources of the base package, ordered by version
+     */
+    public List<String> getMigrationResources(final String basePackage) {
         checkNotNull(basePackage, "basePackage must not be null");
 
-        final Set<String> resources = new Reflections(basePackage, new ResourcesScanner()).getResources(MIGRATION_FILE_PATTERN);
-        final List<String> sortedResources = new ArrayList<>(resources);
+        final List<String> sortedResources = new ArrayList<>(resourceScanner.getResources(basePackage, MIGRATION_FILE_PATTERN));
         sortedResources.sort(Comparator.comparing(res -> {
             int startIndex = res.indexOf("V") + 1;
             int endIndex = res.indexOf("__");
             String versionString = res.substring(startIndex, endIndex);
             return Integer.parseInt(versionString);
         }));
+        return sortedResources;
+    }
 
-        final Set<MigrationSetEntry> migrationSetEntries = new HashSet<>();
-        for (String resource : sortedResources) {
-            final String resourceName = resource.lastIndexOf("/") != -1 ? resource.substring(resource.lastIndexOf("/") + 1) : resource;
-            final Matcher matcher = MIGRATION_FILE_PATTERN.matcher(resourceName);
-            matcher.matches();
-
-            final ChecksumedMigrationFile checksumedMigrationFile = yamlParser.parse(resource);
-            migrationSetEntries.add(
-                    new MigrationSetEntry(
-                            checksumedMigrationFile.getMigrationFile().getMigrations().stream().map(this::convertToMigration).collect(Collectors.toList()),
-                            new MigrationMeta(
-                                    checksumedMigrationFile.getSha256Checksums(),
-                                    Integer.parseInt(matcher.group(1)),
-                                    matcher.group(2)
-                            )
-                    )
-            );
-        }
-        return new MigrationSet(migrationSetEntries);
+    private VersionedMigrationFile parse(final String resource, final ClassLoader contextClassLoader) {
+        return withContextClassLoader(contextClassLoader, () -> {
+            final Matcher matcher = matchResourceName(resource);
+            return new VersionedMigrationFile(Integer.parseInt(matcher.group(1)), matcher.group(2), yamlParser.parse(resource));
+        });
+    }
+
+    private static Matcher matchResourceName(final String resource) {
+        final String resourceName = resource.lastIndexOf("/") != -1 ? resource.substring(resource.lastIndexOf("/") + 1) : resource;
+        final Matcher matcher = MIGRATION_FILE_PATTERN.matcher(resourceName);
+        matcher.matches();
+        return matcher;
     }
 
-    private Migration convertToMigration(BaseMigrationFileEntry baseMigrationFileEntry) {
-        switch (baseMigrationFileEntry.getType()) {
-            case CREATE_INDEX:
-                final CreateIndexMigrationFileEntry createIndexMigrationFileEntry = (CreateIndexMigrationFileEntry) baseMigrationFileEntry;
-                return new CreateIndexMigration(createIndexMigrationFileEntry.getIndex(), createIndexMigrationFileEntry.getDefinition());
-            case DELETE_INDEX:
-                final DeleteIndexMigrationFileEntry deleteIndexMigrationFileEntry = (DeleteIndexMigrationFileEntry) baseMigrationFileEntry;
-                return new DeleteIndexMigration(deleteIndexMigrationFileEntry.getIndex());
-            case CREATE_OR_UPDATE_INDEX_TEMPLATE:
-                final CreateOrUpdateIndexTemplateMigrationFileEntry createOrUpdateIndexTemplateMigrationFileEntry = (CreateOrUpdateIndexTemplateMigrationFileEntry) baseMigrationFileEntry;
-                return new CreateOrUpdateIndexTemplateMigration(createOrUpdateIndexTemplateMigrationFileEntry.getTemplate(), createOrUpdateIndexTemplateMigrationFileEntry.getDefinition());
-            case DELETE_INDEX_TEMPLATE:
-                final DeleteIndexTemplateMigrationFileEntry deleteIndexTemplateMigrationFileEntry = (DeleteIndexTemplateMigrationFileEntry) baseMigrationFileEntry;
-                return new DeleteIndexTemplateMigration(deleteIndexTemplateMigrationFileEntry.getTemplate());
-            case UPDATE_MAPPING:
-                final UpdateMappingMigrationFileEntry updateMappingMigrationFileEntry = (UpdateMappingMigrationFileEntry) baseMigrationFileEntry;
-                return new UpdateMappingMigration(updateMappingMigrationFileEntry.getIndices(), updateMappingMigrationFileEntry.getMapping(), updateMappingMigrationFileEntry.getDefinition());
-            case INDEX_DOCUMENT:
-                final IndexDocumentMigrationFileEntry indexDocumentMigrationFileEntry = (IndexDocumentMigrationFileEntry) baseMigrationFileEntry;
-                return new IndexDocumentMigration(
-                        indexDocumentMigrationFileEntry.getIndex(),
-                        indexDocumentMigrationFileEntry.getMapping(),
-                        indexDocumentMigrationFileEntry.getId(),
-                        indexDocumentMigrationFileEntry.getOpType().map(e -> OpType.valueOf(e.name())),
-                        indexDocumentMigrationFileEntry.getDefinition()
-                );
-            case DELETE_DOCUMENT:
-                final DeleteDocumentMigrationFileEntry deleteDocumentMigrationFileEntry = (DeleteDocumentMigrationFileEntry) baseMigrationFileEntry;
-                return new DeleteDocumentMigration(
-                        deleteDocumentMigrationFileEntry.getIndex(),
-                        deleteDocumentMigrationFileEntry.getMapping(),
-                        deleteDocumentMigrationFileEntry.getId()
-                );
-            case UPDATE_DOCUMENT:
-                final UpdateDocumentMigrationFileEntry updateDocumentMigrationFileEntry = (UpdateDocumentMigrationFileEntry) baseMigrationFileEntry;
-                return new UpdateDocumentMigration(
-                        updateDocumentMigrationFileEntry.getIndex(),
-                        updateDocumentMigrationFileEntry.getMapping(),
-                        updateDocumentMigrationFileEntry.getId(),
-                        updateDocumentMigrationFileEntry.getDefinition()
-                );
-            default:
-                throw new IllegalStateException("Unknown migration type " + baseMigrationFileEntry.getType());
+    private static <T> T withContextClassLoader(final ClassLoader contextClassLoader, final Supplier<T> supplier) {
+        final Thread currentThread = Thread.currentThread();
+        final ClassLoader previousContextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(contextClassLoader);
+        try {
+            return supplier.get();
+        } finally {
+            currentThread.setContextClassLoader(previousContextClassLoader);
         }
     }
 }
@@ -16,6 +16,9 @@
 package com.hubrick.lib.elasticsearchmigration.service.impl;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -24,59 +27,73 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.fasterxml.jackson.dataformat.yaml.YAMLGenerator;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.github.fge.jsonschema.core.load.Dereferencing;
-import com.github.fge.jsonschema.core.load.configuration.LoadingConfiguration;
-import com.github.fge.jsonschema.core.report.ProcessingReport;
-import com.github.fge.jsonschema.main.JsonSchema;
-import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.io.Resources;
+import com.google.common.io.ByteStreams;
 import com.hubrick.lib.elasticsearchmigration.exception.InvalidSchemaException;
+import com.hubrick.lib.elasticsearchmigration.model.input.BaseMigrationFileEntry;
+import com.hubrick.lib.elasticsearchmigration.model.input.BulkFileMigrationFileEntry;
 import com.hubrick.lib.elasticsearchmigration.model.input.ChecksumedMigrationFile;
 import com.hubrick.lib.elasticsearchmigration.model.input.MigrationFile;
+import com.hubrick.lib.elasticsearchmigration.model.input.MigrationType;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkFileMigration;
 import com.hubrick.lib.elasticsearchmigration.service.Parser;
+import com.hubrick.lib.elasticsearchmigration.service.SchemaValidator;
 import com.hubrick.lib.elasticsearchmigration.util.HashUtils;
 import com.hubrick.lib.elasticsearchmigration.util.ResourceUtils;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
+ * Parses and checksums changeset files. Instances are thread safe: the mappers are only configured during construction
+ * and the schema validators are stateless, so one parser can be shared by concurrent {@link #parse(String)} calls.
+ *
  * @author Emir Dizdarevic
  * @since 1.0.0
  */
 @Slf4j
 public class YamlParser implements Parser {
 
-    private static final String MIGRATION_SCHEMA;
-
-    static {
-        try {
-            MIGRATION_SCHEMA = Resources.toString(Resources.getResource(YamlParser.class, "/schema/yaml/schema.json"), Charsets.UTF_8);
-        } catch (IOException e) {
-            throw new IllegalStateException("Failed to load yaml schema", e);
-        }
-    }
+    private static final String MIGRATIONS_FIELD = "migrations";
+    private static final String TYPE_FIELD = "type";
 
     private final ObjectMapper yamlMapper;
-    private final ObjectMapper jsonMapper;
-    private final JsonSchema jsonSchema;
+    private final SchemaValidator schemaValidator;
+    private final Optional<MigrationFileCache> migrationFileCache;
 
     public YamlParser() {
+        this(new ChangesetSchemaValidator());
+    }
+
+    public YamlParser(@NonNull final SchemaValidator schemaValidator) {
+        this(schemaValidator, Optional.empty());
+    }
+
+    public YamlParser(@NonNull final SchemaValidator schemaValidator, @NonNull final Optional<MigrationFileCache> migrationFileCache) {
         this.yamlMapper = createYamlMapper();
-        this.jsonMapper = createJsonMapper();
-        this.jsonSchema = createJsonSchema();
+        this.schemaValidator = schemaValidator;
+        this.migrationFileCache = migrationFileCache;
     }
 
     private ObjectMapper createYamlMapper() {
@@ -100,32 +117,10 @@ public class YamlParser implements Parser {
         return yamlMapper;
     }
 
-    private JsonSchema createJsonSchema() {
-        final LoadingConfiguration loadingConfiguration = LoadingConfiguration.newBuilder()
-                .dereferencing(Dereferencing.INLINE).freeze();
-        final JsonSchemaFactory factory = JsonSchemaFactory.newBuilder()
-                .setLoadingConfiguration(loadingConfiguration).freeze();
-
+    private void checkSchema(final String path, final JsonNode yaml) {
         try {
-            final JsonNode schemaObject = jsonMapper.readTree(MIGRATION_SCHEMA);
-            return factory.getJsonSchema(schemaObject);
-        } catch (Exception e) {
-            throw new IllegalStateException("Couldn't parse yaml schema", e);
-        }
-    }
-
-    private ObjectMapper createJsonMapper() {
-        return new ObjectMapper();
-    }
-
-    private void checkSchema(String path) {
-        try {
-            final InputStream inputStream = ResourceUtils.getResourceAsStream(path, this);
-            final JsonNode yaml = yamlMapper.readTree(inputStream);
-            final ProcessingReport report = jsonSchema.validate(yaml);
-            final List<String> errors = new LinkedList<>();
-            if (!report.isSuccess()) {
-                report.forEach(e -> errors.add(e.getMessage()));
+            final List<String> errors = schemaValidator.validate(yaml);
+            if (!errors.isEmpty()) {
                 throw new InvalidSchemaException("Yaml file doesn't match the schema. Problems: " + Joiner.on(",").join(errors));
             }
         } catch (Exception e) {
@@ -133,29 +128,167 @@ public class YamlParser implements Parser {
         }
     }
 
+    /**
+     * Reads the file once and derives everything from these bytes: the file checksum, the tree which is validated against the
+     * schema and the {@link MigrationFile} bound from that tree. The normalized checksum is computed over the re-serialized
+     * {@link MigrationFile} like before, but streamed into the digest instead of being buffered.
+     * If a cache is configured and holds an entry for the file checksum, validation and parsing are skipped.
+     */
     @Override
     public ChecksumedMigrationFile parse(final String path) {
         checkNotNull(StringUtils.trimToNull(path), "path must be not null");
 
         try {
+            final byte[] yaml = readResource(path);
+            final String fileSha256Checksum = HashUtils.hashSha256(ByteBuffer.wrap(yaml));
+            final Optional<ChecksumedMigrationFile> cachedMigrationFile = migrationFileCache.flatMap(e -> e.get(fileSha256Checksum));
+            if (cachedMigrationFile.isPresent()) {
+                log.info("Using cached parse result for file " + path);
+                return cachedMigrationFile.get();
+            }
+
             log.info("Checking schema for file " + path);
-            checkSchema(path);
-            log.info("Parsing file " + path);
-            final byte[] yaml = IOUtils.toByteArray(ResourceUtils.getResourceAsStream(path, this));
-            final MigrationFile migrationFile = yamlMapper.readValue(new ByteArrayInputStream(yaml), MigrationFile.class);
-            final String fileSha256Checksum = HashUtils.hashSha256(new ByteArrayInputStream(yaml));
+            final JsonNode tree = yamlMapper.readTree(yaml);
+            checkSchema(path, tree);
 
-            final byte[] normalizedYaml = yamlMapper.writeValueAsBytes(migrationFile);
-            final String normalizedSha256Checksum = HashUtils.hashSha256(ByteBuffer.wrap(normalizedYaml));
+            log.info("Parsing file " + path);
+            final MigrationFile migrationFile = yamlMapper.treeToValue(tree, MigrationFile.class);
+            final MessageDigest normalizedDigest = HashUtils.createSha256Digest();
+            yamlMapper.writeValue(new DigestOutputStream(ByteStreams.nullOutputStream(), normalizedDigest), migrationFile);
+            final String normalizedSha256Checksum = HashUtils.toHex(normalizedDigest.digest());
 
             if(log.isDebugEnabled()) {
                 log.debug("Original yaml: \n{}", new String(yaml, Charsets.UTF_8));
-                log.debug("Normalized yaml: \n{}", new String(normalizedYaml, Charsets.UTF_8));
+                log.debug("Normalized yaml: \n{}", new String(yamlMapper.writeValueAsBytes(migrationFile), Charsets.UTF_8));
+            }
+
+            final Map<String, String> resourceSha256Checksums = hashReferencedResources(migrationFile);
+            if (!resourceSha256Checksums.isEmpty()) {
+                // The data files can change without the changeset changing, so they are never served from the cache
+                return new ChecksumedMigrationFile(
+                        migrationFile,
+                        ImmutableSet.of(
+                                combineChecksums(fileSha256Checksum, resourceSha256Checksums.values()),
+                                combineChecksums(normalizedSha256Checksum, resourceSha256Checksums.values())
+                        ),
+                        resourceSha256Checksums
+                );
             }
 
-            return new ChecksumedMigrationFile(migrationFile, ImmutableSet.of(fileSha256Checksum, normalizedSha256Checksum));
+            final ChecksumedMigrationFile checksumedMigrationFile = new ChecksumedMigrationFile(migrationFile, ImmutableSet.of(fileSha256Checksum, normalizedSha256Checksum));
+            migrationFileCache.ifPresent(e -> e.put(fileSha256Checksum, checksumedMigrationFile));
+            return checksumedMigrationFile;
         } catch (IOException e) {
             throw new InvalidSchemaException("Problem parsing yaml file " + path, e);
         }
     }
+
+    /**
+     * Only reads and hashes the file, neither the schema is checked nor the file parsed. Changesets which might reference
+     * data files are the exception: their checksums cover the data files as well and can only be computed by parsing them.
+     */
+    @Override
+    public Set<String> getFileChecksums(final String path) {
+        checkNotNull(StringUtils.trimToNull(path), "path must be not null");
+
+        final byte[] yaml;
+        try {
+            yaml = readResource(path);
+        } catch (IOException e) {
+            throw new InvalidSchemaException("Problem reading yaml file " + path, e);
+        }
+
+        final boolean containsBulkFile;
+        try {
+            containsBulkFile = containsBulkFileEntry(yaml);
+        } catch (IOException e) {
+            throw new InvalidSchemaException("Problem parsing yaml file " + path, e);
+        }
+        if (containsBulkFile) {
+            return parse(path).getSha256Checksums();
+        }
+        return ImmutableSet.of(HashUtils.hashSha256(ByteBuffer.wrap(yaml)));
+    }
+
+    /**
+     * Looks for a BULK_FILE entry by the parsed type values, so quoting, escapes or the encoding of the file can't hide one
+     * and a BULK_FILE anywhere else, e.g. in a document, doesn't count. The tokens are streamed, neither a tree nor the
+     * {@link MigrationFile} is built.
+     */
+    private boolean containsBulkFileEntry(final byte[] yaml) throws IOException {
+        try (final JsonParser parser = yamlMapper.getFactory().createParser(yaml)) {
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                if (token == JsonToken.VALUE_STRING && TYPE_FIELD.equals(parser.getCurrentName()) && isMigrationEntry(parser.getParsingContext()) &&
+                        MigrationType.BULK_FILE.name().equals(parser.getText())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the context is an entry of the top level migrations list
+     */
+    private static boolean isMigrationEntry(final JsonStreamContext context) {
+        final JsonStreamContext list = context.getParent();
+        final JsonStreamContext root = list == null ? null : list.getParent();
+        return context.inObject() && list != null && list.inArray() && root != null && root.inObject() && root.getParent().inRoot() && MIGRATIONS_FIELD.equals(root.getCurrentName());
+    }
+
+    /**
+     * Streams every data file referenced by the changeset through the digest, so the files are never held in memory. Files on
+     * the file system are hashed in parallel blocks, see {@link HashUtils#hashSha256(FileChannel)}.
+     */
+    private Map<String, String> hashReferencedResources(final MigrationFile migrationFile) throws IOException {
+        final Map<String, String> resourceSha256Checksums = new LinkedHashMap<>();
+        for (BaseMigrationFileEntry migrationFileEntry : migrationFile.getMigrations()) {
+            if (migrationFileEntry instanceof BulkFileMigrationFileEntry) {
+                final String file = ((BulkFileMigrationFileEntry) migrationFileEntry).getFile();
+                if (!resourceSha256Checksums.containsKey(file)) {
+                    resourceSha256Checksums.put(file, hashResource(file));
+                }
+            }
+        }
+        return resourceSha256Checksums;
+    }
+
+    private String hashResource(final String file) throws IOException {
+        final Optional<Path> path = BulkFileMigration.getPath(file);
+        if (path.isPresent()) {
+            try (final FileChannel channel = FileChannel.open(path.get(), StandardOpenOption.READ)) {
+                return HashUtils.hashSha256(channel);
+            }
+        }
+
+        try (final InputStream inputStream = ResourceUtils.getResourceAsStream(file, this)) {
+            if (inputStream == null) {
+                throw new IOException("Resource " + file + " not found");
+            }
+            return HashUtils.hashSha256(inputStream);
+        }
+    }
+
+    private String combineChecksums(final String sha256Checksum, final Collection<String> resourceSha256Checksums) {
+        final MessageDigest messageDigest = HashUtils.createSha256Digest();
+        messageDigest.update(sha256Checksum.getBytes(Charsets.UTF_8));
+        for (String resourceSha256Checksum : resourceSha256Checksums) {
+            messageDigest.update(resourceSha256Checksum.getBytes(Charsets.UTF_8));
+        }
+        return HashUtils.toHex(messageDigest.digest());
+    }
+
+    private byte[] readResource(final String path) throws IOException {
+        try (final InputStream inputStream = ResourceUtils.getResourceAsStream(path, this)) {
+            if (inputStream == null) {
+                throw new IOException("Resource " + path + " not found");
+            }
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    @VisibleForTesting
+    ObjectMapper getYamlMapper() {
+        return yamlMapper;
+    }
 }
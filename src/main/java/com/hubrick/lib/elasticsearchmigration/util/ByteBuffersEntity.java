@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.util;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.google.common.collect.ImmutableList;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A repeatable entity whose content is the concatenation of a list of buffers. The buffers are never copied: the async
+ * client writes them straight to the connection, so slices of a memory mapped file go from the page cache to the socket.
+ * The positions of the given buffers are left untouched, every write works on duplicates.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class ByteBuffersEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    private final List<ByteBuffer> buffers;
+    private final long contentLength;
+
+    private int currentIndex;
+    private ByteBuffer currentBuffer;
+
+    public ByteBuffersEntity(final List<ByteBuffer> buffers, final ContentType contentType) {
+        checkNotNull(buffers, "buffers must not be null");
+        this.buffers = ImmutableList.copyOf(buffers.stream().map(ByteBuffer::asReadOnlyBuffer).collect(Collectors.toList()));
+        this.contentLength = this.buffers.stream().mapToLong(ByteBuffer::remaining).sum();
+        if (contentType != null) {
+            setContentType(contentType.toString());
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new SequenceInputStream(Collections.enumeration(buffers.stream()
+                .map(e -> new ByteBufferBackedInputStream(e.duplicate()))
+                .collect(Collectors.toList())));
+    }
+
+    @Override
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        checkNotNull(outputStream, "outputStream must not be null");
+        final WritableByteChannel channel = Channels.newChannel(outputStream);
+        for (ByteBuffer buffer : buffers) {
+            final ByteBuffer duplicate = buffer.duplicate();
+            while (duplicate.hasRemaining()) {
+                channel.write(duplicate);
+            }
+        }
+        outputStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Writes as much as the encoder accepts and continues from there on the next call.
+     */
+    @Override
+    public void produceContent(final ContentEncoder encoder, final IOControl ioControl) throws IOException {
+        while (currentIndex < buffers.size()) {
+            if (currentBuffer == null) {
+                currentBuffer = buffers.get(currentIndex).duplicate();
+            }
+            encoder.write(currentBuffer);
+            if (currentBuffer.hasRemaining()) {
+                return;
+            }
+            currentBuffer = null;
+            currentIndex++;
+        }
+        encoder.complete();
+    }
+
+    /**
+     * Called by the async client once the request is done or before it's sent again, the next write starts from the beginning.
+     */
+    @Override
+    public void close() {
+        currentIndex = 0;
+        currentBuffer = null;
+    }
+}
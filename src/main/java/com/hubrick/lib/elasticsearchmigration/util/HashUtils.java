@@ -21,9 +21,14 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -36,6 +41,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class HashUtils {
 
     private static final int CHUNK_SIZE = 4096;
+    private static final long FILE_BLOCK_SIZE = 64L * 1024 * 1024;
 
     public String hashSha256(InputStream inputStream) {
         try {
@@ -57,6 +63,51 @@ public class HashUtils {
         }
     }
 
+    public MessageDigest createSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            log.error("This should never happen. Hash algorithms are type safe", e);
+            throw new IllegalStateException("This should never happen. HashAlgorithm is type safe", e);
+        }
+    }
+
+    public String toHex(byte[] digest) {
+        checkNotNull(digest, "digest must not be null");
+        return BaseEncoding.base16().lowerCase().encode(digest);
+    }
+
+    /**
+     * Hashes a file of any size in parallel: the file is memory mapped in blocks of {@value #FILE_BLOCK_SIZE} bytes, the
+     * blocks are hashed concurrently and the result is the sha256 of the concatenated block hashes. It therefore differs from
+     * the plain sha256 of the file but, like it, changes with every change of the content.
+     */
+    public String hashSha256(FileChannel channel) throws IOException {
+        checkNotNull(channel, "channel must not be null");
+        final long size = channel.size();
+        final int numberOfBlocks = (int) ((size + FILE_BLOCK_SIZE - 1) / FILE_BLOCK_SIZE);
+        try {
+            final List<byte[]> blockDigests = IntStream.range(0, numberOfBlocks).parallel()
+                    .mapToObj(i -> {
+                        final long position = i * FILE_BLOCK_SIZE;
+                        try {
+                            final MessageDigest messageDigest = createSha256Digest();
+                            messageDigest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(FILE_BLOCK_SIZE, size - position)));
+                            return messageDigest.digest();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .collect(Collectors.toList());
+
+            final MessageDigest messageDigest = createSha256Digest();
+            blockDigests.forEach(messageDigest::update);
+            return toHex(messageDigest.digest());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     public static String hashSha256(ByteBuffer value) {
         checkNotNull(value, "value must not be null");
         try {
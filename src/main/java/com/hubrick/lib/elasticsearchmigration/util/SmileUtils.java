@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.util;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import lombok.experimental.UtilityClass;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@UtilityClass
+public class SmileUtils {
+
+    /**
+     * Creates a mapper for the binary (Smile) form of the parsed changeset model
+     */
+    public ObjectMapper createSmileMapper() {
+        final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        smileMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        smileMapper.configure(DeserializationFeature.READ_ENUMS_USING_TO_STRING, true);
+        smileMapper.configure(SerializationFeature.WRITE_ENUMS_USING_TO_STRING, true);
+        smileMapper.setSerializationInclusion(JsonInclude.Include.NON_ABSENT);
+        smileMapper.registerModule(new Jdk8Module());
+        return smileMapper;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.util;
+
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Properties;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@Slf4j
+@UtilityClass
+public class VersionUtils {
+
+    private static final String POM_PROPERTIES = "/META-INF/maven/com.github.newagesol/elasticsearch-migration/pom.properties";
+    private static final String LIBRARY_VERSION = resolveLibraryVersion();
+
+    /**
+     * Version of this library. Snapshot and unpackaged builds get the modification time of the code location appended,
+     * so that artifacts derived from the library's classes are invalidated by every rebuild.
+     */
+    public String getLibraryVersion() {
+        return LIBRARY_VERSION;
+    }
+
+    private static String resolveLibraryVersion() {
+        String version = null;
+        try (final InputStream inputStream = VersionUtils.class.getResourceAsStream(POM_PROPERTIES)) {
+            if (inputStream != null) {
+                final Properties properties = new Properties();
+                properties.load(inputStream);
+                version = properties.getProperty("version");
+            }
+        } catch (IOException e) {
+            log.warn("Couldn't read library version from " + POM_PROPERTIES, e);
+        }
+
+        if (version == null) {
+            version = VersionUtils.class.getPackage().getImplementationVersion();
+        }
+        if (version == null || version.endsWith("-SNAPSHOT")) {
+            version = (version == null ? "unknown" : version) + "-" + getCodeSourceModificationTime();
+        }
+        return version;
+    }
+
+    private static long getCodeSourceModificationTime() {
+        try {
+            final CodeSource codeSource = VersionUtils.class.getProtectionDomain().getCodeSource();
+            final URL location = codeSource == null ? null : codeSource.getLocation();
+            if (location != null && "file".equals(location.getProtocol())) {
+                final File file = new File(location.toURI());
+                return file.isDirectory() ? new File(file, VersionUtils.class.getName().replace('.', '/') + ".class").lastModified() : file.lastModified();
+            }
+        } catch (URISyntaxException | SecurityException e) {
+            log.warn("Couldn't determine the location of the library", e);
+        }
+        return 0;
+    }
+}
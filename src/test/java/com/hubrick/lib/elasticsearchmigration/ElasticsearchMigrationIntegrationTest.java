@@ -38,11 +38,11 @@ public class ElasticsearchMigrationIntegrationTest extends AbstractESTest {
 
     @Test
     public void testMigrate() throws IOException, InterruptedException, ExecutionException {
-        final ElasticsearchMigration elasticsearchMigration = new ElasticsearchMigration(
+        try (final ElasticsearchMigration elasticsearchMigration = new ElasticsearchMigration(
                 ElasticsearchMigrationConfig.builder( "test", ElasticsearchConfig.builder(new URL("http://localhost:9200")).build()).basePackage("changeset").build()
-        );
-
-        elasticsearchMigration.migrate();
+        )) {
+            elasticsearchMigration.migrate();
+        }
 
         final MigrationEntry migrationEntry100 = getFromIndex(MigrationEntryMeta.INDEX, MigrationEntryMeta.TYPE, "test-1", MigrationEntry.class);
         final MigrationEntry migrationEntry110 = getFromIndex(MigrationEntryMeta.INDEX, MigrationEntryMeta.TYPE, "test-2", MigrationEntry.class);
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class DeleteByQueryMigrationTest {
+
+    @Test
+    public void request() {
+        final DeleteByQueryMigration migration = new DeleteByQueryMigration(
+                ImmutableSet.of("index_1", "index_2"),
+                "{\"term\":{\"type\":\"user\"}}",
+                Conflicts.PROCEED,
+                TaskMigration.AUTO_SLICES,
+                Optional.of(-1.0)
+        );
+
+        assertThat(migration.getMethod(), is(Method.POST));
+        assertThat(migration.getUrl(), is("/index_1,index_2/_delete_by_query"));
+        assertThat(migration.getParameters().get("wait_for_completion"), is("false"));
+        assertThat(migration.getParameters().get("conflicts"), is("proceed"));
+        assertThat(migration.getParameters().get("slices"), is("auto"));
+        assertThat(migration.getParameters().get("requests_per_second"), is("-1"));
+        assertThat(migration.getBody(), is("{\"query\":{\"term\":{\"type\":\"user\"}}}"));
+        assertThat(migration.getSourceIndices(), is(ImmutableSet.of("index_1", "index_2")));
+        assertThat(migration.getTargetIndices(), is(ImmutableSet.of("index_1", "index_2")));
+    }
+
+    @Test
+    public void withSlicesKeepsTheOtherFields() {
+        final DeleteByQueryMigration migration = new DeleteByQueryMigration(ImmutableSet.of("index"), "{\"match_all\":{}}", Conflicts.ABORT, TaskMigration.SHARD_SLICES, Optional.empty());
+
+        assertThat(migration.withSlices("2"), is(new DeleteByQueryMigration(ImmutableSet.of("index"), "{\"match_all\":{}}", Conflicts.ABORT, "2", Optional.empty())));
+    }
+}
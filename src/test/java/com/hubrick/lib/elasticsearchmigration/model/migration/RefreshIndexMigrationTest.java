@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class RefreshIndexMigrationTest {
+
+    @Test
+    public void request() {
+        final RefreshIndexMigration migration = new RefreshIndexMigration(ImmutableSet.of("index_a", "index_b"));
+
+        assertThat(migration.getMethod(), is(Method.POST));
+        assertThat(migration.getUrl(), is("/index_a,index_b/_refresh"));
+        // Indices deleted by a later migration must not fail the refresh
+        assertThat(migration.getParameters().get("ignore_unavailable"), is("true"));
+        assertThat(migration.getParameters().get("allow_no_indices"), is("true"));
+        assertThat(migration.getParameters().containsKey("refresh"), is(false));
+        assertThat(migration.getBody(), is(""));
+    }
+
+    @Test
+    public void refreshIsIdempotent() {
+        assertThat(new RefreshIndexMigration(ImmutableSet.of("index")).isIdempotent(), is(true));
+    }
+}
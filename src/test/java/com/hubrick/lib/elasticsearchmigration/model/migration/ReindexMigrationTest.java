@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class ReindexMigrationTest {
+
+    @Test
+    public void request() {
+        final ReindexMigration migration = new ReindexMigration(
+                "source_1, source_2",
+                "destination",
+                Optional.of("{\"term\":{\"type\":\"user\"}}"),
+                Optional.of("{\"source\":\"ctx._source.remove('type')\"}"),
+                "4",
+                Optional.of(500.0)
+        );
+
+        assertThat(migration.getMethod(), is(Method.POST));
+        assertThat(migration.getUrl(), is("/_reindex"));
+        assertThat(migration.getParameters().get("wait_for_completion"), is("false"));
+        assertThat(migration.getParameters().get("slices"), is("4"));
+        assertThat(migration.getParameters().get("requests_per_second"), is("500.0"));
+        assertThat(migration.getBody(), is("{\"source\":{\"index\":\"source_1, source_2\",\"query\":{\"term\":{\"type\":\"user\"}}}," +
+                "\"dest\":{\"index\":\"destination\"},\"script\":{\"source\":\"ctx._source.remove('type')\"}}"));
+        assertThat(migration.getSourceIndices(), is(ImmutableSet.of("source_1", "source_2")));
+        assertThat(migration.getTargetIndices(), is(ImmutableSet.of("destination")));
+    }
+
+    @Test
+    public void requestWithoutOptionalFields() {
+        final ReindexMigration migration = new ReindexMigration("source", "destination", Optional.empty(), Optional.empty(), TaskMigration.AUTO_SLICES, Optional.empty());
+
+        assertThat(migration.getParameters().get("slices"), is("auto"));
+        assertThat(migration.getParameters().containsKey("requests_per_second"), is(false));
+        assertThat(migration.getBody(), is("{\"source\":{\"index\":\"source\"},\"dest\":{\"index\":\"destination\"}}"));
+    }
+
+    @Test
+    public void unlimitedRequestsPerSecond() {
+        final ReindexMigration migration = new ReindexMigration("source", "destination", Optional.empty(), Optional.empty(), TaskMigration.AUTO_SLICES, Optional.of(-1.0));
+
+        assertThat(migration.getParameters().get("requests_per_second"), is("-1"));
+    }
+
+    @Test
+    public void withSlicesKeepsTheOtherFields() {
+        final ReindexMigration migration = new ReindexMigration("source", "destination", Optional.empty(), Optional.empty(), TaskMigration.SHARD_SLICES, Optional.of(10.0));
+
+        assertThat(migration.withSlices("3"), is(new ReindexMigration("source", "destination", Optional.empty(), Optional.empty(), "3", Optional.of(10.0))));
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.model.migration;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class UpdateByQueryMigrationTest {
+
+    @Test
+    public void request() {
+        final UpdateByQueryMigration migration = new UpdateByQueryMigration(
+                ImmutableSet.of("index_1", "index_2"),
+                Optional.of("{\"term\":{\"type\":\"user\"}}"),
+                Optional.of("{\"source\":\"ctx._source.active = true\"}"),
+                Conflicts.ABORT,
+                "2",
+                Optional.of(100.0)
+        );
+
+        assertThat(migration.getMethod(), is(Method.POST));
+        assertThat(migration.getUrl(), is("/index_1,index_2/_update_by_query"));
+        assertThat(migration.getParameters().get("wait_for_completion"), is("false"));
+        assertThat(migration.getParameters().get("conflicts"), is("abort"));
+        assertThat(migration.getParameters().get("slices"), is("2"));
+        assertThat(migration.getParameters().get("requests_per_second"), is("100.0"));
+        assertThat(migration.getBody(), is("{\"query\":{\"term\":{\"type\":\"user\"}},\"script\":{\"source\":\"ctx._source.active = true\"}}"));
+        assertThat(migration.getSourceIndices(), is(ImmutableSet.of("index_1", "index_2")));
+        assertThat(migration.getTargetIndices(), is(ImmutableSet.of("index_1", "index_2")));
+    }
+
+    @Test
+    public void requestWithScriptOnly() {
+        final UpdateByQueryMigration migration = new UpdateByQueryMigration(
+                ImmutableSet.of("index"),
+                Optional.empty(),
+                Optional.of("{\"source\":\"ctx._source.active = true\"}"),
+                Conflicts.PROCEED,
+                TaskMigration.AUTO_SLICES,
+                Optional.empty()
+        );
+
+        assertThat(migration.getParameters().get("conflicts"), is("proceed"));
+        assertThat(migration.getParameters().containsKey("requests_per_second"), is(false));
+        assertThat(migration.getBody(), is("{\"script\":{\"source\":\"ctx._source.active = true\"}}"));
+    }
+
+    @Test
+    public void requestWithoutQueryAndScript() {
+        final UpdateByQueryMigration migration = new UpdateByQueryMigration(ImmutableSet.of("index"), Optional.empty(), Optional.empty(), Conflicts.PROCEED, TaskMigration.AUTO_SLICES, Optional.empty());
+
+        assertThat(migration.getBody(), is("{}"));
+    }
+
+    @Test
+    public void withSlicesKeepsTheOtherFields() {
+        final UpdateByQueryMigration migration = new UpdateByQueryMigration(ImmutableSet.of("index"), Optional.empty(), Optional.empty(), Conflicts.ABORT, TaskMigration.SHARD_SLICES, Optional.of(10.0));
+
+        assertThat(migration.withSlices("5"), is(new UpdateByQueryMigration(ImmutableSet.of("index"), Optional.empty(), Optional.empty(), Conflicts.ABORT, "5", Optional.of(10.0))));
+    }
+}
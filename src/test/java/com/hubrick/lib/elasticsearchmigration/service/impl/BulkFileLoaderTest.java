@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.base.Charsets;
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkFileMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.util.HashUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class BulkFileLoaderTest {
+
+    private static final String DOCUMENTS = "{\"sku\":\"a\",\"name\":\"one\"}\n" +
+            "{\"name\":\"two\",\"tags\":{\"sku\":\"nested\"},\"sku\":\"b\"}\n" +
+            "\n" +
+            "{\"sku\":3}\n" +
+            "{\"sku\":\"d\"}\n" +
+            "{\"sku\":\"e\"}";
+
+    private final List<BulkMigration> bulkMigrations = new ArrayList<>();
+    private final BulkFileLoader bulkFileLoader = new BulkFileLoader(
+            BulkConfig.builder().maxActions(2).build(),
+            bulkMigration -> {
+                bulkMigrations.add(bulkMigration);
+                return CompletableFuture.completedFuture(null);
+            },
+            () -> 1,
+            Runnable::run
+    );
+
+    @Test
+    public void loadGzipFileInChunks() throws IOException {
+        final byte[] file = gzip(DOCUMENTS);
+
+        final long documents = bulkFileLoader.load(migration(Optional.of("sku"), Optional.of(HashUtils.hashSha256(ByteBuffer.wrap(file)))), new ByteArrayInputStream(file));
+
+        assertThat(documents, is(5L));
+        assertThat(bulkMigrations.stream().map(e -> e.getMigrations().size()).collect(Collectors.toList()), contains(2, 2, 1));
+        assertThat(bulkMigrations.stream().flatMap(e -> e.getMigrations().stream()).map(DocumentMigration::getId).map(Optional::get).collect(Collectors.toList()),
+                contains("a", "b", "3", "d", "e"));
+    }
+
+    @Test
+    public void loadPlainFileWithGeneratedIds() throws IOException {
+        final long documents = bulkFileLoader.load(migration(Optional.empty(), Optional.empty()), new ByteArrayInputStream(DOCUMENTS.getBytes(Charsets.UTF_8)));
+
+        assertThat(documents, is(5L));
+        assertThat(bulkMigrations.stream().flatMap(e -> e.getMigrations().stream()).allMatch(e -> !e.getId().isPresent()), is(true));
+    }
+
+    @Test
+    public void documentsWithIdsAreSentInSequence() throws IOException {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        final List<Long> pendingOnSend = new ArrayList<>();
+        final BulkFileLoader sequentialBulkFileLoader = new BulkFileLoader(
+                BulkConfig.builder().maxActions(1).build(),
+                bulkMigration -> {
+                    pendingOnSend.add(futures.stream().filter(e -> !e.isDone()).count());
+                    final CompletableFuture<Void> future = new CompletableFuture<>();
+                    scheduler.schedule(() -> future.complete(null), 20, TimeUnit.MILLISECONDS);
+                    futures.add(future);
+                    return future;
+                },
+                () -> 4,
+                Runnable::run
+        );
+
+        try {
+            sequentialBulkFileLoader.load(migration(Optional.of("sku"), Optional.empty()), new ByteArrayInputStream(DOCUMENTS.getBytes(Charsets.UTF_8)));
+        } finally {
+            scheduler.shutdownNow();
+        }
+
+        // A duplicated id would otherwise be stored by whichever of the concurrent requests is applied last
+        assertThat(pendingOnSend, contains(0L, 0L, 0L, 0L, 0L));
+    }
+
+    @Test(expected = MigrationFailedException.class)
+    public void changedFileFails() throws IOException {
+        bulkFileLoader.load(migration(Optional.empty(), Optional.of(HashUtils.hashSha256(ByteBuffer.wrap(new byte[0])))), new ByteArrayInputStream(gzip(DOCUMENTS)));
+    }
+
+    @Test(expected = MigrationFailedException.class)
+    public void missingIdFails() throws IOException {
+        bulkFileLoader.load(migration(Optional.of("id"), Optional.empty()), new ByteArrayInputStream(DOCUMENTS.getBytes(Charsets.UTF_8)));
+    }
+
+    private BulkFileMigration migration(final Optional<String> idField, final Optional<String> sha256Checksum) {
+        return new BulkFileMigration("products.ndjson.gz", "products", "product", idField, Optional.empty(), sha256Checksum);
+    }
+
+    private byte[] gzip(final String content) throws IOException {
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            gzipOutputStream.write(content.getBytes(Charsets.UTF_8));
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
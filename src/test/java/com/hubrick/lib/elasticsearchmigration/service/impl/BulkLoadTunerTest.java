@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hubrick.lib.elasticsearchmigration.service.impl.FakeElasticsearch.respond;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class BulkLoadTunerTest {
+
+    private static final String SETTINGS = "{" +
+            "\"index_a\":{\"settings\":{\"index.refresh_interval\":\"5s\",\"index.number_of_replicas\":\"2\"}}," +
+            "\"index_b\":{\"settings\":{\"index.number_of_replicas\":\"1\",\"index.translog.durability\":\"request\"}}" +
+            "}";
+    private static final String GREEN = "{\"status\":\"green\"}";
+    private static final String ENTRY_URL = "/elasticsearch_migration_bulk_load/bulk_load/test";
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    private final ObjectMapper objectMapper = DefaultMigrationClient.createObjectMapper();
+    private FakeElasticsearch elasticsearch;
+
+    @AfterClass
+    public static void tearDownScheduler() {
+        scheduler.shutdown();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (elasticsearch != null) {
+            elasticsearch.close();
+        }
+    }
+
+    @Test
+    public void tuneSavesSettingsAndCloseRestoresThem() throws IOException {
+        elasticsearch = new FakeElasticsearch(request -> respond(200, request.is("GET", "/index_a,index_b/_settings") ? SETTINGS : GREEN));
+
+        createTuner().tune(ImmutableSet.of("index_a", "index_b")).close();
+
+        final JsonNode bulkLoadSettings = getBody("/index_a,index_b/_settings");
+        assertThat(bulkLoadSettings.path("index.refresh_interval").asText(), is("-1"));
+        assertThat(bulkLoadSettings.path("index.number_of_replicas").asText(), is("0"));
+        assertThat(bulkLoadSettings.path("index.translog.durability").asText(), is("async"));
+
+        // Settings which were not set are restored as null, which resets them to their default
+        final JsonNode restoredA = getBody("/index_a/_settings");
+        assertThat(restoredA.path("index.refresh_interval").asText(), is("5s"));
+        assertThat(restoredA.path("index.number_of_replicas").asText(), is("2"));
+        assertThat(restoredA.get("index.translog.durability").isNull(), is(true));
+
+        final JsonNode restoredB = getBody("/index_b/_settings");
+        assertThat(restoredB.get("index.refresh_interval").isNull(), is(true));
+        assertThat(restoredB.path("index.number_of_replicas").asText(), is("1"));
+        assertThat(restoredB.path("index.translog.durability").asText(), is("request"));
+
+        final List<FakeElasticsearch.Request> healthRequests = elasticsearch.getRequests(e -> e.is("GET", "/_cluster/health/index_a,index_b"));
+        assertThat(healthRequests.size(), is(2));
+        assertThat(healthRequests.get(1).getParameters().get("wait_for_status"), is("green"));
+    }
+
+    @Test
+    public void savedSettingsAreStoredBeforeIndicesAreTuned() throws IOException {
+        elasticsearch = new FakeElasticsearch(request -> respond(200, request.is("GET", "/index_a,index_b/_settings") ? SETTINGS : GREEN));
+
+        final BulkLoadTuner.Session session = createTuner().tune(ImmutableSet.of("index_a", "index_b"));
+
+        final List<FakeElasticsearch.Request> puts = elasticsearch.getRequests(e -> e.getMethod().equals("PUT"));
+        assertThat(puts.size(), is(2));
+        assertThat(puts.get(0).getPath(), is(ENTRY_URL));
+        assertThat(puts.get(1).getPath(), is("/index_a,index_b/_settings"));
+        final JsonNode entry = objectMapper.readTree(puts.get(0).getBody());
+        assertThat(entry.path("identifier").asText(), is("test"));
+        assertThat(entry.path("settings").path("index_a").path("index.refresh_interval").asText(), is("5s"));
+        assertThat(entry.path("settings").path("index_b").path("index.translog.durability").asText(), is("request"));
+
+        session.close();
+        assertThat(elasticsearch.getRequests(e -> e.is("DELETE", ENTRY_URL)).size(), is(1));
+    }
+
+    @Test
+    public void createdIndexIsTunedAndResetToItsCreationSettings() throws IOException {
+        elasticsearch = new FakeElasticsearch(request -> {
+            if (request.is("GET", "/index_a,index_c*/_settings")) {
+                return respond(200, "{\"index_a\":{\"settings\":{\"index.refresh_interval\":\"5s\"}}}");
+            } else if (request.is("GET", "/index_c_1/_settings")) {
+                return respond(200, "{\"index_c_1\":{\"settings\":{\"index.number_of_replicas\":\"2\"}}}");
+            }
+            return respond(200, GREEN);
+        });
+
+        final BulkLoadTuner.Session session = createTuner().tune(ImmutableSet.of("index_a", "index_c*"));
+        session.tuneCreatedIndex("index_c_1");
+        session.tuneCreatedIndex("index_d");
+        session.close();
+
+        final List<FakeElasticsearch.Request> puts = elasticsearch.getRequests(e -> e.is("PUT", "/index_c_1/_settings"));
+        assertThat(puts.size(), is(2));
+        assertThat(objectMapper.readTree(puts.get(0).getBody()).path("index.number_of_replicas").asText(), is("0"));
+        final JsonNode restored = objectMapper.readTree(puts.get(1).getBody());
+        assertThat(restored.path("index.number_of_replicas").asText(), is("2"));
+        assertThat(restored.get("index.refresh_interval").isNull(), is(true));
+
+        // Only indices matching the tuned ones are tuned on creation
+        assertThat(elasticsearch.getRequests(e -> e.getPath().startsWith("/index_d")).isEmpty(), is(true));
+        final List<FakeElasticsearch.Request> entries = elasticsearch.getRequests(e -> e.is("PUT", ENTRY_URL));
+        assertThat(entries.size(), is(2));
+        assertThat(objectMapper.readTree(entries.get(1).getBody()).path("settings").has("index_c_1"), is(true));
+    }
+
+    @Test
+    public void unfinishedBulkLoadIsRestored() throws IOException {
+        elasticsearch = new FakeElasticsearch(request -> {
+            if (request.is("GET", ENTRY_URL)) {
+                return respond(200, "{\"found\":true,\"_source\":{\"identifier\":\"test\",\"settings\":{\"index_a\":{\"index.refresh_interval\":\"5s\"}},\"created\":\"2018-06-01T10:00:00.000Z\"}}");
+            }
+            return respond(200, GREEN);
+        });
+
+        createTuner().restoreUnfinished();
+
+        // Settings missing from the entry were not set before the bulk load and are reset to their default
+        final JsonNode restored = getBody("/index_a/_settings");
+        assertThat(restored.path("index.refresh_interval").asText(), is("5s"));
+        assertThat(restored.get("index.number_of_replicas").isNull(), is(true));
+        assertThat(restored.get("index.translog.durability").isNull(), is(true));
+        assertThat(elasticsearch.getRequests(e -> e.is("DELETE", ENTRY_URL)).size(), is(1));
+    }
+
+    @Test
+    public void nothingIsRestoredWithoutUnfinishedBulkLoad() {
+        elasticsearch = new FakeElasticsearch(request -> respond(404, "{\"found\":false}"));
+
+        createTuner().restoreUnfinished();
+
+        assertThat(elasticsearch.getRequests().size(), is(1));
+    }
+
+    @Test
+    public void failedRestoreStillRestoresOtherIndices() {
+        elasticsearch = new FakeElasticsearch(request -> {
+            if (request.is("GET", "/index_a,index_b/_settings")) {
+                return respond(200, SETTINGS);
+            } else if (request.is("PUT", "/index_a/_settings")) {
+                return respond(400, "{\"error\":\"invalid setting\"}");
+            }
+            return respond(200, GREEN);
+        });
+
+        final BulkLoadTuner.Session session = createTuner().tune(ImmutableSet.of("index_a", "index_b"));
+        try {
+            session.close();
+            fail("Expected the restore to fail");
+        } catch (MigrationFailedException e) {
+            assertThat(e.getMessage(), containsString("index_a"));
+        }
+
+        assertThat(elasticsearch.getRequests(e -> e.is("PUT", "/index_b/_settings")).size(), is(1));
+    }
+
+    @Test
+    public void timedOutHealthRequestsAreRepeated() {
+        final AtomicInteger timeouts = new AtomicInteger();
+        elasticsearch = new FakeElasticsearch(request -> {
+            if (request.is("GET", "/index_a,index_b/_settings")) {
+                return respond(200, SETTINGS);
+            } else if (request.getParameters().containsKey("wait_for_status") && timeouts.incrementAndGet() <= 2) {
+                return respond(408, "{\"status\":\"yellow\",\"timed_out\":true}");
+            }
+            return respond(200, GREEN);
+        });
+
+        createTuner().tune(ImmutableSet.of("index_a", "index_b")).close();
+
+        assertThat(elasticsearch.getRequests(e -> e.getParameters().containsKey("wait_for_status")).size(), is(3));
+    }
+
+    private BulkLoadTuner createTuner() {
+        return new BulkLoadTuner(elasticsearch.getRestClient(), objectMapper, new RequestRetrier(0, 10, scheduler), "test", 1000);
+    }
+
+    private JsonNode getBody(final String path) throws IOException {
+        final List<FakeElasticsearch.Request> requests = elasticsearch.getRequests(e -> e.is("PUT", path));
+        assertThat(requests.size(), is(1));
+        return objectMapper.readTree(requests.get(0).getBody());
+    }
+}
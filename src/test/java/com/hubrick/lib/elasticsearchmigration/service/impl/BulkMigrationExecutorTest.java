@@ -0,0 +1,341 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.CreateIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.OpType;
+import com.hubrick.lib.elasticsearchmigration.model.migration.UpdateDocumentMigration;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hubrick.lib.elasticsearchmigration.service.impl.FakeElasticsearch.respond;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class BulkMigrationExecutorTest {
+
+    private static final Map<Integer, String> ERROR_TYPES = ImmutableMap.of(
+            400, "mapper_parsing_exception",
+            409, "version_conflict_engine_exception",
+            429, "es_rejected_execution_exception"
+    );
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, Deque<Integer>> itemStatuses = new ConcurrentHashMap<>();
+    private FakeElasticsearch elasticsearch;
+
+    @AfterClass
+    public static void tearDownScheduler() {
+        scheduler.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        elasticsearch = new FakeElasticsearch(this::respondToBulk);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        elasticsearch.close();
+    }
+
+    @Test
+    public void batchDisabled() {
+        final List<Migration> migrations = ImmutableList.of(
+                new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.empty(), "{}"),
+                new IndexDocumentMigration("test_index", "test", Optional.of("2"), Optional.empty(), "{}")
+        );
+
+        assertThat(createExecutor(BulkConfig.builder().build()).batch(migrations), is(migrations));
+    }
+
+    @Test
+    public void batchConsecutiveDocumentMigrations() {
+        final List<Migration> batchedMigrations = createExecutor(BulkConfig.builder().enabled(true).maxActions(2).build()).batch(ImmutableList.of(
+                new CreateIndexMigration("test_index", "{}"),
+                new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.empty(), "{}"),
+                new UpdateDocumentMigration("test_index", "test", "1", "{\"doc\":{}}"),
+                new DeleteDocumentMigration("test_index", "test", "1"),
+                new CreateIndexMigration("test_index_2", "{}"),
+                new DeleteDocumentMigration("test_index_2", "test", "1")
+        ));
+
+        assertThat(batchedMigrations, contains(
+                instanceOf(CreateIndexMigration.class),
+                instanceOf(BulkMigration.class),
+                instanceOf(DeleteDocumentMigration.class),
+                instanceOf(CreateIndexMigration.class),
+                instanceOf(DeleteDocumentMigration.class)
+        ));
+        assertThat(((BulkMigration) batchedMigrations.get(1)).getMigrations().size(), is(2));
+    }
+
+    @Test
+    public void batchRespectsMaxSizeInBytes() {
+        final String definition = "{\"message\":\"0123456789\"}";
+        final long itemSizeInBytes = BulkMigration.toBulkItem(new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.empty(), definition)).length();
+
+        final List<Migration> batchedMigrations = createExecutor(BulkConfig.builder().enabled(true).maxSizeInBytes(itemSizeInBytes * 2).build()).batch(ImmutableList.of(
+                new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.empty(), definition),
+                new IndexDocumentMigration("test_index", "test", Optional.of("2"), Optional.empty(), definition),
+                new IndexDocumentMigration("test_index", "test", Optional.of("3"), Optional.empty(), definition)
+        ));
+
+        assertThat(batchedMigrations, contains(
+                instanceOf(BulkMigration.class),
+                instanceOf(IndexDocumentMigration.class)
+        ));
+    }
+
+    @Test
+    public void bulkBody() {
+        final BulkMigration bulkMigration = new BulkMigration(ImmutableList.of(
+                new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.of(OpType.INDEX), "{\n  \"user\": \"kimchy\"\n}"),
+                new UpdateDocumentMigration("test_index", "test", "1", "{\"doc\":{\"user\":\"new_user\"}}"),
+                new DeleteDocumentMigration("test_index", "test", "1")
+        ));
+
+        assertThat(bulkMigration.getBody(), is(
+                "{\"index\":{\"_index\":\"test_index\",\"_type\":\"test\",\"_id\":\"1\"}}\n" +
+                "{   \"user\": \"kimchy\" }\n" +
+                "{\"update\":{\"_index\":\"test_index\",\"_type\":\"test\",\"_id\":\"1\"}}\n" +
+                "{\"doc\":{\"user\":\"new_user\"}}\n" +
+                "{\"delete\":{\"_index\":\"test_index\",\"_type\":\"test\",\"_id\":\"1\"}}\n"
+        ));
+    }
+
+    @Test
+    public void onlyRejectedItemsAreResent() throws InterruptedException, ExecutionException, TimeoutException {
+        respondWith("2", 429, 201);
+
+        createExecutor(BulkConfig.builder().enabled(true).itemRetryBackoffInMillis(1).build())
+                .execute(bulk("1", "2", "3"))
+                .get(10, TimeUnit.SECONDS);
+
+        assertThat(getSentIds(), contains(ImmutableList.of("1", "2", "3"), ImmutableList.of("2")));
+    }
+
+    @Test
+    public void conflictsAndBadRequestsAreNotResent() throws InterruptedException, TimeoutException {
+        respondWith("1", 429);
+        respondWith("2", 409);
+        respondWith("3", 400);
+
+        final MigrationFailedException e = awaitFailure(createExecutor(BulkConfig.builder().enabled(true).itemRetryBackoffInMillis(1).build()).execute(bulk("1", "2", "3", "4")));
+
+        assertThat(getSentIds(), contains(ImmutableList.of("1", "2", "3", "4")));
+        assertThat(e.getMessage(), is("3 of 4 bulk items failed. Failures: [" +
+                "test_index/test/1 429 es_rejected_execution_exception: status 429, " +
+                "test_index/test/2 409 version_conflict_engine_exception: status 409, " +
+                "test_index/test/3 400 mapper_parsing_exception: status 400]"));
+    }
+
+    @Test
+    public void rejectedItemsAreGivenUpAfterMaxItemRetries() throws InterruptedException, TimeoutException {
+        respondWith("2", 429);
+
+        final MigrationFailedException e = awaitFailure(createExecutor(BulkConfig.builder().enabled(true).maxItemRetries(2).itemRetryBackoffInMillis(1).build()).execute(bulk("1", "2")));
+
+        assertThat(getSentIds(), contains(ImmutableList.of("1", "2"), ImmutableList.of("2"), ImmutableList.of("2")));
+        assertThat(e.getMessage(), is("1 of 1 bulk items failed. Failures: [test_index/test/2 429 es_rejected_execution_exception: status 429]"));
+    }
+
+    @Test
+    public void createConflictAfterRetriedRequestIsSuccess() throws InterruptedException, ExecutionException, TimeoutException {
+        final AtomicInteger bulkRequests = new AtomicInteger();
+        elasticsearch.setHandler(request -> bulkRequests.incrementAndGet() == 1 ? respond(503, "{\"error\":\"unavailable\"}") : respondToBulk(request));
+        respondWith("1", 409);
+
+        final BulkMigrationExecutor executor = new BulkMigrationExecutor(
+                BulkConfig.builder().enabled(true).build(),
+                this::perform,
+                new ObjectMapper(),
+                scheduler,
+                new RequestRetrier(1, 1, scheduler),
+                Optional.empty(),
+                new BufferPool(0, 1024)
+        );
+        // The lost first attempt created the document already
+        executor.execute(new BulkMigration(ImmutableList.of(
+                new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.of(OpType.CREATE), "{}"),
+                new IndexDocumentMigration("test_index", "test", Optional.of("2"), Optional.of(OpType.CREATE), "{}")
+        ))).get(10, TimeUnit.SECONDS);
+
+        assertThat(getSentIds(), contains(ImmutableList.of("1", "2"), ImmutableList.of("1", "2")));
+    }
+
+    @Test
+    public void adaptiveChunksAreEncodedAfterTheirDelay() throws InterruptedException, ExecutionException, TimeoutException {
+        final long delayInMillis = 50;
+        final List<Long> reservations = Collections.synchronizedList(new ArrayList<>());
+        final List<Long> acquisitions = Collections.synchronizedList(new ArrayList<>());
+        final BulkConfig bulkConfig = BulkConfig.builder().enabled(true).adaptive(true).maxActions(10).build();
+        final ThroughputController throughputController = new ThroughputController(bulkConfig, 1) {
+            @Override
+            public synchronized long reserve(final int documents, final long bytes) {
+                reservations.add(System.nanoTime());
+                return delayInMillis;
+            }
+        };
+        final BufferPool bufferPool = new BufferPool(1, 1024) {
+            @Override
+            synchronized ByteBuffer acquire() {
+                acquisitions.add(System.nanoTime());
+                return super.acquire();
+            }
+        };
+
+        new BulkMigrationExecutor(bulkConfig, this::perform, new ObjectMapper(), scheduler, new RequestRetrier(0, 0, scheduler), Optional.of(throughputController), bufferPool)
+                .execute(bulk("1", "2"))
+                .get(10, TimeUnit.SECONDS);
+
+        // The batch size starts at a tenth of maxActions, so every document is a chunk of its own
+        assertThat(getSentIds(), contains(ImmutableList.of("1"), ImmutableList.of("2")));
+        assertThat(acquisitions.size(), is(2));
+        for (int i = 0; i < acquisitions.size(); i++) {
+            assertThat(acquisitions.get(i) - reservations.get(i) >= TimeUnit.MILLISECONDS.toNanos(delayInMillis), is(true));
+        }
+    }
+
+    private BulkMigrationExecutor createExecutor(final BulkConfig bulkConfig) {
+        return new BulkMigrationExecutor(bulkConfig, this::perform, new ObjectMapper(), scheduler);
+    }
+
+    private CompletableFuture<Response> perform(final Migration migration) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        elasticsearch.getRestClient().performRequestAsync(migration.getMethod().name(), migration.getUrl(), migration.getParameters(), migration.getEntity(), new ResponseListener() {
+            @Override
+            public void onSuccess(final Response response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                future.completeExceptionally(new MigrationFailedException("Error performing migration", e));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * The item of the document gets the given statuses in consecutive requests, the last one is repeated. Items of other
+     * documents succeed.
+     */
+    private void respondWith(final String id, final Integer... statuses) {
+        itemStatuses.put(id, new LinkedList<>(Arrays.asList(statuses)));
+    }
+
+    private FakeElasticsearch.Response respondToBulk(final FakeElasticsearch.Request request) {
+        final ArrayNode items = objectMapper.createArrayNode();
+        for (String id : parseIds(request)) {
+            final Deque<Integer> statuses = itemStatuses.getOrDefault(id, new LinkedList<>(ImmutableList.of(201)));
+            final int status = statuses.size() > 1 ? statuses.poll() : statuses.peek();
+            final ObjectNode item = items.addObject().putObject("index");
+            item.put("_id", id).put("status", status);
+            if (status >= 300) {
+                item.putObject("error").put("type", ERROR_TYPES.get(status)).put("reason", "status " + status);
+            }
+        }
+        final ObjectNode response = objectMapper.createObjectNode();
+        response.put("took", 1).put("errors", true).set("items", items);
+        return respond(200, response.toString());
+    }
+
+    private List<List<String>> getSentIds() {
+        return elasticsearch.getRequests(e -> e.is("POST", "/_bulk")).stream().map(this::parseIds).collect(Collectors.toList());
+    }
+
+    private List<String> parseIds(final FakeElasticsearch.Request request) {
+        final List<String> ids = new ArrayList<>();
+        for (String line : Splitter.on('\n').omitEmptyStrings().split(request.getBody())) {
+            try {
+                // Action lines are the only ones with an _id, the sources in these tests are empty
+                final JsonNode action = objectMapper.readTree(line);
+                if (action.size() == 1 && action.elements().next().has("_id")) {
+                    ids.add(action.elements().next().path("_id").asText());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return ids;
+    }
+
+    private static BulkMigration bulk(final String... ids) {
+        return new BulkMigration(Arrays.stream(ids)
+                .<DocumentMigration>map(e -> new IndexDocumentMigration("test_index", "test", Optional.of(e), Optional.empty(), "{}"))
+                .collect(Collectors.toList()));
+    }
+
+    private static MigrationFailedException awaitFailure(final CompletableFuture<Void> future) throws InterruptedException, TimeoutException {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected the bulk to fail");
+            return null;
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(MigrationFailedException.class));
+            return (MigrationFailedException) e.getCause();
+        }
+    }
+}
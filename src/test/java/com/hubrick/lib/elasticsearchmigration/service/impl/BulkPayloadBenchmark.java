@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.base.Strings;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Compares building a _bulk body of about 5MB as joined string, the way batches were built before, with writing it into
+ * pooled direct buffers by the {@link BulkPayloadBuilder}. Run {@link #main(String[])} from the test classpath, the gc
+ * profiler reports the allocation rate ({@code gc.alloc.rate}, {@code gc.alloc.rate.norm}) and the number and accumulated
+ * time of garbage collections ({@code gc.count}, {@code gc.time}) during the measurement.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms512m", "-Xmx512m"})
+public class BulkPayloadBenchmark {
+
+    private static final int BODY_SIZE = 5 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Param({"1024", "65536"})
+    public int documentSize;
+
+    private List<DocumentMigration> migrations;
+    private BufferPool bufferPool;
+
+    @Setup
+    public void setUp() {
+        migrations = IntStream.range(0, BODY_SIZE / documentSize)
+                .mapToObj(i -> new IndexDocumentMigration("test_index", "test", Optional.of(String.valueOf(i)), Optional.empty(), "{\"content\":\"" + Strings.repeat("x", documentSize) + "\"}"))
+                .collect(Collectors.toList());
+        bufferPool = new BufferPool(BODY_SIZE / BUFFER_SIZE + 2, BUFFER_SIZE);
+    }
+
+    @Benchmark
+    public int joinedString() {
+        final StringBuilder body = new StringBuilder();
+        migrations.forEach(e -> body.append(BulkMigration.toBulkItem(e)));
+        return body.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Benchmark
+    public long pooledBuffers() {
+        final BulkPayloadBuilder builder = new BulkPayloadBuilder(bufferPool);
+        migrations.forEach(builder::append);
+        final BulkPayload payload = builder.build();
+        payload.release();
+        return payload.getSizeInBytes();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BulkPayloadBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.OpType;
+import com.hubrick.lib.elasticsearchmigration.model.migration.SlicedDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.UpdateDocumentMigration;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class BulkPayloadBuilderTest {
+
+    private static final List<DocumentMigration> MIGRATIONS = ImmutableList.of(
+            new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.of(OpType.INDEX), "{\n  \"user\": \"kimchy\",\r\n  \"city\": \"Z\u00fcrich \u2603 \ud83d\ude00\"\n}"),
+            new UpdateDocumentMigration("test_index", "test", "1", "{\"doc\":{\"user\":\"new_user\"}}"),
+            new DeleteDocumentMigration("test_index", "test", "1")
+    );
+
+    @Test
+    public void payloadMatchesBody() {
+        for (int bufferSize : new int[]{4, 5, 7, 64, 1024 * 1024}) {
+            final BulkPayload payload = build(new BufferPool(2, bufferSize), MIGRATIONS);
+            final byte[] expected = new BulkMigration(MIGRATIONS).getBody().getBytes(StandardCharsets.UTF_8);
+
+            assertThat("bufferSize " + bufferSize, new String(toBytes(payload), StandardCharsets.UTF_8), is(new String(expected, StandardCharsets.UTF_8)));
+            assertThat("bufferSize " + bufferSize, payload.getSizeInBytes(), is((long) expected.length));
+        }
+    }
+
+    @Test
+    public void slicedSourcesAreReferenced() {
+        final ByteBuffer source = ByteBuffer.wrap("{\"sku\":\"a\"}".getBytes(StandardCharsets.UTF_8));
+        final SlicedDocumentMigration migration = new SlicedDocumentMigration("test_index", "test", Optional.of("a"), Optional.empty(), source);
+        final BulkPayload payload = build(new BufferPool(1, 64), ImmutableList.of(migration));
+
+        assertThat(new String(toBytes(payload), StandardCharsets.UTF_8), is(BulkMigration.toBulkItem(migration)));
+        assertThat(payload.getBuffers().stream().anyMatch(e -> e.hasArray() && e.array() == source.array()), is(true));
+    }
+
+    @Test
+    public void releaseReturnsPooledBuffers() {
+        final BufferPool bufferPool = new BufferPool(2, 64);
+        final BulkPayload payload = build(bufferPool, MIGRATIONS);
+        assertThat(bufferPool.getIdleCount(), is(0));
+
+        payload.release();
+        payload.release();
+        assertThat(bufferPool.getIdleCount(), is(2));
+
+        // Pooled buffers are handed out again, the ones beyond the pool size were heap buffers
+        assertThat(bufferPool.acquire().isDirect(), is(true));
+        assertThat(bufferPool.acquire().isDirect(), is(true));
+        assertThat(bufferPool.acquire().isDirect(), is(false));
+    }
+
+    private static BulkPayload build(final BufferPool bufferPool, final List<? extends DocumentMigration> migrations) {
+        final BulkPayloadBuilder builder = new BulkPayloadBuilder(bufferPool);
+        migrations.forEach(builder::append);
+        return builder.build();
+    }
+
+    private static byte[] toBytes(final BulkPayload payload) {
+        final ByteBuffer bytes = ByteBuffer.allocate((int) payload.getSizeInBytes());
+        payload.getBuffers().forEach(e -> bytes.put(e.duplicate()));
+        return bytes.array();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class ChangesetSchemaValidatorTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ChangesetSchemaValidator changesetSchemaValidator = new ChangesetSchemaValidator();
+    private final JsonSchemaValidator jsonSchemaValidator = new JsonSchemaValidator();
+
+    @Test
+    public void validChangeset() throws IOException {
+        final JsonNode changeset = objectMapper.readTree("{\"migrations\":[" +
+                "{\"type\":\"CREATE_INDEX\",\"index\":\"test_index\",\"definition\":\"{}\"}," +
+                "{\"type\":\"UPDATE_MAPPING\",\"indices\":[\"test_index\"],\"mapping\":\"test\",\"definition\":\"{}\"}," +
+                "{\"type\":\"INDEX_DOCUMENT\",\"index\":\"test_index\",\"mapping\":\"test\",\"opType\":\"CREATE\",\"definition\":\"{}\"}," +
+                "{\"type\":\"DELETE_DOCUMENT\",\"index\":\"test_index\",\"id\":\"1\"}," +
+                "{\"type\":\"REINDEX\",\"source\":\"test_index\",\"destination\":\"test_index_v2\",\"slices\":4,\"requestsPerSecond\":0.5}," +
+                "{\"type\":\"REINDEX\",\"source\":\"test_index\",\"destination\":\"test_index_v2\",\"slices\":\"shards\"}," +
+                "{\"type\":\"UPDATE_BY_QUERY\",\"indices\":[\"test_index\"],\"script\":\"{}\",\"conflicts\":\"PROCEED\"}," +
+                "{\"type\":\"DELETE_BY_QUERY\",\"indices\":[\"test_index\"],\"query\":\"{}\",\"slices\":2}," +
+                "{\"type\":\"ALIAS\",\"definition\":\"{}\"}," +
+                "{\"type\":\"REBUILD_INDEX\",\"alias\":\"test_index\",\"definition\":\"{}\",\"warmup\":\"{}\"}," +
+                "{\"type\":\"BULK_FILE\",\"file\":\"data/products.ndjson.gz\",\"index\":\"test_index\",\"mapping\":\"test\",\"idField\":\"sku\",\"opType\":\"INDEX\"}" +
+                "]}");
+
+        assertThat(changesetSchemaValidator.validate(changeset), is(empty()));
+        assertThat(jsonSchemaValidator.validate(changeset), is(empty()));
+    }
+
+    @Test
+    public void missingRequiredProperty() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"CREATE_INDEX\",\"index\":\"test_index\"}]}",
+                "/migrations/0: object has missing required properties ([\"definition\"])");
+    }
+
+    @Test
+    public void additionalProperty() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"DELETE_INDEX\",\"index\":\"test_index\",\"definition\":\"{}\"}]}",
+                "/migrations/0: object instance has properties which are not allowed by the schema: [\"definition\"]");
+    }
+
+    @Test
+    public void wrongPropertyType() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"DELETE_DOCUMENT\",\"index\":\"test_index\",\"id\":1}]}",
+                "/migrations/0/id: instance type (integer) does not match any allowed primitive type (allowed: [\"string\"])");
+    }
+
+    @Test
+    public void unknownType() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"DROP_EVERYTHING\"}]}",
+                "not found in enum");
+    }
+
+    @Test
+    public void unknownOpType() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"INDEX_DOCUMENT\",\"index\":\"test_index\",\"mapping\":\"test\",\"opType\":\"UPSERT\",\"definition\":\"{}\"}]}",
+                "not found in enum (possible values: [\"INDEX\",\"CREATE\",\"UPDATE\",\"DELETE\"])");
+    }
+
+    @Test
+    public void bulkFileRejectsOpTypesWithoutSource() throws IOException {
+        for (String opType : new String[]{"UPDATE", "DELETE"}) {
+            assertInvalid("{\"migrations\":[{\"type\":\"BULK_FILE\",\"file\":\"data.ndjson\",\"index\":\"test_index\",\"mapping\":\"test\",\"opType\":\"" + opType + "\"}]}",
+                    "instance value (\"" + opType + "\") not found in enum (possible values: [\"INDEX\",\"CREATE\"])");
+        }
+    }
+
+    @Test
+    public void unknownSlices() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"REINDEX\",\"source\":\"test_index\",\"destination\":\"test_index_v2\",\"slices\":\"all\"}]}",
+                "does not match input string \"all\"");
+    }
+
+    @Test
+    public void nonPositiveSlices() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"REINDEX\",\"source\":\"test_index\",\"destination\":\"test_index_v2\",\"slices\":0}]}",
+                "numeric instance is lower than the required minimum (minimum: 1, found: 0)");
+    }
+
+    @Test
+    public void deleteByQueryWithoutQuery() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"DELETE_BY_QUERY\",\"indices\":[\"test_index\"]}]}",
+                "/migrations/0: object has missing required properties ([\"query\"])");
+    }
+
+    @Test
+    public void unknownConflicts() throws IOException {
+        assertInvalid("{\"migrations\":[{\"type\":\"UPDATE_BY_QUERY\",\"indices\":[\"test_index\"],\"conflicts\":\"IGNORE\"}]}",
+                "not found in enum (possible values: [\"PROCEED\",\"ABORT\"])");
+    }
+
+    @Test
+    public void validBulkLoad() throws IOException {
+        final JsonNode changeset = objectMapper.readTree("{\"bulkLoad\":{\"indices\":[\"test_index\"],\"maxNumSegments\":1},\"migrations\":[]}");
+
+        assertThat(changesetSchemaValidator.validate(changeset), is(empty()));
+        assertThat(jsonSchemaValidator.validate(changeset), is(empty()));
+    }
+
+    @Test
+    public void unknownBulkLoadProperty() throws IOException {
+        assertInvalid("{\"bulkLoad\":{\"type\":\"CREATE_INDEX\"},\"migrations\":[]}",
+                "/bulkLoad: object instance has properties which are not allowed by the schema: [\"type\"]");
+    }
+
+    private void assertInvalid(final String json, final String expectedErrorSuffix) throws IOException {
+        final JsonNode changeset = objectMapper.readTree(json);
+        final List<String> errors = changesetSchemaValidator.validate(changeset);
+
+        assertThat(errors, contains(endsWith(expectedErrorSuffix)));
+        // The generic validator has to reject the same changeset
+        assertThat(jsonSchemaValidator.validate(changeset).isEmpty(), is(false));
+    }
+}
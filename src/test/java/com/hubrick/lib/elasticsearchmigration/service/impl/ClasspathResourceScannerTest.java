@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class ClasspathResourceScannerTest {
+
+    private static final Pattern MIGRATION_FILE_PATTERN = Pattern.compile("^V([0-9]+)__([a-zA-Z0-9]{1}[a-zA-Z0-9_-]*)\\.yaml$");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void getResourcesFromDirectory() {
+        final Set<String> resources = createScanner().getResources("com.hubrick.lib.elasticsearchmigration.service.impl", MIGRATION_FILE_PATTERN);
+
+        assertThat(resources, containsInAnyOrder(
+                "com/hubrick/lib/elasticsearchmigration/service/impl/V1__migration_one.yaml",
+                "com/hubrick/lib/elasticsearchmigration/service/impl/V2__migration_two.yaml",
+                "com/hubrick/lib/elasticsearchmigration/service/impl/V3__migration_three.yaml"
+        ));
+    }
+
+    @Test
+    public void getResourcesFromJar() throws IOException {
+        final File jar = temporaryFolder.newFile("migrations.jar");
+        try (final JarOutputStream jarOutputStream = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            for (String entry : new String[]{"es/", "es/migration/", "es/migration/V1__first.yaml", "es/migration/sub/V2__second.yaml", "es/migration/readme.txt", "es/other/V3__third.yaml"}) {
+                jarOutputStream.putNextEntry(new JarEntry(entry));
+                if (!entry.endsWith("/")) {
+                    jarOutputStream.write("migrations: []".getBytes(StandardCharsets.UTF_8));
+                }
+                jarOutputStream.closeEntry();
+            }
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        final ClassLoader previousContextClassLoader = currentThread.getContextClassLoader();
+        try (final URLClassLoader classLoader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, null)) {
+            currentThread.setContextClassLoader(classLoader);
+
+            assertThat(createScanner().getResources("es.migration", MIGRATION_FILE_PATTERN), containsInAnyOrder(
+                    "es/migration/V1__first.yaml",
+                    "es/migration/sub/V2__second.yaml"
+            ));
+        } finally {
+            currentThread.setContextClassLoader(previousContextClassLoader);
+        }
+    }
+
+    private ClasspathResourceScanner createScanner() {
+        return new ClasspathResourceScanner((basePackage, pattern) -> {
+            throw new AssertionError("Fallback must not be used");
+        });
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.MigrationClientConfig;
+import com.hubrick.lib.elasticsearchmigration.RefreshPolicy;
+import com.hubrick.lib.elasticsearchmigration.model.es.LockEntryMeta;
+import com.hubrick.lib.elasticsearchmigration.model.es.MigrationEntryMeta;
+import com.hubrick.lib.elasticsearchmigration.model.es.MigrationFingerprintMeta;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkLoad;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Conflicts;
+import com.hubrick.lib.elasticsearchmigration.model.migration.CreateIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteByQueryMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationMeta;
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationSet;
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationSetEntry;
+import com.hubrick.lib.elasticsearchmigration.model.migration.ReindexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.TaskMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.UpdateByQueryMigration;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static com.hubrick.lib.elasticsearchmigration.service.impl.FakeElasticsearch.respond;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Applies migration sets against {@link FakeElasticsearch}, which answers the requests for the history, lock and
+ * fingerprint indices like an empty cluster.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class DefaultMigrationClientTest {
+
+    private static final String EMPTY_SEARCH = "{\"took\":1,\"timed_out\":false,\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0}," +
+            "\"hits\":{\"total\":0,\"max_score\":null,\"hits\":[]}}";
+    private static final String SOURCE_SETTINGS = "{\"source_1\":{\"settings\":{\"index\":{\"number_of_shards\":\"5\"}}}," +
+            "\"source_2\":{\"settings\":{\"index\":{\"number_of_shards\":\"3\"}}}}";
+
+    private FakeElasticsearch elasticsearch;
+    private RestHighLevelClient restHighLevelClient;
+
+    @Before
+    public void setUp() {
+        elasticsearch = new FakeElasticsearch(DefaultMigrationClientTest::handle);
+        restHighLevelClient = new RestHighLevelClient(RestClient.builder(elasticsearch.getHttpHost()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        restHighLevelClient.close();
+        elasticsearch.close();
+    }
+
+    @Test
+    public void shardSlicesAreResolvedFromTheSourceIndices() {
+        apply(MigrationClientConfig.builder().taskPollIntervalInMillis(10).build(), ImmutableList.of(
+                new ReindexMigration("source_*", "destination", Optional.empty(), Optional.empty(), TaskMigration.SHARD_SLICES, Optional.empty())
+        ));
+
+        assertThat(elasticsearch.getRequests(e -> e.is("GET", "/source_*/_settings")).size(), is(1));
+        assertThat(getSingleRequest("POST", "/_reindex").getParameters().get("slices"), is("3"));
+    }
+
+    @Test
+    public void explicitSlicesAreSentUnchanged() {
+        apply(MigrationClientConfig.builder().taskPollIntervalInMillis(10).build(), ImmutableList.of(
+                new ReindexMigration("source_*", "destination", Optional.empty(), Optional.empty(), TaskMigration.AUTO_SLICES, Optional.empty())
+        ));
+
+        assertThat(elasticsearch.getRequests(e -> e.is("GET", "/source_*/_settings")).size(), is(0));
+        assertThat(getSingleRequest("POST", "/_reindex").getParameters().get("slices"), is("auto"));
+    }
+
+    @Test
+    public void shardSlicesOfByQueryTasksAreResolvedFromTheirIndices() {
+        apply(MigrationClientConfig.builder().taskPollIntervalInMillis(10).build(), ImmutableList.of(
+                new UpdateByQueryMigration(ImmutableSet.of("source_*"), Optional.empty(), Optional.empty(), Conflicts.PROCEED, TaskMigration.SHARD_SLICES, Optional.empty()),
+                new DeleteByQueryMigration(ImmutableSet.of("source_*"), "{\"match_all\":{}}", Conflicts.PROCEED, TaskMigration.SHARD_SLICES, Optional.empty())
+        ));
+
+        assertThat(getSingleRequest("POST", "/source_*/_update_by_query").getParameters().get("slices"), is("3"));
+        assertThat(getSingleRequest("POST", "/source_*/_delete_by_query").getParameters().get("slices"), is("3"));
+    }
+
+    @Test
+    public void perRequestRefreshWaitsForEveryWrite() {
+        applyTwoVersions(RefreshPolicy.PER_REQUEST);
+
+        assertThat(getDocumentWrites().size(), is(5));
+        assertThat(getDocumentWrites().stream().allMatch(e -> "wait_for".equals(e.getParameters().get("refresh"))), is(true));
+        assertThat(getRefreshedIndices(), is(empty()));
+    }
+
+    @Test
+    public void perVersionRefreshRefreshesTheIndicesOfEachVersionOnce() {
+        applyTwoVersions(RefreshPolicy.PER_VERSION);
+
+        assertThat(getDocumentWrites().size(), is(5));
+        assertThat(getDocumentWrites().stream().noneMatch(e -> e.getParameters().containsKey("refresh")), is(true));
+        assertThat(getRefreshedIndices(), contains(ImmutableSet.of("index_a", "index_b"), ImmutableSet.of("index_b", "index_c")));
+        // The first version is refreshed before the second one starts writing
+        assertThat(indexOf(e -> e.getPath().endsWith("/_refresh")) < indexOf(e -> e.getPath().startsWith("/index_c/")), is(true));
+    }
+
+    @Test
+    public void perRunRefreshRefreshesAllIndicesOnceAtTheEnd() {
+        applyTwoVersions(RefreshPolicy.PER_RUN);
+
+        assertThat(getDocumentWrites().stream().noneMatch(e -> e.getParameters().containsKey("refresh")), is(true));
+        assertThat(getRefreshedIndices(), contains(ImmutableSet.of("index_a", "index_b", "index_c")));
+        assertThat(indexOf(e -> e.getPath().endsWith("/_refresh")) > indexOf(e -> e.getPath().startsWith("/index_c/")), is(true));
+    }
+
+    @Test
+    public void historyWritesWaitForRefreshWithDeferredRefresh() {
+        applyTwoVersions(RefreshPolicy.PER_RUN);
+
+        final List<FakeElasticsearch.Request> historyWrites = elasticsearch.getRequests(e -> e.getPath().startsWith("/" + MigrationEntryMeta.INDEX + "/") && !e.getPath().endsWith("/_search"));
+        assertThat(historyWrites.size(), is(4));
+        assertThat(historyWrites.stream().allMatch(e -> "wait_for".equals(e.getParameters().get("refresh"))), is(true));
+    }
+
+    @Test
+    public void indicesCreatedDuringBulkLoadAreTunedBeforeTheyAreWritten() throws IOException {
+        final AtomicBoolean created = new AtomicBoolean();
+        elasticsearch.setHandler(request -> {
+            if (request.is("PUT", "/index_new")) {
+                created.set(true);
+            } else if (request.is("GET", "/index_new/_settings")) {
+                return respond(200, created.get() ? "{\"index_new\":{\"settings\":{\"index.number_of_replicas\":\"1\"}}}" : "{}");
+            }
+            return handle(request);
+        });
+
+        apply(MigrationClientConfig.builder().build(), new MigrationSetEntry(
+                () -> ImmutableList.of(
+                        new CreateIndexMigration("index_new", "{}"),
+                        new IndexDocumentMigration("index_new", "test", Optional.of("1"), Optional.empty(), "{}")
+                ),
+                () -> Optional.of(new BulkLoad(Optional.empty(), Optional.empty())),
+                new MigrationMeta(ImmutableSet.of("checksum"), 1, "test")
+        ));
+
+        final List<FakeElasticsearch.Request> settings = elasticsearch.getRequests(e -> e.is("PUT", "/index_new/_settings"));
+        // The first update is the bulk load of the index which did not exist yet, which is a no-op
+        assertThat(settings.size(), is(3));
+        assertThat(indexOf(e -> e.is("PUT", "/index_new")) < elasticsearch.getRequests().indexOf(settings.get(1)), is(true));
+        assertThat(elasticsearch.getRequests().indexOf(settings.get(1)) < indexOf(e -> e.getPath().startsWith("/index_new/test/")), is(true));
+        assertThat(new ObjectMapper().readTree(settings.get(2).getBody()).path("index.number_of_replicas").asText(), is("1"));
+    }
+
+    private void apply(final MigrationClientConfig migrationClientConfig, final List<Migration> migrations) {
+        apply(migrationClientConfig, new MigrationSetEntry(migrations, new MigrationMeta(ImmutableSet.of("checksum"), 1, "test")));
+    }
+
+    private void apply(final MigrationClientConfig migrationClientConfig, final MigrationSetEntry... migrationSetEntries) {
+        try (final DefaultMigrationClient migrationClient = new DefaultMigrationClient("test", restHighLevelClient, false, 10, 0, migrationClientConfig)) {
+            migrationClient.applyMigrationSet(new MigrationSet(ImmutableList.copyOf(migrationSetEntries)));
+        }
+    }
+
+    /**
+     * Applies two versions, the first writes to index_a and index_b, the second to index_b and index_c.
+     */
+    private void applyTwoVersions(final RefreshPolicy refreshPolicy) {
+        apply(
+                MigrationClientConfig.builder().refreshPolicy(refreshPolicy).build(),
+                new MigrationSetEntry(
+                        ImmutableList.of(
+                                new IndexDocumentMigration("index_a", "test", Optional.of("1"), Optional.empty(), "{}"),
+                                new IndexDocumentMigration("index_a", "test", Optional.of("2"), Optional.empty(), "{}"),
+                                new DeleteDocumentMigration("index_b", "test", "1")
+                        ),
+                        new MigrationMeta(ImmutableSet.of("checksum-1"), 1, "first")
+                ),
+                new MigrationSetEntry(
+                        ImmutableList.of(
+                                new IndexDocumentMigration("index_b", "test", Optional.of("2"), Optional.empty(), "{}"),
+                                new IndexDocumentMigration("index_c", "test", Optional.of("1"), Optional.empty(), "{}")
+                        ),
+                        new MigrationMeta(ImmutableSet.of("checksum-2"), 2, "second")
+                )
+        );
+    }
+
+    private List<FakeElasticsearch.Request> getDocumentWrites() {
+        return elasticsearch.getRequests(e -> e.getPath().startsWith("/index_") && !e.getPath().endsWith("/_refresh"));
+    }
+
+    private List<ImmutableSet<String>> getRefreshedIndices() {
+        return elasticsearch.getRequests(e -> e.getMethod().equals("POST") && e.getPath().endsWith("/_refresh")).stream()
+                .map(e -> ImmutableSet.copyOf(Splitter.on(',').split(e.getPath().substring(1, e.getPath().length() - "/_refresh".length()))))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the position of the first request matching the predicate among all recorded requests
+     */
+    private int indexOf(final Predicate<FakeElasticsearch.Request> predicate) {
+        final List<FakeElasticsearch.Request> requests = elasticsearch.getRequests();
+        for (int i = 0; i < requests.size(); i++) {
+            if (predicate.test(requests.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private FakeElasticsearch.Request getSingleRequest(final String method, final String path) {
+        final List<FakeElasticsearch.Request> requests = elasticsearch.getRequests(e -> e.is(method, path));
+        assertThat(requests.size(), is(1));
+        return requests.get(0);
+    }
+
+    private static FakeElasticsearch.Response handle(final FakeElasticsearch.Request request) {
+        if (request.getPath().equals("/_nodes")) {
+            return respond(200, "{\"_nodes\":{\"total\":1}}");
+        } else if (request.getPath().startsWith("/" + MigrationFingerprintMeta.INDEX + "/") && !request.getMethod().equals("PUT")) {
+            return respond(404, "{\"found\":false}");
+        } else if (request.getPath().equals("/" + MigrationEntryMeta.INDEX + "/_search")) {
+            return respond(200, EMPTY_SEARCH);
+        } else if (request.getPath().startsWith("/" + LockEntryMeta.INDEX + "/")) {
+            return respond(request.getMethod().equals("PUT") ? 201 : 200, "{\"_version\":1}");
+        } else if (request.is("GET", "/source_*/_settings")) {
+            return respond(200, SOURCE_SETTINGS);
+        } else if (request.getPath().endsWith("/_reindex") || request.getPath().endsWith("_by_query")) {
+            return respond(200, "{\"task\":\"node:1\"}");
+        } else if (request.is("GET", "/_tasks/node:1")) {
+            return respond(200, "{\"completed\":true,\"response\":{\"took\":1,\"timed_out\":false,\"failures\":[]}}");
+        }
+        return respond(200, "{}");
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A local HTTP server standing in for elasticsearch in unit tests. Every request is recorded and answered by the given
+ * handler, the {@link RestClient} of the server talks to it like to a real cluster.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+class FakeElasticsearch implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final RestClient restClient;
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+    private volatile Function<Request, Response> handler;
+
+    FakeElasticsearch(final Function<Request, Response> handler) {
+        this.handler = handler;
+        try {
+            this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+        this.restClient = RestClient.builder(getHttpHost()).build();
+    }
+
+    static Response respond(final int status, final String body) {
+        return new Response(status, body);
+    }
+
+    void setHandler(final Function<Request, Response> handler) {
+        this.handler = handler;
+    }
+
+    RestClient getRestClient() {
+        return restClient;
+    }
+
+    HttpHost getHttpHost() {
+        return new HttpHost(InetAddress.getLoopbackAddress(), server.getAddress().getPort());
+    }
+
+    List<Request> getRequests() {
+        return ImmutableList.copyOf(requests);
+    }
+
+    List<Request> getRequests(final Predicate<Request> predicate) {
+        return requests.stream().filter(predicate).collect(Collectors.toList());
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final Request request = new Request(
+                exchange.getRequestMethod(),
+                exchange.getRequestURI().getPath(),
+                parseQuery(exchange.getRequestURI().getRawQuery()),
+                new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8)
+        );
+        requests.add(request);
+
+        Response response;
+        try {
+            response = handler.apply(request);
+        } catch (RuntimeException e) {
+            response = respond(500, "{\"error\":\"" + e + "\"}");
+        }
+
+        final byte[] body = response.getBody().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(response.getStatus(), body.length == 0 ? -1 : body.length);
+        try (final OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(final String query) throws IOException {
+        final Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String parameter : Splitter.on('&').omitEmptyStrings().split(query)) {
+                final int separator = parameter.indexOf('=');
+                parameters.put(
+                        URLDecoder.decode(separator < 0 ? parameter : parameter.substring(0, separator), "UTF-8"),
+                        separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), "UTF-8")
+                );
+            }
+        }
+        return parameters;
+    }
+
+    @Override
+    public void close() throws IOException {
+        restClient.close();
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Request {
+
+        private final String method;
+        private final String path;
+        private final Map<String, String> parameters;
+        private final String body;
+
+        boolean is(final String method, final String path) {
+            return this.method.equals(method) && this.path.equals(path);
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path + " " + parameters;
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Response {
+
+        private final int status;
+        private final String body;
+    }
+}
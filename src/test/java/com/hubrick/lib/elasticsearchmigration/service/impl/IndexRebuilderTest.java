@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class IndexRebuilderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void firstRebuildReplacesConcreteIndex() throws IOException {
+        final IndexRebuilder.AliasState aliasState = IndexRebuilder.getAliasState("products", objectMapper.readTree(
+                "{\"products\":{\"aliases\":{}},\"products_archive\":{\"aliases\":{}}}"
+        ));
+
+        assertThat(aliasState.getLiveIndices(), containsInAnyOrder("products"));
+        assertThat(aliasState.getStaleIndices(), is(empty()));
+        assertThat(aliasState.getLatestVersion(), is(0));
+    }
+
+    @Test
+    public void rebuildReplacesAliasedIndexAndLeftOvers() throws IOException {
+        final IndexRebuilder.AliasState aliasState = IndexRebuilder.getAliasState("products", objectMapper.readTree(
+                "{\"products_v2\":{\"aliases\":{\"products\":{}}},\"products_v3\":{\"aliases\":{}},\"products_v10_backup\":{\"aliases\":{}}}"
+        ));
+
+        assertThat(aliasState.getLiveIndices(), containsInAnyOrder("products_v2"));
+        assertThat(aliasState.getStaleIndices(), containsInAnyOrder("products_v3"));
+        assertThat(aliasState.getLatestVersion(), is(3));
+    }
+
+    @Test
+    public void noIndexYet() throws IOException {
+        final IndexRebuilder.AliasState aliasState = IndexRebuilder.getAliasState("products", objectMapper.readTree("{}"));
+
+        assertThat(aliasState.getLiveIndices(), is(empty()));
+        assertThat(aliasState.getStaleIndices(), is(empty()));
+        assertThat(aliasState.getLatestVersion(), is(0));
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class IndexedResourceScannerTest {
+
+    private static final Pattern MIGRATION_FILE_PATTERN = Pattern.compile("^V([0-9]+)__([a-zA-Z0-9]{1}[a-zA-Z0-9_-]*)\\.yaml$");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void getResourcesFromIndex() throws IOException {
+        final Path index = temporaryFolder.getRoot().toPath().resolve(IndexedResourceScanner.getIndexResourceName("es.migration"));
+        Files.createDirectories(index.getParent());
+        try (final OutputStream outputStream = Files.newOutputStream(index)) {
+            IndexedResourceScanner.write(ImmutableList.of("es/migration/V1__first.yaml", "es/migration/README.md", "es/migration/V2__second.yaml"), outputStream);
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        final ClassLoader previousContextClassLoader = currentThread.getContextClassLoader();
+        try (final URLClassLoader classLoader = new URLClassLoader(new URL[]{temporaryFolder.getRoot().toURI().toURL()}, previousContextClassLoader)) {
+            currentThread.setContextClassLoader(classLoader);
+            final Set<String> resources = new IndexedResourceScanner((basePackage, pattern) -> {
+                throw new AssertionError("Fallback must not be used");
+            }).getResources("es.migration", MIGRATION_FILE_PATTERN);
+
+            assertThat(resources, contains("es/migration/V1__first.yaml", "es/migration/V2__second.yaml"));
+        } finally {
+            currentThread.setContextClassLoader(previousContextClassLoader);
+        }
+    }
+
+    @Test
+    public void fallbackWithoutIndex() {
+        final Set<String> fallbackResources = ImmutableSet.of("es/migration/V1__first.yaml");
+
+        assertThat(new IndexedResourceScanner((basePackage, pattern) -> fallbackResources).getResources("does.not.exist", MIGRATION_FILE_PATTERN), is(fallbackResources));
+    }
+}
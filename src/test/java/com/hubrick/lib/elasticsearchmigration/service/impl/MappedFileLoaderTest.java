@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkFileMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.SlicedDocumentMigration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class MappedFileLoaderTest {
+
+    private static final String DOCUMENTS = "{\"sku\":\"a\",\"name\":\"first document\"}\n" +
+            "{\"sku\":\"b\",\"name\":\"a second, considerably longer document\"}\r\n" +
+            "\n" +
+            "{\"sku\":\"c\"}\n" +
+            "{\"sku\":\"d\",\"name\":\"fourth\"}\n" +
+            "{\"sku\":\"e\"}";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<BulkMigration> bulkMigrations = new ArrayList<>();
+
+    @Test
+    public void segmentBoundariesAreLineStarts() throws IOException {
+        try (final FileChannel channel = FileChannel.open(writeFile(DOCUMENTS), StandardOpenOption.READ)) {
+            final long[] boundaries = MappedFileLoader.findSegmentBoundaries(channel, 10);
+
+            assertThat(boundaries[0], is(0L));
+            assertThat(boundaries[boundaries.length - 1], is((long) DOCUMENTS.length()));
+            for (int i = 1; i < boundaries.length - 1; i++) {
+                assertThat(DOCUMENTS.charAt((int) boundaries[i] - 1), is('\n'));
+            }
+        }
+    }
+
+    @Test
+    public void loadSendsEveryLineOnce() throws IOException {
+        final MappedFileLoader mappedFileLoader = new MappedFileLoader(BulkConfig.builder().maxActions(2).maxSizeInBytes(64L).build(), this::apply, () -> 4, Runnable::run);
+
+        try (final FileChannel channel = FileChannel.open(writeFile(DOCUMENTS), StandardOpenOption.READ)) {
+            final long documents = mappedFileLoader.load(new BulkFileMigration("file:products.ndjson", "products", "product", Optional.of("sku"), Optional.empty(), Optional.empty()), channel);
+
+            assertThat(documents, is(5L));
+        }
+
+        final List<DocumentMigration> migrations = bulkMigrations.stream().flatMap(e -> e.getMigrations().stream()).collect(Collectors.toList());
+        assertThat(migrations, everyItem(instanceOf(SlicedDocumentMigration.class)));
+        assertThat(migrations.stream().map(DocumentMigration::getId).map(Optional::get).collect(Collectors.toList()), contains("a", "b", "c", "d", "e"));
+        assertThat(migrations.get(1).getSource().get(), is("{\"sku\":\"b\",\"name\":\"a second, considerably longer document\"}"));
+    }
+
+    @Test
+    public void documentsWithIdsAreSentBySingleSender() throws IOException {
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final MappedFileLoader mappedFileLoader = new MappedFileLoader(BulkConfig.builder().maxActions(1).maxSizeInBytes(16L).build(), bulkMigration -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            synchronized (bulkMigrations) {
+                bulkMigrations.add(bulkMigration);
+            }
+            return CompletableFuture.completedFuture(null);
+        }, () -> 4, executorService);
+
+        try (final FileChannel channel = FileChannel.open(writeFile(DOCUMENTS), StandardOpenOption.READ)) {
+            mappedFileLoader.load(new BulkFileMigration("file:products.ndjson", "products", "product", Optional.of("sku"), Optional.empty(), Optional.empty()), channel);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertThat(maxInFlight.get(), is(1));
+        assertThat(bulkMigrations.stream().flatMap(e -> e.getMigrations().stream()).map(DocumentMigration::getId).map(Optional::get).collect(Collectors.toList()),
+                contains("a", "b", "c", "d", "e"));
+    }
+
+    @Test
+    public void entityMatchesRenderedBody() throws IOException {
+        final MappedFileLoader mappedFileLoader = new MappedFileLoader(BulkConfig.builder().build(), this::apply, () -> 1, Runnable::run);
+
+        try (final FileChannel channel = FileChannel.open(writeFile(DOCUMENTS), StandardOpenOption.READ)) {
+            mappedFileLoader.load(new BulkFileMigration("file:products.ndjson", "products", "product", Optional.empty(), Optional.empty(), Optional.empty()), channel);
+        }
+
+        assertThat(bulkMigrations.size(), is(1));
+        try (final InputStream content = bulkMigrations.get(0).getEntity().getContent()) {
+            assertThat(new String(ByteStreams.toByteArray(content), Charsets.UTF_8), is(bulkMigrations.get(0).getBody()));
+        }
+        assertThat(bulkMigrations.get(0).getEntity().getContentLength(), is(bulkMigrations.get(0).getSizeInBytes()));
+    }
+
+    private CompletableFuture<Void> apply(final BulkMigration bulkMigration) {
+        bulkMigrations.add(bulkMigration);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private Path writeFile(final String content) throws IOException {
+        final Path path = temporaryFolder.newFile("products.ndjson").toPath();
+        Files.write(path, content.getBytes(Charsets.UTF_8));
+        return path;
+    }
+}
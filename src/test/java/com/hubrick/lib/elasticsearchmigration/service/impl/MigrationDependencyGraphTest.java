@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.model.migration.AliasMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.CreateIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.CreateOrUpdateIndexTemplateMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteIndexMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.UpdateMappingMigration;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class MigrationDependencyGraphTest {
+
+    @Test
+    public void independentIndicesRunConcurrently() {
+        final MigrationDependencyGraph graph = new MigrationDependencyGraph(ImmutableList.of(
+                new CreateIndexMigration("index_a", "{}"),
+                new CreateIndexMigration("index_b", "{}"),
+                new CreateOrUpdateIndexTemplateMigration("template_c", "{\"index_patterns\":[\"index_c*\"]}")
+        ));
+
+        assertThat(graph.getDependencies(0), is(empty()));
+        assertThat(graph.getDependencies(1), is(empty()));
+        assertThat(graph.getDependencies(2), is(empty()));
+    }
+
+    @Test
+    public void dependentMigrationsKeepTheirOrder() {
+        final MigrationDependencyGraph graph = new MigrationDependencyGraph(ImmutableList.of(
+                new CreateOrUpdateIndexTemplateMigration("template_a", "{\"index_patterns\":[\"index_a*\"]}"),
+                new CreateIndexMigration("index_a_1", "{}"),
+                new CreateIndexMigration("index_b", "{}"),
+                new UpdateMappingMigration(ImmutableSet.of("index_a_1"), "test", "{}"),
+                new IndexDocumentMigration("index_a_1", "test", Optional.of("1"), Optional.empty(), "{}"),
+                new IndexDocumentMigration("index_a_1", "test", Optional.of("2"), Optional.empty(), "{}"),
+                new DeleteDocumentMigration("index_a_1", "test", "1")
+        ));
+
+        assertThat(getDependencyIndices(graph, 1), contains(0));
+        assertThat(getDependencyIndices(graph, 2), is(empty()));
+        // The dependency on the template is implied by the dependency on the index creation
+        assertThat(getDependencyIndices(graph, 3), contains(1));
+        assertThat(getDependencyIndices(graph, 4), contains(3));
+        assertThat(getDependencyIndices(graph, 5), contains(3));
+        assertThat(getDependencyIndices(graph, 6), contains(4));
+    }
+
+    @Test
+    public void aliasChangesAreOrderedByTheirIndices() {
+        final MigrationDependencyGraph graph = new MigrationDependencyGraph(ImmutableList.of(
+                new CreateIndexMigration("index_a_v2", "{}"),
+                new CreateIndexMigration("index_b", "{}"),
+                new AliasMigration("{\"actions\":[{\"add\":{\"index\":\"index_a_v2\",\"alias\":\"index_a\"}},{\"remove_index\":{\"index\":\"index_a_v1\"}}]}"),
+                new IndexDocumentMigration("index_a", "test", Optional.of("1"), Optional.empty(), "{}")
+        ));
+
+        assertThat(getDependencyIndices(graph, 2), contains(0));
+        assertThat(getDependencyIndices(graph, 3), contains(2));
+    }
+
+    @Test
+    public void aliasesOfNewIndicesAreOrderedByTheirIndices() {
+        final MigrationDependencyGraph graph = new MigrationDependencyGraph(ImmutableList.of(
+                new CreateOrUpdateIndexTemplateMigration("template_b", "{\"index_patterns\":[\"index_b_*\"],\"aliases\":{\"index_b\":{}}}"),
+                new CreateIndexMigration("index_a_v1", "{\"aliases\":{\"index_a\":{}}}"),
+                new IndexDocumentMigration("index_a", "test", Optional.of("1"), Optional.empty(), "{}"),
+                new IndexDocumentMigration("index_b", "test", Optional.of("1"), Optional.empty(), "{}"),
+                new IndexDocumentMigration("index_c", "test", Optional.of("1"), Optional.empty(), "{}")
+        ));
+
+        assertThat(getDependencyIndices(graph, 2), contains(1));
+        assertThat(getDependencyIndices(graph, 3), contains(0));
+        assertThat(getDependencyIndices(graph, 4), is(empty()));
+    }
+
+    @Test
+    public void onlyConflictingPredecessorsBecomeDependencies() {
+        final List<Migration> migrations = new ArrayList<>();
+        migrations.add(new CreateIndexMigration("index_a", "{}"));
+        IntStream.range(0, 1000).forEach(i -> migrations.add(new IndexDocumentMigration("index_a", "test", Optional.of(String.valueOf(i)), Optional.empty(), "{}")));
+        migrations.add(new DeleteDocumentMigration("index_a", "test", "500"));
+        migrations.add(new AliasMigration("{\"actions\":[]}"));
+        migrations.add(new DeleteIndexMigration("index_a"));
+        final MigrationDependencyGraph graph = new MigrationDependencyGraph(migrations);
+
+        assertThat(getDependencyIndices(graph, 1), contains(0));
+        assertThat(getDependencyIndices(graph, 1000), contains(0));
+        assertThat(getDependencyIndices(graph, 1001), contains(501));
+        // Without any names the alias change is ordered against everything, its dependencies are the changes nothing depends on yet
+        assertThat(getDependencyIndices(graph, 1002).size(), is(1000));
+        assertThat(getDependencyIndices(graph, 1002), not(hasItem(501)));
+        assertThat(getDependencyIndices(graph, 1003), contains(1002));
+    }
+
+    @Test
+    public void wildcardOverlap() {
+        assertThat(MigrationResource.overlaps("logs-*", "logs-2018"), is(true));
+        assertThat(MigrationResource.overlaps("logs-*", "*-2018"), is(true));
+        assertThat(MigrationResource.overlaps("logs-*", "metrics-*"), is(false));
+        assertThat(MigrationResource.overlaps("*-a", "*-b"), is(false));
+        assertThat(MigrationResource.overlaps("index", "index"), is(true));
+        assertThat(MigrationResource.overlaps("index", "index_2"), is(false));
+    }
+
+    private static List<Integer> getDependencyIndices(final MigrationDependencyGraph graph, final int index) {
+        return graph.getDependencies(index).stream().map(MigrationDependencyGraph.Dependency::getIndex).collect(Collectors.toList());
+    }
+}
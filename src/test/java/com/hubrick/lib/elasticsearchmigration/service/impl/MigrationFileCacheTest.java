@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.model.input.ChecksumedMigrationFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class MigrationFileCacheTest {
+
+    private static final String CHECKSUM = "add4031e5df0c7b8426426019b6c1b7031443661da4639c41db583d7ecac3336";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void putAndGet() throws IOException {
+        final MigrationFileCache migrationFileCache = new MigrationFileCache(temporaryFolder.getRoot().toPath(), "1.1.0");
+        final ChecksumedMigrationFile checksumedMigrationFile = createChecksumedMigrationFile();
+
+        assertThat(migrationFileCache.get(CHECKSUM), is(Optional.empty()));
+        migrationFileCache.put(CHECKSUM, checksumedMigrationFile);
+        assertThat(migrationFileCache.get(CHECKSUM), is(Optional.of(checksumedMigrationFile)));
+    }
+
+    @Test
+    public void otherLibraryVersionMisses() throws IOException {
+        new MigrationFileCache(temporaryFolder.getRoot().toPath(), "1.1.0").put(CHECKSUM, createChecksumedMigrationFile());
+
+        assertThat(new MigrationFileCache(temporaryFolder.getRoot().toPath(), "1.2.0").get(CHECKSUM), is(Optional.empty()));
+    }
+
+    @Test
+    public void corruptEntryMisses() throws IOException {
+        final Path versionDirectory = temporaryFolder.newFolder("1.1.0").toPath();
+        Files.write(versionDirectory.resolve(CHECKSUM + ".smile"), "garbage".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(new MigrationFileCache(temporaryFolder.getRoot().toPath(), "1.1.0").get(CHECKSUM), is(Optional.empty()));
+    }
+
+    private ChecksumedMigrationFile createChecksumedMigrationFile() {
+        return new YamlParser().parse("com/hubrick/lib/elasticsearchmigration/service/impl/V1__migration_one.yaml");
+    }
+}
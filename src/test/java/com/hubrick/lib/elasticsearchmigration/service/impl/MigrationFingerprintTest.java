@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationMeta;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class MigrationFingerprintTest {
+
+    @Test
+    public void fingerprintIgnoresChecksumOrder() {
+        final String first = DefaultMigrationClient.computeFingerprint(ImmutableList.of(
+                new MigrationMeta(ImmutableSet.of("aaaa", "bbbb"), 1, "first")
+        ));
+        final String second = DefaultMigrationClient.computeFingerprint(ImmutableList.of(
+                new MigrationMeta(ImmutableSet.of("bbbb", "aaaa"), 1, "first")
+        ));
+
+        assertThat(first, is(second));
+    }
+
+    @Test
+    public void fingerprintChangesWithAnyMigrationMeta() {
+        final String fingerprint = DefaultMigrationClient.computeFingerprint(ImmutableList.of(
+                new MigrationMeta(ImmutableSet.of("aaaa"), 1, "first"),
+                new MigrationMeta(ImmutableSet.of("bbbb"), 2, "second")
+        ));
+
+        assertThat(DefaultMigrationClient.computeFingerprint(ImmutableList.of(
+                new MigrationMeta(ImmutableSet.of("aaaa"), 1, "first")
+        )), is(not(fingerprint)));
+        assertThat(DefaultMigrationClient.computeFingerprint(ImmutableList.of(
+                new MigrationMeta(ImmutableSet.of("aaaa"), 1, "first"),
+                new MigrationMeta(ImmutableSet.of("bbbb"), 3, "second")
+        )), is(not(fingerprint)));
+        assertThat(DefaultMigrationClient.computeFingerprint(ImmutableList.of(
+                new MigrationMeta(ImmutableSet.of("aaaa"), 1, "first"),
+                new MigrationMeta(ImmutableSet.of("bbbb"), 2, "renamed")
+        )), is(not(fingerprint)));
+        assertThat(DefaultMigrationClient.computeFingerprint(ImmutableList.of(
+                new MigrationMeta(ImmutableSet.of("aaaa"), 1, "first"),
+                new MigrationMeta(ImmutableSet.of("cccc"), 2, "second")
+        )), is(not(fingerprint)));
+    }
+}
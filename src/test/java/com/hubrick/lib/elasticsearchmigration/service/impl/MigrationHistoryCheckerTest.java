@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.exception.PreviousMigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.es.MigrationEntry;
+import com.hubrick.lib.elasticsearchmigration.model.es.State;
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationMeta;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class MigrationHistoryCheckerTest {
+
+    private static final List<MigrationMeta> MIGRATION_METAS = ImmutableList.of(
+            new MigrationMeta(ImmutableSet.of("aaaa"), 1, "first"),
+            new MigrationMeta(ImmutableSet.of("bbbb"), 2, "second"),
+            new MigrationMeta(ImmutableSet.of("cccc"), 10, "third")
+    );
+
+    @Test
+    public void historyInAnyOrderIsAccepted() {
+        final MigrationHistoryChecker checker = new MigrationHistoryChecker(false, MIGRATION_METAS);
+        checker.accept(entry(10, "third", "cccc", State.SUCCESS));
+        checker.accept(entry(1, "first", "aaaa", State.SUCCESS));
+        checker.accept(entry(2, "second", "bbbb", State.SUCCESS));
+
+        assertThat(checker.finish(), containsInAnyOrder(1, 2, 10));
+    }
+
+    @Test
+    public void prefixOfLocalMigrationSetIsAccepted() {
+        final MigrationHistoryChecker checker = new MigrationHistoryChecker(false, MIGRATION_METAS);
+        checker.accept(entry(2, "second", "bbbb", State.SUCCESS));
+        checker.accept(entry(1, "first", "aaaa", State.SUCCESS));
+
+        assertThat(checker.finish(), containsInAnyOrder(1, 2));
+    }
+
+    @Test(expected = MigrationFailedException.class)
+    public void versionGapIsRejected() {
+        final MigrationHistoryChecker checker = new MigrationHistoryChecker(false, MIGRATION_METAS);
+        checker.accept(entry(1, "first", "aaaa", State.SUCCESS));
+        checker.accept(entry(10, "third", "cccc", State.SUCCESS));
+
+        checker.finish();
+    }
+
+    @Test(expected = MigrationFailedException.class)
+    public void unknownVersionIsRejected() {
+        final MigrationHistoryChecker checker = new MigrationHistoryChecker(true, MIGRATION_METAS);
+        checker.accept(entry(1, "first", "aaaa", State.SUCCESS));
+        checker.accept(entry(3, "other", "dddd", State.FAILURE));
+
+        checker.finish();
+    }
+
+    @Test(expected = MigrationFailedException.class)
+    public void checksumMismatchIsRejected() {
+        new MigrationHistoryChecker(false, MIGRATION_METAS).accept(entry(2, "second", "ffff", State.SUCCESS));
+    }
+
+    @Test(expected = MigrationFailedException.class)
+    public void nameMismatchIsRejected() {
+        new MigrationHistoryChecker(false, MIGRATION_METAS).accept(entry(2, "renamed", "bbbb", State.SUCCESS));
+    }
+
+    @Test(expected = PreviousMigrationFailedException.class)
+    public void previousFailureIsRejected() {
+        new MigrationHistoryChecker(false, MIGRATION_METAS).accept(entry(1, "first", "aaaa", State.FAILURE));
+    }
+
+    private static MigrationEntry entry(final int version, final String name, final String checksum, final State state) {
+        return new MigrationEntry("test", version, name, ImmutableSet.of(checksum), state, null, Instant.now());
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationLockedException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hubrick.lib.elasticsearchmigration.service.impl.FakeElasticsearch.respond;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class MigrationLockTest {
+
+    private static final String LOCK_URL = "/elasticsearch_migration_lock/lock/test-global";
+    private static final String FOREIGN_LOCK = "{\"_version\":%d,\"_source\":{\"owner\":\"other\",\"created\":\"2018-01-01T00:00:00.000Z\",\"heartbeat\":\"2018-01-01T00:00:00.000Z\"}}";
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    private FakeElasticsearch elasticsearch;
+
+    @AfterClass
+    public static void tearDownScheduler() {
+        scheduler.shutdown();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (elasticsearch != null) {
+            elasticsearch.close();
+        }
+    }
+
+    @Test
+    public void acquireOnEmptyIndex() {
+        elasticsearch = new FakeElasticsearch(request -> respond(201, "{\"_version\":1}"));
+
+        try (final MigrationLock.Lease lease = createLock(60000).acquire()) {
+            lease.verify();
+        }
+
+        final FakeElasticsearch.Request claim = elasticsearch.getRequests().get(0);
+        assertThat(claim.is("PUT", LOCK_URL), is(true));
+        assertThat(claim.getParameters().get("op_type"), is("create"));
+    }
+
+    @Test
+    public void waitForLiveLease() {
+        final AtomicInteger claims = new AtomicInteger();
+        final AtomicInteger heartbeats = new AtomicInteger();
+        elasticsearch = new FakeElasticsearch(request -> {
+            if (request.getMethod().equals("GET")) {
+                // The holder keeps renewing its lease
+                return respond(200, String.format(FOREIGN_LOCK, heartbeats.incrementAndGet()));
+            } else if ("create".equals(request.getParameters().get("op_type")) && claims.incrementAndGet() <= 3) {
+                return respond(409, "{}");
+            }
+            return respond(201, "{\"_version\":1}");
+        });
+
+        try (final MigrationLock.Lease lease = createLock(60000).acquire()) {
+            lease.verify();
+        }
+
+        assertThat(claims.get(), is(4));
+        assertThat(elasticsearch.getRequests(e -> e.is("PUT", LOCK_URL) && e.getParameters().containsKey("version")).isEmpty(), is(true));
+    }
+
+    @Test
+    public void takeOverExpiredLease() {
+        elasticsearch = new FakeElasticsearch(request -> {
+            if (request.getMethod().equals("GET")) {
+                return respond(200, String.format(FOREIGN_LOCK, 7));
+            } else if ("create".equals(request.getParameters().get("op_type"))) {
+                return respond(409, "{}");
+            } else if ("7".equals(request.getParameters().get("version"))) {
+                return respond(200, "{\"_version\":8}");
+            }
+            return respond(409, "{}");
+        });
+
+        try (final MigrationLock.Lease lease = createLock(100).acquire()) {
+            lease.verify();
+        }
+
+        assertThat(elasticsearch.getRequests(e -> e.is("PUT", LOCK_URL) && "7".equals(e.getParameters().get("version"))).size(), is(1));
+    }
+
+    @Test
+    public void heartbeatConflictLosesLease() throws InterruptedException {
+        elasticsearch = new FakeElasticsearch(request -> request.getParameters().containsKey("version") ? respond(409, "{}") : respond(201, "{\"_version\":1}"));
+
+        try (final MigrationLock.Lease lease = createLock(30).acquire()) {
+            awaitLoss(lease);
+        }
+
+        // A lost lock isn't deleted, it belongs to the other instance
+        assertThat(elasticsearch.getRequests(e -> e.getMethod().equals("DELETE")).isEmpty(), is(true));
+    }
+
+    @Test
+    public void failingHeartbeatsExpireLease() throws InterruptedException {
+        elasticsearch = new FakeElasticsearch(request -> request.getParameters().containsKey("version") ? respond(500, "{}") : respond(201, "{\"_version\":1}"));
+
+        try (final MigrationLock.Lease lease = createLock(30).acquire()) {
+            final MigrationLockedException exception = awaitLoss(lease);
+            assertThat(exception.getMessage(), containsString("was not renewed"));
+        }
+    }
+
+    @Test
+    public void releaseOnClose() {
+        elasticsearch = new FakeElasticsearch(request -> respond(request.getMethod().equals("DELETE") ? 200 : 201, "{\"_version\":1}"));
+
+        createLock(60000).acquire().close();
+
+        final FakeElasticsearch.Request release = elasticsearch.getRequests().get(1);
+        assertThat(release.is("DELETE", LOCK_URL), is(true));
+        assertThat(release.getParameters().get("version"), is("1"));
+    }
+
+    @Test
+    public void failedReleaseIsNotThrown() {
+        elasticsearch = new FakeElasticsearch(request -> respond(request.getMethod().equals("DELETE") ? 400 : 201, "{\"_version\":1}"));
+
+        createLock(60000).acquire().close();
+
+        assertThat(elasticsearch.getRequests(e -> e.getMethod().equals("DELETE")).size(), is(1));
+    }
+
+    private MigrationLock createLock(final long leaseInMillis) {
+        return new MigrationLock(
+                elasticsearch.getRestClient(),
+                DefaultMigrationClient.createObjectMapper(),
+                scheduler,
+                new RequestRetrier(0, 10, scheduler),
+                "test",
+                leaseInMillis,
+                10,
+                3
+        );
+    }
+
+    private static MigrationLockedException awaitLoss(final MigrationLock.Lease lease) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            try {
+                lease.verify();
+            } catch (MigrationLockedException e) {
+                return e;
+            }
+            Thread.sleep(5);
+        }
+        fail("Expected the lease to be lost");
+        return null;
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntSupplier;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the executor on a separate thread and completes the requests it dispatched one by one.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class PipelinedRequestExecutorTest {
+
+    private static final long NO_DISPATCH_WAIT_IN_MILLIS = 100;
+
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final BlockingQueue<Dispatch> dispatches = new LinkedBlockingQueue<>();
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void windowLimitsRequestsInFlight() throws Exception {
+        final CompletableFuture<Void> run = execute(3, documents(5));
+
+        final Dispatch first = nextDispatch();
+        nextDispatch();
+        nextDispatch();
+        assertNoDispatch();
+
+        first.getFuture().complete(null);
+        final Dispatch fourth = nextDispatch();
+        assertThat(getId(fourth), is("3"));
+        assertNoDispatch();
+
+        completeAll(run);
+    }
+
+    @Test
+    public void readyMigrationsAreSentInChangesetOrder() throws Exception {
+        final CompletableFuture<Void> run = execute(2, documents(4));
+
+        final Dispatch first = nextDispatch();
+        final Dispatch second = nextDispatch();
+        assertThat(getId(first), is("0"));
+        assertThat(getId(second), is("1"));
+
+        // Whichever request completes, the free slot goes to the next migration of the changeset
+        second.getFuture().complete(null);
+        assertThat(getId(nextDispatch()), is("2"));
+        first.getFuture().complete(null);
+        assertThat(getId(nextDispatch()), is("3"));
+
+        completeAll(run);
+    }
+
+    @Test
+    public void dependentMigrationWaitsForItsDependency() throws Exception {
+        final CompletableFuture<Void> run = execute(3, ImmutableList.of(document("1"), document("2"), document("1")));
+
+        final Dispatch first = nextDispatch();
+        final Dispatch second = nextDispatch();
+        assertNoDispatch();
+
+        // The other document doesn't release the second write of document 1
+        second.getFuture().complete(null);
+        assertNoDispatch();
+
+        first.getFuture().complete(null);
+        assertThat(getId(nextDispatch()), is("1"));
+
+        completeAll(run);
+    }
+
+    @Test
+    public void failureStopsDispatchingAndAwaitsRequestsInFlight() throws Exception {
+        final CompletableFuture<Void> run = execute(2, documents(5));
+
+        final Dispatch first = nextDispatch();
+        final Dispatch second = nextDispatch();
+        first.getFuture().completeExceptionally(new MigrationFailedException("failed"));
+        assertNoDispatch();
+
+        // The request on the wire is awaited before the failure is reported
+        Thread.sleep(NO_DISPATCH_WAIT_IN_MILLIS);
+        assertThat(run.isDone(), is(false));
+        second.getFuture().complete(null);
+
+        assertFailure(run, "failed");
+        assertThat(dispatches.isEmpty(), is(true));
+    }
+
+    @Test
+    public void sequentialExecutionStopsAtTheFirstFailure() throws Exception {
+        final CompletableFuture<Void> run = execute(1, documents(3));
+
+        final Dispatch first = nextDispatch();
+        assertNoDispatch();
+        first.getFuture().complete(null);
+
+        final Dispatch second = nextDispatch();
+        assertThat(getId(second), is("1"));
+        second.getFuture().completeExceptionally(new MigrationFailedException("failed"));
+
+        assertFailure(run, "failed");
+        assertThat(dispatches.isEmpty(), is(true));
+    }
+
+    @Test
+    public void bulkWindowOnlyLimitsBulks() throws Exception {
+        final CompletableFuture<Void> run = execute(3, () -> 1, ImmutableList.of(
+                new BulkMigration(ImmutableList.<DocumentMigration>of(document("0"), document("1"))),
+                new BulkMigration(ImmutableList.<DocumentMigration>of(document("2"), document("3"))),
+                document("4"),
+                document("5")
+        ));
+
+        final Dispatch first = nextDispatch();
+        assertThat(first.getMigration(), instanceOf(BulkMigration.class));
+        // The second bulk is held back, the documents behind it aren't
+        assertThat(getId(nextDispatch()), is("4"));
+        assertThat(getId(nextDispatch()), is("5"));
+        assertNoDispatch();
+
+        first.getFuture().complete(null);
+        assertThat(nextDispatch().getMigration(), instanceOf(BulkMigration.class));
+
+        completeAll(run);
+    }
+
+    private CompletableFuture<Void> execute(final int maxInFlightRequests, final List<Migration> migrations) {
+        return execute(maxInFlightRequests, () -> maxInFlightRequests, migrations);
+    }
+
+    private CompletableFuture<Void> execute(final int maxInFlightRequests, final IntSupplier maxInFlightBulkRequests, final List<Migration> migrations) {
+        final PipelinedRequestExecutor executor = new PipelinedRequestExecutor(maxInFlightRequests, maxInFlightBulkRequests, migration -> {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            dispatches.add(new Dispatch(migration, future));
+            return future;
+        });
+        return CompletableFuture.runAsync(() -> executor.execute(migrations), executorService);
+    }
+
+    private Dispatch nextDispatch() throws InterruptedException {
+        final Dispatch dispatch = dispatches.poll(10, TimeUnit.SECONDS);
+        if (dispatch == null) {
+            fail("Expected a request to be dispatched");
+        }
+        return dispatch;
+    }
+
+    private void assertNoDispatch() throws InterruptedException {
+        assertThat(dispatches.poll(NO_DISPATCH_WAIT_IN_MILLIS, TimeUnit.MILLISECONDS), is(nullValue()));
+    }
+
+    /**
+     * Completes the requests as they are dispatched until the run is done.
+     */
+    private void completeAll(final CompletableFuture<Void> run) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!run.isDone() && System.nanoTime() < deadline) {
+            final Dispatch dispatch = dispatches.poll(10, TimeUnit.MILLISECONDS);
+            if (dispatch != null) {
+                dispatch.getFuture().complete(null);
+            }
+        }
+        run.get(0, TimeUnit.SECONDS);
+    }
+
+    private static void assertFailure(final CompletableFuture<Void> run, final String message) throws InterruptedException, TimeoutException {
+        try {
+            run.get(10, TimeUnit.SECONDS);
+            fail("Expected the execution to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(MigrationFailedException.class));
+            assertThat(e.getCause().getMessage(), is(message));
+        }
+    }
+
+    private static List<Migration> documents(final int count) {
+        final ImmutableList.Builder<Migration> migrations = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            migrations.add(document(String.valueOf(i)));
+        }
+        return migrations.build();
+    }
+
+    private static IndexDocumentMigration document(final String id) {
+        return new IndexDocumentMigration("index", "test", Optional.of(id), Optional.empty(), "{}");
+    }
+
+    private static String getId(final Dispatch dispatch) {
+        return ((IndexDocumentMigration) dispatch.getMigration()).getId().get();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Dispatch {
+
+        private final Migration migration;
+        private final CompletableFuture<Void> future;
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationSet;
+import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationSetEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class PrecompiledMigrationSetProviderTest {
+
+    private static final String BASE_PACKAGE = "com.hubrick.lib.elasticsearchmigration.service.impl";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void getMigrationSetFromPrecompiledChangesets() throws IOException {
+        final YamlDirectoryMigrationSetProvider yamlDirectoryMigrationSetProvider = new YamlDirectoryMigrationSetProvider();
+        final Path target = temporaryFolder.getRoot().toPath().resolve(PrecompiledMigrationSetProvider.getResourceName(BASE_PACKAGE));
+        Files.createDirectories(target.getParent());
+        try (final OutputStream outputStream = Files.newOutputStream(target)) {
+            PrecompiledMigrationSetProvider.write(yamlDirectoryMigrationSetProvider.getMigrationFiles(BASE_PACKAGE), outputStream);
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        final ClassLoader previousContextClassLoader = currentThread.getContextClassLoader();
+        try (final URLClassLoader classLoader = new URLClassLoader(new URL[]{temporaryFolder.getRoot().toURI().toURL()}, previousContextClassLoader)) {
+            currentThread.setContextClassLoader(classLoader);
+            final MigrationSet migrationSet = new PrecompiledMigrationSetProvider(basePackage -> {
+                throw new AssertionError("Fallback must not be used");
+            }).getMigrationSet(BASE_PACKAGE);
+            final MigrationSet expectedMigrationSet = yamlDirectoryMigrationSetProvider.getMigrationSet(BASE_PACKAGE);
+
+            assertThat(migrationSet.getMigrations().stream().map(e -> e.getMigrationMeta().getName()).collect(Collectors.toList()), contains(
+                    "migration_one",
+                    "migration_two",
+                    "migration_three"
+            ));
+            assertThat(migrationSet.getMigrations().stream().map(e -> e.getMigrationMeta().getSha256Checksums()).collect(Collectors.toList()),
+                    is(expectedMigrationSet.getMigrations().stream().map(e -> e.getMigrationMeta().getSha256Checksums()).collect(Collectors.toList())));
+            assertThat(migrationSet.getMigrations().stream().map(MigrationSetEntry::getMigration).collect(Collectors.toList()),
+                    is(expectedMigrationSet.getMigrations().stream().map(MigrationSetEntry::getMigration).collect(Collectors.toList())));
+        } finally {
+            currentThread.setContextClassLoader(previousContextClassLoader);
+        }
+    }
+
+    @Test
+    public void fallbackWithoutPrecompiledChangesets() {
+        final MigrationSet fallbackMigrationSet = new MigrationSet(Collections.emptySet());
+
+        assertThat(new PrecompiledMigrationSetProvider(basePackage -> fallbackMigrationSet).getMigrationSet("does.not.exist"), is(fallbackMigrationSet));
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.base.Strings;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.entity.EntityAsyncContentProducer;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Compares sending request bodies through {@link Migration#getEntity()} with the previous {@link StringEntity}, which the async
+ * client copies through a stream into its own buffer. Every benchmark writes the whole body into an encoder which accepts
+ * {@value #WRITE_SIZE} bytes per write like a socket would. Run {@link #main(String[])} from the test classpath, the gc profiler
+ * reports the allocation per operation ({@code gc.alloc.rate.norm}) next to the timings.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestEntityBenchmark {
+
+    private static final int WRITE_SIZE = 65536;
+    private static final int BULK_SIZE = 100;
+
+    @Param({"1024", "262144"})
+    public int documentSize;
+
+    private IndexDocumentMigration documentMigration;
+    private List<DocumentMigration> bulkItems;
+
+    @Setup
+    public void setUp() {
+        documentMigration = createDocument("1");
+        bulkItems = IntStream.range(0, BULK_SIZE).mapToObj(i -> createDocument(String.valueOf(i))).collect(Collectors.toList());
+    }
+
+    private IndexDocumentMigration createDocument(final String id) {
+        return new IndexDocumentMigration("test_index", "test", Optional.of(id), Optional.empty(), "{\"content\":\"" + Strings.repeat("x", documentSize) + "\"}");
+    }
+
+    @Benchmark
+    public long documentStringEntity() throws IOException {
+        return write(new EntityAsyncContentProducer(new StringEntity(documentMigration.getBody(), ContentType.APPLICATION_JSON)));
+    }
+
+    @Benchmark
+    public long documentEntity() throws IOException {
+        return write(documentMigration.getEntity());
+    }
+
+    @Benchmark
+    public long bulkStringEntity() throws IOException {
+        return write(new EntityAsyncContentProducer(new StringEntity(new BulkMigration(bulkItems).getBody(), ContentType.APPLICATION_JSON)));
+    }
+
+    @Benchmark
+    public long bulkEntity() throws IOException {
+        return write(new BulkMigration(bulkItems).getEntity());
+    }
+
+    private long write(final HttpEntity entity) throws IOException {
+        return write((HttpAsyncContentProducer) entity);
+    }
+
+    private long write(final HttpAsyncContentProducer producer) throws IOException {
+        final CountingEncoder encoder = new CountingEncoder();
+        while (!encoder.isCompleted()) {
+            producer.produceContent(encoder, null);
+        }
+        producer.close();
+        return encoder.count;
+    }
+
+    private static class CountingEncoder implements ContentEncoder {
+
+        private long count;
+        private boolean completed;
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int written = Math.min(src.remaining(), WRITE_SIZE);
+            src.position(src.position() + written);
+            count += written;
+            return written;
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return completed;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RequestEntityBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
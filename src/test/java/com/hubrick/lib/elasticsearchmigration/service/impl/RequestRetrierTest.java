@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import com.hubrick.lib.elasticsearchmigration.model.migration.BulkMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.OpType;
+import com.hubrick.lib.elasticsearchmigration.model.migration.UpdateDocumentMigration;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class RequestRetrierTest {
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    @AfterClass
+    public static void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void connectionFailuresAreRetried() {
+        final RequestRetrier requestRetrier = new RequestRetrier(3, 1, scheduler);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final String result = requestRetrier.execute("GET /test", attempt -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new MigrationFailedException("IO Exception during migration", new ConnectException("Connection refused"));
+            }
+            return "done";
+        });
+
+        assertThat(result, is("done"));
+        assertThat(attempts.get(), is(3));
+        assertThat(requestRetrier.getRetryCounts(), is(ImmutableMap.of("GET /test", 2)));
+    }
+
+    @Test
+    public void fatalFailuresAreNotRetried() {
+        final RequestRetrier requestRetrier = new RequestRetrier(3, 1, scheduler);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            requestRetrier.execute("PUT /test", attempt -> {
+                attempts.incrementAndGet();
+                throw new MigrationFailedException("Local migration set smaller then one found in ES");
+            });
+            fail("Expected MigrationFailedException");
+        } catch (MigrationFailedException e) {
+            assertThat(attempts.get(), is(1));
+            assertThat(requestRetrier.getRetryCounts().isEmpty(), is(true));
+        }
+    }
+
+    @Test
+    public void asyncRetriesStopAfterRetryCount() {
+        final RequestRetrier requestRetrier = new RequestRetrier(2, 1, scheduler);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final CompletableFuture<Void> result = requestRetrier.executeAsync("POST /_bulk", attempt -> {
+            attempts.incrementAndGet();
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new MigrationFailedException("IO Exception during migration", new ConnectException("Connection reset")));
+            return future;
+        });
+
+        try {
+            result.join();
+            fail("Expected MigrationFailedException");
+        } catch (CompletionException e) {
+            assertThat(e.getCause(), instanceOf(MigrationFailedException.class));
+            assertThat(attempts.get(), is(3));
+        }
+    }
+
+    @Test
+    public void nonIdempotentMigrationsAreNotRetriedAfterConnectionFailures() {
+        final RequestRetrier requestRetrier = new RequestRetrier(3, 1, scheduler);
+        final IndexDocumentMigration migration = new IndexDocumentMigration("test_index", "test", Optional.empty(), Optional.empty(), "{}");
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            requestRetrier.execute("PUT /test_index/test/", RequestRetrier.getRetryable(migration), attempt -> {
+                attempts.incrementAndGet();
+                throw new MigrationFailedException("IO Exception during migration", new SocketTimeoutException("Read timed out"));
+            });
+            fail("Expected MigrationFailedException");
+        } catch (MigrationFailedException e) {
+            assertThat(attempts.get(), is(1));
+        }
+    }
+
+    @Test
+    public void idempotentMigrations() {
+        assertThat(new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.empty(), "{}").isIdempotent(), is(true));
+        assertThat(new IndexDocumentMigration("test_index", "test", Optional.empty(), Optional.empty(), "{}").isIdempotent(), is(false));
+        assertThat(new UpdateDocumentMigration("test_index", "test", "1", "{\"script\":\"ctx._source.counter++\"}").isIdempotent(), is(false));
+        assertThat(new DeleteDocumentMigration("test_index", "test", "1").isIdempotent(), is(true));
+        assertThat(new BulkMigration(ImmutableList.of(
+                new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.of(OpType.CREATE), "{}"),
+                new DeleteDocumentMigration("test_index", "test", "2")
+        )).isIdempotent(), is(true));
+        assertThat(new BulkMigration(ImmutableList.of(
+                new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.empty(), "{}"),
+                new IndexDocumentMigration("test_index", "test", Optional.empty(), Optional.empty(), "{}")
+        )).isIdempotent(), is(false));
+        assertThat(new BulkMigration(ImmutableList.of(
+                new IndexDocumentMigration("test_index", "test", Optional.of("1"), Optional.empty(), "{}"),
+                new UpdateDocumentMigration("test_index", "test", "1", "{\"doc\":{}}")
+        )).isIdempotent(), is(false));
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        for (int retry = 0; retry < 40; retry++) {
+            final long backoffInMillis = RequestRetrier.getBackoffInMillis(retry, 10000);
+            assertThat(backoffInMillis, lessThanOrEqualTo(10000L));
+            assertThat(backoffInMillis, greaterThanOrEqualTo(Math.min(10000L, RequestRetrier.INITIAL_BACKOFF_IN_MILLIS << Math.min(retry, 16)) / 2));
+        }
+    }
+}
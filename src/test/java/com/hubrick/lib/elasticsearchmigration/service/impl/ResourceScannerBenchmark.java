@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.service.ResourceScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Pattern;
+
+/**
+ * Compares changeset discovery with {@link ClasspathResourceScanner} and {@link ReflectionsResourceScanner} on a jar with
+ * 100k entries of which only a few are changesets. Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceScannerBenchmark {
+
+    private static final Pattern MIGRATION_FILE_PATTERN = Pattern.compile("^V([0-9]+)__([a-zA-Z0-9]{1}[a-zA-Z0-9_-]*)\\.yaml$");
+    private static final String BASE_PACKAGE = "es.migration";
+    private static final int ENTRIES = 100_000;
+    private static final int CHANGESETS = 50;
+
+    private Path jar;
+    private URLClassLoader classLoader;
+    private ClasspathResourceScanner classpathResourceScanner;
+    private ReflectionsResourceScanner reflectionsResourceScanner;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        jar = Files.createTempFile("resource-scanner-benchmark", ".jar");
+        try (final JarOutputStream jarOutputStream = new JarOutputStream(Files.newOutputStream(jar))) {
+            jarOutputStream.putNextEntry(new JarEntry("es/"));
+            jarOutputStream.putNextEntry(new JarEntry("es/migration/"));
+            for (int i = 1; i <= CHANGESETS; i++) {
+                jarOutputStream.putNextEntry(new JarEntry("es/migration/V" + i + "__changeset_" + i + ".yaml"));
+                jarOutputStream.write("migrations: []".getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < ENTRIES - CHANGESETS; i++) {
+                jarOutputStream.putNextEntry(new JarEntry("com/example/package" + (i % 1000) + "/Class" + i + ".class"));
+            }
+        }
+
+        classLoader = new URLClassLoader(new URL[]{jar.toUri().toURL()}, null);
+        classpathResourceScanner = new ClasspathResourceScanner((basePackage, pattern) -> {
+            throw new IllegalStateException("Fallback must not be used");
+        });
+        reflectionsResourceScanner = new ReflectionsResourceScanner();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        classLoader.close();
+        Files.deleteIfExists(jar);
+    }
+
+    @Benchmark
+    public Set<String> classpathScanner() {
+        return scan(classpathResourceScanner);
+    }
+
+    @Benchmark
+    public Set<String> reflectionsScanner() {
+        return scan(reflectionsResourceScanner);
+    }
+
+    private Set<String> scan(final ResourceScanner resourceScanner) {
+        // Both scanners resolve the classpath through the context class loader of the calling thread
+        final Thread currentThread = Thread.currentThread();
+        final ClassLoader previousContextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(classLoader);
+        try {
+            return resourceScanner.getResources(BASE_PACKAGE, MIGRATION_FILE_PATTERN);
+        } finally {
+            currentThread.setContextClassLoader(previousContextClassLoader);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ResourceScannerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
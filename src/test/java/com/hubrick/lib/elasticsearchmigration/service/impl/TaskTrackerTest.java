@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hubrick.lib.elasticsearchmigration.exception.MigrationFailedException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hubrick.lib.elasticsearchmigration.service.impl.FakeElasticsearch.respond;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class TaskTrackerTest {
+
+    private static final String TASK_URL = "/_tasks/node:42";
+    private static final String RUNNING = "{\"completed\":false,\"task\":{\"status\":{\"total\":10,\"created\":3}}}";
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    private FakeElasticsearch elasticsearch;
+
+    @AfterClass
+    public static void tearDownScheduler() {
+        scheduler.shutdown();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (elasticsearch != null) {
+            elasticsearch.close();
+        }
+    }
+
+    @Test
+    public void pollUntilCompleted() throws InterruptedException, ExecutionException, TimeoutException {
+        final AtomicInteger polls = new AtomicInteger();
+        elasticsearch = new FakeElasticsearch(request -> polls.incrementAndGet() < 3 ?
+                respond(200, RUNNING) :
+                respond(200, "{\"completed\":true,\"response\":{\"took\":5,\"created\":10,\"timed_out\":false,\"failures\":[]}}"));
+
+        final JsonNode response = createTracker(0).await("reindex", "node:42").get(10, TimeUnit.SECONDS);
+
+        assertThat(response.path("created").asInt(), is(10));
+        assertThat(elasticsearch.getRequests(e -> e.is("GET", TASK_URL)).size(), is(3));
+    }
+
+    @Test
+    public void taskErrorFailsTheFuture() throws InterruptedException, TimeoutException {
+        elasticsearch = new FakeElasticsearch(request -> respond(200, "{\"completed\":true,\"error\":{\"type\":\"search_phase_execution_exception\",\"reason\":\"all shards failed\"}}"));
+
+        final MigrationFailedException e = awaitFailure(createTracker(0));
+
+        assertThat(e.getMessage(), containsString("search_phase_execution_exception: all shards failed"));
+    }
+
+    @Test
+    public void documentFailuresAreReported() throws InterruptedException, TimeoutException {
+        elasticsearch = new FakeElasticsearch(request -> respond(200, "{\"completed\":true,\"response\":{\"timed_out\":false,\"failures\":[" +
+                "{\"index\":\"test_index\",\"id\":\"1\",\"cause\":{\"type\":\"mapper_parsing_exception\"}}," +
+                "{\"index\":\"test_index\",\"id\":\"2\",\"cause\":{\"type\":\"mapper_parsing_exception\"}}]}}"));
+
+        final MigrationFailedException e = awaitFailure(createTracker(0));
+
+        assertThat(e.getMessage(), containsString("completed with 2 failures"));
+        assertThat(e.getMessage(), containsString("mapper_parsing_exception"));
+    }
+
+    @Test
+    public void timeoutIsReported() throws InterruptedException, TimeoutException {
+        elasticsearch = new FakeElasticsearch(request -> respond(200, "{\"completed\":true,\"response\":{\"timed_out\":true,\"failures\":[]}}"));
+
+        final MigrationFailedException e = awaitFailure(createTracker(0));
+
+        assertThat(e.getMessage(), containsString("timed out"));
+    }
+
+    @Test
+    public void failedPollIsRetried() throws InterruptedException, ExecutionException, TimeoutException {
+        final AtomicInteger polls = new AtomicInteger();
+        elasticsearch = new FakeElasticsearch(request -> polls.incrementAndGet() == 1 ?
+                respond(503, "{\"error\":\"unavailable\"}") :
+                respond(200, "{\"completed\":true,\"response\":{\"took\":5,\"timed_out\":false,\"failures\":[]}}"));
+
+        createTracker(3).await("reindex", "node:42").get(10, TimeUnit.SECONDS);
+
+        assertThat(elasticsearch.getRequests(e -> e.is("GET", TASK_URL)).size(), is(2));
+    }
+
+    private TaskTracker createTracker(final int retryCount) {
+        return new TaskTracker(elasticsearch.getRestClient(), new ObjectMapper(), scheduler, new RequestRetrier(retryCount, 10, scheduler), 10);
+    }
+
+    private static MigrationFailedException awaitFailure(final TaskTracker taskTracker) throws InterruptedException, TimeoutException {
+        try {
+            taskTracker.await("reindex", "node:42").get(10, TimeUnit.SECONDS);
+            fail("Expected the task to fail");
+            return null;
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(MigrationFailedException.class));
+            return (MigrationFailedException) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.hubrick.lib.elasticsearchmigration.BulkConfig;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class ThroughputControllerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    @Test
+    public void batchSizeGrowsBeforeConcurrency() {
+        final ThroughputController throughputController = new ThroughputController(BulkConfig.builder().maxActions(100).targetLatencyInMillis(1000).build(), 4);
+        assertThat(throughputController.getBatchSize(), is(10));
+        assertThat(throughputController.getConcurrency(), is(1));
+
+        for (int i = 0; i < 18; i++) {
+            throughputController.onResponse(FAST, 0);
+        }
+        assertThat(throughputController.getBatchSize(), is(100));
+        assertThat(throughputController.getConcurrency(), is(1));
+
+        for (int i = 0; i < 10; i++) {
+            throughputController.onResponse(FAST, 0);
+        }
+        assertThat(throughputController.getConcurrency(), is(4));
+    }
+
+    @Test
+    public void slowResponsesHalveBatchSize() {
+        final ThroughputController throughputController = new ThroughputController(BulkConfig.builder().maxActions(1000).targetLatencyInMillis(1000).build(), 4);
+
+        throughputController.onResponse(SLOW, 0);
+        assertThat(throughputController.getBatchSize(), is(50));
+
+        for (int i = 0; i < 10; i++) {
+            throughputController.onResponse(SLOW, 0);
+        }
+        assertThat(throughputController.getBatchSize(), is(1));
+    }
+
+    @Test
+    public void rejectionsHalveBatchSizeAndConcurrency() {
+        final ThroughputController throughputController = new ThroughputController(BulkConfig.builder().maxActions(10).targetLatencyInMillis(1000).build(), 8);
+        for (int i = 0; i < 20; i++) {
+            throughputController.onResponse(FAST, 0);
+        }
+        assertThat(throughputController.getConcurrency(), is(8));
+
+        throughputController.onResponse(FAST, 3);
+        assertThat(throughputController.getBatchSize(), is(5));
+        assertThat(throughputController.getConcurrency(), is(4));
+    }
+
+    @Test
+    public void requestsArePacedByDocumentsPerSecond() {
+        final ThroughputController throughputController = new ThroughputController(BulkConfig.builder().maxDocumentsPerSecond(100).build(), 1);
+
+        assertThat(throughputController.reserve(100, 0), is(0L));
+        final long delayInMillis = throughputController.reserve(100, 0);
+        assertThat(delayInMillis, greaterThanOrEqualTo(900L));
+        assertThat(delayInMillis, lessThanOrEqualTo(1000L));
+    }
+}
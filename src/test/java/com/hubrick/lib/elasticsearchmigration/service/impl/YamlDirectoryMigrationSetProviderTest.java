@@ -16,6 +16,8 @@
 package com.hubrick.lib.elasticsearchmigration.service.impl;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.hubrick.lib.elasticsearchmigration.model.input.ChecksumedMigrationFile;
 import com.hubrick.lib.elasticsearchmigration.model.migration.CreateIndexMigration;
 import com.hubrick.lib.elasticsearchmigration.model.migration.CreateOrUpdateIndexTemplateMigration;
 import com.hubrick.lib.elasticsearchmigration.model.migration.DeleteDocumentMigration;
@@ -25,15 +27,21 @@ import com.hubrick.lib.elasticsearchmigration.model.migration.IndexDocumentMigra
 import com.hubrick.lib.elasticsearchmigration.model.migration.MigrationSet;
 import com.hubrick.lib.elasticsearchmigration.model.migration.UpdateDocumentMigration;
 import com.hubrick.lib.elasticsearchmigration.model.migration.UpdateMappingMigration;
+import com.hubrick.lib.elasticsearchmigration.service.Parser;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.net.URISyntaxException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -64,7 +72,7 @@ public class YamlDirectoryMigrationSetProviderTest {
                 "migration_two",
                 "migration_three"
         ));
-        assertThat(migrationSet.getMigrations().stream().map(e -> e.getMigrationMeta().getSha256Checksums()).collect(Collectors.toList()), contains(
+        assertThat(migrationSet.getMigrations().stream().map(e -> e.getMigrationMeta().getAllSha256Checksums()).collect(Collectors.toList()), contains(
                 ImmutableSet.of("add4031e5df0c7b8426426019b6c1b7031443661da4639c41db583d7ecac3336", "e874b5f9c634b1b0058887b5d9bcdde6bae0850d83b89b17dcbf062fb579c739"),
                 ImmutableSet.of("c0b90eb5d8a427d36d709419418a95b6e5fd26fba7e16e7ea49204dbb7b86e9f", "5749d306d3b07013f4547110c6b79d7480c6489902b27f91bf3cc5c0ac91d8f1"),
                 ImmutableSet.of("d4eabdcea97bf12b4044f8fa6f670c0088be613480ec73d1314e8abb48731228", "25a10eff8573996d0537d392fe9c66565c5f3d6940659984b3727e4d34e87721")
@@ -83,4 +91,49 @@ public class YamlDirectoryMigrationSetProviderTest {
         ));
 
     }
+
+    @Test
+    public void getMigrationSetParsesOnlyRequestedChangesets() {
+        final AtomicInteger parseCount = new AtomicInteger();
+        final YamlParser yamlParser = new YamlParser();
+        final MigrationSet migrationSet = new YamlDirectoryMigrationSetProvider(Runnable::run, new Parser() {
+            @Override
+            public ChecksumedMigrationFile parse(final String path) {
+                parseCount.incrementAndGet();
+                return yamlParser.parse(path);
+            }
+
+            @Override
+            public Set<String> getFileChecksums(final String path) {
+                return yamlParser.getFileChecksums(path);
+            }
+        }).getMigrationSet("com.hubrick.lib.elasticsearchmigration.service.impl");
+
+        assertThat(parseCount.get(), is(0));
+        assertThat(migrationSet.getMigrations().stream().map(e -> e.getMigrationMeta().getSha256Checksums()).collect(Collectors.toList()), contains(
+                ImmutableSet.of("add4031e5df0c7b8426426019b6c1b7031443661da4639c41db583d7ecac3336"),
+                ImmutableSet.of("c0b90eb5d8a427d36d709419418a95b6e5fd26fba7e16e7ea49204dbb7b86e9f"),
+                ImmutableSet.of("d4eabdcea97bf12b4044f8fa6f670c0088be613480ec73d1314e8abb48731228")
+        ));
+
+        Iterables.getLast(migrationSet.getMigrations()).getMigration();
+        Iterables.getLast(migrationSet.getMigrations()).getMigrationMeta().getAllSha256Checksums();
+        assertThat(parseCount.get(), is(1));
+    }
+
+    @Test
+    public void getMigrationSetKeepsVersionOrderWhenParsedConcurrently() {
+        final ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            final MigrationSet migrationSet = new YamlDirectoryMigrationSetProvider(executorService).getMigrationSet("com.hubrick.lib.elasticsearchmigration.service.impl");
+
+            assertThat(migrationSet.getMigrations().stream().map(e -> e.getMigrationMeta().getName()).collect(Collectors.toList()), contains(
+                    "migration_one",
+                    "migration_two",
+                    "migration_three"
+            ));
+        } finally {
+            executorService.shutdown();
+        }
+    }
 }
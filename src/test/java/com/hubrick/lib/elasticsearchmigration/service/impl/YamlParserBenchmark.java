@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableSet;
+import com.hubrick.lib.elasticsearchmigration.exception.InvalidSchemaException;
+import com.hubrick.lib.elasticsearchmigration.model.input.ChecksumedMigrationFile;
+import com.hubrick.lib.elasticsearchmigration.model.input.MigrationFile;
+import com.hubrick.lib.elasticsearchmigration.util.HashUtils;
+import com.hubrick.lib.elasticsearchmigration.util.ResourceUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link YamlParser#parse(String)} with the previous pipeline which read every file twice, bound it from scratch and
+ * buffered the normalized yaml. Both validate with the built in schema validator, so only the pipelines differ. The built in
+ * validator is compared with the generic one separately. Run {@link #main(String[])} from the test classpath, the gc
+ * profiler reports the allocation per operation ({@code gc.alloc.rate.norm}) next to the timings.
+ *
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YamlParserBenchmark {
+
+    @Param({
+            "com/hubrick/lib/elasticsearchmigration/service/impl/V1__migration_one.yaml",
+            "com/hubrick/lib/elasticsearchmigration/service/impl/V2__migration_two.yaml"
+    })
+    public String path;
+
+    private YamlParser yamlParser;
+    private JsonSchemaValidator jsonSchemaValidator;
+    private ChangesetSchemaValidator changesetSchemaValidator;
+    private JsonNode tree;
+
+    @Setup
+    public void setUp() throws IOException {
+        jsonSchemaValidator = new JsonSchemaValidator();
+        changesetSchemaValidator = new ChangesetSchemaValidator();
+        yamlParser = new YamlParser(changesetSchemaValidator);
+        try (final InputStream inputStream = ResourceUtils.getResourceAsStream(path, this)) {
+            tree = yamlParser.getYamlMapper().readTree(inputStream);
+        }
+    }
+
+    @Benchmark
+    public ChecksumedMigrationFile singlePass() {
+        return yamlParser.parse(path);
+    }
+
+    @Benchmark
+    public ChecksumedMigrationFile previousTwoPass() throws IOException {
+        try (final InputStream inputStream = ResourceUtils.getResourceAsStream(path, this)) {
+            final JsonNode tree = yamlParser.getYamlMapper().readTree(inputStream);
+            if (!changesetSchemaValidator.validate(tree).isEmpty()) {
+                throw new InvalidSchemaException("Yaml file doesn't match the schema");
+            }
+        } catch (Exception e) {
+            throw new InvalidSchemaException("Problem parsing yaml file " + path, e);
+        }
+
+        final byte[] yaml;
+        try (final InputStream inputStream = ResourceUtils.getResourceAsStream(path, this)) {
+            yaml = IOUtils.toByteArray(inputStream);
+        }
+        final MigrationFile migrationFile = yamlParser.getYamlMapper().readValue(new ByteArrayInputStream(yaml), MigrationFile.class);
+        final String fileSha256Checksum = HashUtils.hashSha256(new ByteArrayInputStream(yaml));
+        final byte[] normalizedYaml = yamlParser.getYamlMapper().writeValueAsBytes(migrationFile);
+        final String normalizedSha256Checksum = HashUtils.hashSha256(ByteBuffer.wrap(normalizedYaml));
+        return new ChecksumedMigrationFile(migrationFile, ImmutableSet.of(fileSha256Checksum, normalizedSha256Checksum));
+    }
+
+    @Benchmark
+    public List<String> validateBuiltIn() {
+        return changesetSchemaValidator.validate(tree);
+    }
+
+    @Benchmark
+    public List<String> validateJsonSchema() {
+        return jsonSchemaValidator.validate(tree);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(YamlParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -25,13 +25,26 @@ import com.hubrick.lib.elasticsearchmigration.model.input.DeleteIndexTemplateMig
 import com.hubrick.lib.elasticsearchmigration.model.input.IndexDocumentMigrationFileEntry;
 import com.hubrick.lib.elasticsearchmigration.model.input.UpdateDocumentMigrationFileEntry;
 import com.hubrick.lib.elasticsearchmigration.model.input.UpdateMappingMigrationFileEntry;
+import com.hubrick.lib.elasticsearchmigration.model.migration.DocumentMigration;
+import com.hubrick.lib.elasticsearchmigration.model.migration.Migration;
+import com.hubrick.lib.elasticsearchmigration.util.HashUtils;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -62,9 +75,50 @@ public class YamlParserTest {
         ));
     }
 
+    @Test
+    public void parsedDocumentMigrationsWaitForRefresh() {
+        final YamlParser yamlParser = new YamlParser();
+        final MigrationFileConverter migrationFileConverter = new MigrationFileConverter();
+        final List<Migration> documentMigrations = yamlParser.parse("success.yaml").getMigrationFile().getMigrations().stream()
+                .map(migrationFileConverter::convertToMigration)
+                .filter(e -> e instanceof DocumentMigration)
+                .collect(Collectors.toList());
+
+        // The default PER_REQUEST refresh policy sends them as parsed, the deferred policies strip the parameter
+        assertThat(documentMigrations.size(), is(3));
+        for (Migration documentMigration : documentMigrations) {
+            assertThat(documentMigration.getParameters(), hasEntry("refresh", "wait_for"));
+        }
+    }
+
+    @Test
+    public void getFileChecksumsCoversBulkFilesWhoseTypeIsEscaped() {
+        final YamlParser yamlParser = new YamlParser();
+
+        final Set<String> fileChecksums = yamlParser.getFileChecksums("bulk_file_escaped.yaml");
+
+        assertThat(fileChecksums, is(yamlParser.parse("bulk_file_escaped.yaml").getSha256Checksums()));
+        assertThat(fileChecksums, not(hasItem(hashResource("bulk_file_escaped.yaml"))));
+    }
+
+    @Test
+    public void getFileChecksumsIgnoresBulkFileOutsideTheEntryTypes() {
+        final YamlParser yamlParser = new YamlParser();
+
+        assertThat(yamlParser.getFileChecksums("bulk_file_in_document.yaml"), contains(hashResource("bulk_file_in_document.yaml")));
+    }
+
     @Test(expected = InvalidSchemaException.class)
     public void parseFailure() throws URISyntaxException {
         final YamlParser yamlParser = new YamlParser();
         yamlParser.parse("failure.yaml");
     }
+
+    private String hashResource(final String path) {
+        try (final InputStream inputStream = getClass().getResourceAsStream(path)) {
+            return HashUtils.hashSha256(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2018 Etaia AS (oss@hubrick.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hubrick.lib.elasticsearchmigration.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Emir Dizdarevic
+ * @since 1.1.0
+ */
+public class ByteBuffersEntityTest {
+
+    private static final String CONTENT = "{\"index\":{}}\n{\"field\":\"value\"}\n";
+
+    @Test
+    public void writeToConcatenatesTheBuffers() throws IOException {
+        final ByteBuffer first = buffer("{\"index\":{}}\n");
+        final ByteBuffer second = buffer("{\"field\":\"value\"}\n");
+        final ByteBuffersEntity entity = new ByteBuffersEntity(ImmutableList.of(first, buffer(""), second), ContentType.APPLICATION_JSON);
+
+        assertThat(writeTo(entity), is(CONTENT));
+        // Every write starts from the beginning and leaves the given buffers untouched
+        assertThat(writeTo(entity), is(CONTENT));
+        assertThat(first.position(), is(0));
+        assertThat(second.position(), is(0));
+        assertThat(entity.getContentLength(), is((long) CONTENT.length()));
+        assertThat(entity.getContentType().getValue(), is(ContentType.APPLICATION_JSON.toString()));
+    }
+
+    @Test
+    public void contentConcatenatesTheBuffers() throws IOException {
+        final ByteBuffersEntity entity = createEntity();
+
+        assertThat(new String(ByteStreams.toByteArray(entity.getContent()), StandardCharsets.UTF_8), is(CONTENT));
+        assertThat(new String(ByteStreams.toByteArray(entity.getContent()), StandardCharsets.UTF_8), is(CONTENT));
+    }
+
+    @Test
+    public void isRepeatable() {
+        final ByteBuffersEntity entity = createEntity();
+
+        assertThat(entity.isRepeatable(), is(true));
+        assertThat(entity.isStreaming(), is(false));
+    }
+
+    @Test
+    public void produceContentContinuesWhereTheEncoderStopped() throws IOException {
+        final ByteBuffersEntity entity = createEntity();
+        final LimitedContentEncoder encoder = new LimitedContentEncoder(5);
+
+        int calls = 0;
+        while (!encoder.isCompleted()) {
+            entity.produceContent(encoder, null);
+            calls++;
+        }
+
+        assertThat(calls, greaterThan(CONTENT.length() / 5));
+        assertThat(encoder.getContent(), is(CONTENT));
+    }
+
+    @Test
+    public void closeRestartsTheContent() throws IOException {
+        final ByteBuffersEntity entity = createEntity();
+        final LimitedContentEncoder interrupted = new LimitedContentEncoder(5);
+        entity.produceContent(interrupted, null);
+        entity.produceContent(interrupted, null);
+        assertThat(interrupted.getContent(), is(CONTENT.substring(0, 10)));
+
+        // A retry sends the whole body again
+        entity.close();
+        final LimitedContentEncoder retry = new LimitedContentEncoder(Integer.MAX_VALUE);
+        entity.produceContent(retry, null);
+
+        assertThat(retry.isCompleted(), is(true));
+        assertThat(retry.getContent(), is(CONTENT));
+    }
+
+    private static ByteBuffersEntity createEntity() {
+        return new ByteBuffersEntity(ImmutableList.of(buffer("{\"index\":{}}\n"), buffer("{\"field\":\"value\"}\n")), ContentType.APPLICATION_JSON);
+    }
+
+    private static ByteBuffer buffer(final String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String writeTo(final ByteBuffersEntity entity) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        entity.writeTo(outputStream);
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Accepts at most the given number of bytes per call, like a socket whose send buffer is full.
+     */
+    private static class LimitedContentEncoder implements ContentEncoder {
+
+        private final int maxBytesPerCall;
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private int bytesInCall;
+        private boolean completed;
+
+        LimitedContentEncoder(final int maxBytesPerCall) {
+            this.maxBytesPerCall = maxBytesPerCall;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int length = Math.min(src.remaining(), maxBytesPerCall - bytesInCall);
+            for (int i = 0; i < length; i++) {
+                content.write(src.get());
+            }
+            bytesInCall += length;
+            if (bytesInCall == maxBytesPerCall) {
+                bytesInCall = 0;
+            }
+            return length;
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        String getContent() {
+            return new String(content.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}